@@ -0,0 +1,95 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes synthetic single-routine .start programs with large CFGs:
+//   deep  - n nested loops
+//   wide  - an n-way if/else-if cascade into one join block
+//   chain - n if/else diamonds in sequence
+public class CFGGenerator {
+
+	private List<String> instrs = new ArrayList<String>();
+
+	// instr 1 is the program nop, the routine starts at 2
+	private int next() { return instrs.size() + 2; }
+
+	private int emit(String s) {
+		instrs.add(s);
+		return next() - 1;
+	}
+
+	private void patch(int index, String s) { instrs.set(index - 2, s); }
+
+	private void deep(int n) {
+		int[] header = new int[n];
+		int[] exit = new int[n];
+		for (int d = 0; d < n; d++) {
+			header[d] = emit("cmplt x#-4 100 :bool");
+			exit[d] = emit(null);
+		}
+		int add = emit("add x#-4 1 :int");
+		emit("move (" + add + ") x#-4");
+		for (int d = n - 1; d >= 0; d--) {
+			emit("br [" + header[d] + "]");
+			patch(exit[d], "blbc (" + header[d] + ") [" + next() + "]");
+		}
+	}
+
+	private void wide(int n) {
+		int[] arms = new int[n];
+		for (int i = 0; i < n; i++) {
+			int cmp = emit("cmpeq x#-4 " + i + " :bool");
+			int branch = emit(null);
+			emit("move " + (i + 1) + " x#-4");
+			arms[i] = emit(null);
+			patch(branch, "blbc (" + cmp + ") [" + next() + "]");
+		}
+		for (int arm: arms)
+			patch(arm, "br [" + next() + "]");
+	}
+
+	private void chain(int n) {
+		for (int i = 0; i < n; i++) {
+			int cmp = emit("cmplt x#-4 " + i + " :bool");
+			int branch = emit(null);
+			emit("move 1 x#-4");
+			int br = emit(null);
+			patch(branch, "blbc (" + cmp + ") [" + next() + "]");
+			emit("move 2 x#-4");
+			patch(br, "br [" + next() + "]");
+		}
+	}
+
+	public static File generate(String shape, int n) throws IOException {
+		CFGGenerator g = new CFGGenerator();
+		g.emit("entrypc");
+		g.emit("enter 4");
+		g.emit("move 0 x#-4");
+		if (shape.equals("deep"))
+			g.deep(n);
+		else if (shape.equals("wide"))
+			g.wide(n);
+		else if (shape.equals("chain"))
+			g.chain(n);
+		else
+			throw new IllegalArgumentException("unknown shape " + shape);
+		g.emit("write x#-4");
+		g.emit("wrl");
+		g.emit("ret 0");
+		g.emit("nop");
+
+		File file = File.createTempFile(shape + n + "-", ".start");
+		file.deleteOnExit();
+		FileWriter out = new FileWriter(file);
+		out.write("    method main@2: x#-4:int\n");
+		out.write("    instr 1: nop\n");
+		for (int i = 0; i < g.instrs.size(); i++)
+			out.write("    instr " + (i + 2) + ": " + g.instrs.get(i) + "\n");
+		out.close();
+		return file;
+	}
+}
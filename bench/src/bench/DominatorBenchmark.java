@@ -0,0 +1,68 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import compiler.Program;
+import compiler.Routine;
+
+// Iterative (Cooper-Harvey-Kennedy) vs Lengauer-Tarjan dominators on
+// generated CFGs, see CFGGenerator. The deep recursion of the current
+// postorder needs the big stack.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss64m")
+public class DominatorBenchmark {
+
+	@State(Scope.Thread)
+	public static class Generated {
+		@Param({ "deep", "wide", "chain" })
+		public String shape;
+		@Param({ "100", "1000", "5000" })
+		public int size;
+
+		public File file;
+		public Program program;
+
+		@Setup(Level.Trial)
+		public void generate() throws IOException { file = CFGGenerator.generate(shape, size); }
+
+		@Setup(Level.Invocation)
+		public void setup() {
+			program = new Program();
+			program.scanFile(file.getPath());
+			for (Routine r: program.getRoutines())
+				r.genCFG();
+		}
+	}
+
+	@Benchmark
+	public Program iterative(Generated s) {
+		for (Routine r: s.program.getRoutines())
+			r.genDominator();
+		return s.program;
+	}
+
+	@Benchmark
+	public Program lengauerTarjan(Generated s) {
+		for (Routine r: s.program.getRoutines())
+			r.genDominatorLT();
+		return s.program;
+	}
+}
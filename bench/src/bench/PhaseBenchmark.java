@@ -0,0 +1,299 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import profile.Edge;
+import profile.Interpreter;
+import profile.PositionProfile;
+
+import compiler.ConstantPropOpt;
+import compiler.Program;
+import compiler.Routine;
+import compiler.SSATransform;
+import compiler.ValueNumberOpt;
+
+// One benchmark per compiler phase. Phases that change the IR get a fresh
+// program, brought up to the phase before, for every invocation; only the
+// phase itself is measured. Run with "-prof gc" for the allocation rate.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+	public static final int SCANNED = 0;
+	public static final int CFG = 1;
+	public static final int DOMINATOR = 2;
+	public static final int SSA = 3;
+	public static final int CP = 4;
+	public static final int VN = 5;
+	public static final int BACK_FROM_SSA = 6;
+
+	public static String inputFile(String name) {
+		return System.getProperty("bench.input", "input") + "/" + name + ".start";
+	}
+
+	// parse a file and run the phases up to and including stage
+	public static Program prepare(String name, int stage) {
+		Program program = new Program();
+		if (!program.scanFile(inputFile(name)))
+			throw new IllegalArgumentException("cannot read " + inputFile(name));
+
+		for (Routine r: program.getRoutines()) {
+			if (stage >= CFG)
+				r.genCFG();
+			if (stage >= DOMINATOR)
+				r.genDominator();
+			if (stage >= SSA) {
+				r.ssaTrans = new SSATransform(r);
+				r.ssaTrans.translateToSSA();
+			}
+			if (stage >= CP) {
+				r.cp = new ConstantPropOpt(r);
+				r.cp.optimize();
+			}
+			if (stage >= VN) {
+				r.vn = new ValueNumberOpt(r);
+				r.vn.optimize();
+			}
+			if (stage >= BACK_FROM_SSA)
+				r.ssaTrans.translateBackFromSSA();
+		}
+		if (stage >= BACK_FROM_SSA)
+			program.renumberStmt();
+
+		return program;
+	}
+
+	// the whole input/*.start corpus, the largest first; the other states
+	// inherit the parameter, so "-p file=..." narrows them all
+	@State(Scope.Thread)
+	public static class Input {
+		@Param({ "regslarge", "richards", "mmm", "sieve", "hanoifibfac", "prime", "sort",
+				"class", "cproptest", "gcd", "link", "loop", "points", "rational",
+				"struct", "test", "vnumtest" })
+		public String file;
+	}
+
+	@State(Scope.Thread)
+	public static class Scanned extends Input {
+		public Program program;
+
+		@Setup(Level.Invocation)
+		public void setup() { program = prepare(file, SCANNED); }
+	}
+
+	@State(Scope.Thread)
+	public static class WithCFG extends Input {
+		public Program program;
+
+		@Setup(Level.Invocation)
+		public void setup() { program = prepare(file, CFG); }
+	}
+
+	@State(Scope.Thread)
+	public static class WithDominator extends Input {
+		public Program program;
+
+		@Setup(Level.Invocation)
+		public void setup() { program = prepare(file, DOMINATOR); }
+	}
+
+	@State(Scope.Thread)
+	public static class WithSSA extends Input {
+		public Program program;
+
+		@Setup(Level.Invocation)
+		public void setup() { program = prepare(file, SSA); }
+	}
+
+	@State(Scope.Thread)
+	public static class WithCP extends Input {
+		public Program program;
+
+		@Setup(Level.Invocation)
+		public void setup() { program = prepare(file, CP); }
+	}
+
+	@State(Scope.Thread)
+	public static class WithVN extends Input {
+		public Program program;
+
+		@Setup(Level.Invocation)
+		public void setup() { program = prepare(file, VN); }
+	}
+
+	// the dump printers do not change the IR, one program per trial is enough
+	@State(Scope.Thread)
+	public static class Compiled extends Input {
+		public Program program;
+
+		@Setup(Level.Trial)
+		public void setup() { program = prepare(file, BACK_FROM_SSA); }
+	}
+
+	@State(Scope.Thread)
+	public static class CompiledSSA extends Input {
+		public Program program;
+
+		@Setup(Level.Trial)
+		public void setup() { program = prepare(file, VN); }
+	}
+
+	@State(Scope.Thread)
+	public static class Instrumented extends Input {
+		public Program program;
+		public List<PositionProfile> profiles;
+
+		@Setup(Level.Invocation)
+		public void setup() {
+			program = prepare(file, BACK_FROM_SSA);
+			profiles = new ArrayList<PositionProfile>();
+			List<Edge> edges = new ArrayList<Edge>();
+			for (Routine r: program.getRoutines()) {
+				PositionProfile p = new PositionProfile(r, edges);
+				p.instrument();
+				profiles.add(p);
+			}
+		}
+	}
+
+	// edge counters filled in and the instrumentation removed again
+	@State(Scope.Thread)
+	public static class Profiled extends Input {
+		public List<PositionProfile> profiles;
+
+		@Setup(Level.Invocation)
+		public void setup() {
+			Program program = prepare(file, BACK_FROM_SSA);
+			profiles = new ArrayList<PositionProfile>();
+			List<Edge> edges = new ArrayList<Edge>();
+			for (Routine r: program.getRoutines()) {
+				PositionProfile p = new PositionProfile(r, edges);
+				p.instrument();
+				profiles.add(p);
+			}
+
+			Interpreter vm = new Interpreter(program);
+			vm.run(null);
+			for (Edge e: edges)
+				e.counter = vm.getCount(e.index);
+
+			for (PositionProfile p: profiles)
+				p.clean();
+		}
+	}
+
+	@Benchmark
+	public Program scan(Input in) {
+		Program program = new Program();
+		program.scanFile(inputFile(in.file));
+		return program;
+	}
+
+	@Benchmark
+	public Program genCFG(Scanned s) {
+		for (Routine r: s.program.getRoutines())
+			r.genCFG();
+		return s.program;
+	}
+
+	@Benchmark
+	public Program genDominator(WithCFG s) {
+		for (Routine r: s.program.getRoutines())
+			r.genDominator();
+		return s.program;
+	}
+
+	@Benchmark
+	public Program translateToSSA(WithDominator s) {
+		for (Routine r: s.program.getRoutines()) {
+			r.ssaTrans = new SSATransform(r);
+			r.ssaTrans.translateToSSA();
+		}
+		return s.program;
+	}
+
+	@Benchmark
+	public Program constantPropOpt(WithSSA s) {
+		for (Routine r: s.program.getRoutines()) {
+			r.cp = new ConstantPropOpt(r);
+			r.cp.optimize();
+		}
+		return s.program;
+	}
+
+	@Benchmark
+	public Program valueNumberOpt(WithCP s) {
+		for (Routine r: s.program.getRoutines()) {
+			r.vn = new ValueNumberOpt(r);
+			r.vn.optimize();
+		}
+		return s.program;
+	}
+
+	@Benchmark
+	public Program translateBackFromSSA(WithVN s) {
+		for (Routine r: s.program.getRoutines())
+			r.ssaTrans.translateBackFromSSA();
+		s.program.renumberStmt();
+		return s.program;
+	}
+
+	@Benchmark
+	public List<PositionProfile> profileInstrument(Compiled s) {
+		// instrument and clean again, so the trial program stays usable
+		List<PositionProfile> profiles = new ArrayList<PositionProfile>();
+		List<Edge> edges = new ArrayList<Edge>();
+		for (Routine r: s.program.getRoutines()) {
+			PositionProfile p = new PositionProfile(r, edges);
+			p.instrument();
+			profiles.add(p);
+		}
+		for (PositionProfile p: profiles)
+			p.clean();
+		return profiles;
+	}
+
+	@Benchmark
+	public Interpreter profileRun(Instrumented s) {
+		Interpreter vm = new Interpreter(s.program);
+		vm.run(null);
+		return vm;
+	}
+
+	@Benchmark
+	public List<PositionProfile> profileOptimize(Profiled s) {
+		for (PositionProfile p: s.profiles)
+			p.optimize();
+		return s.profiles;
+	}
+
+	@Benchmark
+	public String dump(Compiled s) { return s.program.dump(); }
+
+	@Benchmark
+	public String dumpIR(Compiled s) { return s.program.dumpIR(); }
+
+	@Benchmark
+	public String dumpCFG(Compiled s) { return s.program.dumpCFG(); }
+
+	@Benchmark
+	public String dumpSSA(CompiledSSA s) { return s.program.dumpSSA(); }
+}
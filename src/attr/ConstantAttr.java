@@ -59,71 +59,6 @@ public class ConstantAttr extends Attribute {
 		return ret;
 	}
 	
-	public static ConstantAttr operate(Stmt.Operator op, ConstantAttr a, ConstantAttr b) {
-		ConstantAttr attr = null;
-		switch (op) {
-		case phi:
-			if (a.type == ConstantType.Bottom || b.type == ConstantType.Bottom)
-				attr = new ConstantAttr(ConstantType.Bottom);
-			else if (a.type == ConstantType.Top)
-				attr = new ConstantAttr(b);
-			else if (b.type == ConstantType.Top)
-				attr = new ConstantAttr(a);
-			else {
-				if (a.value == b.value)
-					attr = new ConstantAttr(a);
-				else
-					attr = new ConstantAttr(ConstantType.Bottom);
-			}
-			break;
-		case mul:
-			if ((a.type == ConstantType.Bottom && b.type == ConstantType.Top) ||
-				(b.type == ConstantType.Bottom && a.type == ConstantType.Top))
-				attr = new ConstantAttr(0);
-			else if ((a.type == ConstantType.Constant && a.value == 0) ||
-					 (b.type == ConstantType.Constant && b.value == 0))
-				attr = new ConstantAttr(0);
-			else if (a.type == ConstantType.Top || b.type == ConstantType.Top)
-				attr = new ConstantAttr(ConstantType.Top);
-			else if (a.type == ConstantType.Bottom || b.type == ConstantType.Bottom)
-				attr = new ConstantAttr(ConstantType.Bottom);
-			else
-				attr = new ConstantAttr(constantCalc(op, a.value, b.value));
-			break;
-		case add: case sub: case div: case mod:
-		case cmpeq: case cmple: case cmplt:
-			if ((a.type == ConstantType.Bottom && b.type == ConstantType.Top) ||
-				(b.type == ConstantType.Bottom && a.type == ConstantType.Top))
-					attr = new ConstantAttr(0);
-			else if (a.type == ConstantType.Top || b.type == ConstantType.Top)
-				attr = new ConstantAttr(ConstantType.Top);
-			else if (a.type == ConstantType.Bottom || b.type == ConstantType.Bottom)
-				attr = new ConstantAttr(ConstantType.Bottom);
-			else
-				attr = new ConstantAttr(constantCalc(op, a.value, b.value));
-			break;
-		default:
-			System.out.println("ConstantAttr.operate(op, attr) error: unsupported operator");
-		}
-		
-		return attr;
-	}
-	
-	public static ConstantAttr operate(Stmt.Operator op, ConstantAttr a) {
-		ConstantAttr attr = null;
-		if (op == Stmt.Operator.neg) {
-			if (a.type == ConstantType.Constant)
-				attr = new ConstantAttr(-a.value);
-			else
-				attr = new ConstantAttr(a);
-		} else
-			System.out.println("ConstantAttr.operate(op) error: unsupported operator");
-		
-		return attr;
-	}
-	
-	
-	
 	@Override
 	public String toString() {
 		
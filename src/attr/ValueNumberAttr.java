@@ -1,9 +1,9 @@
 package attr;
 
 public class ValueNumberAttr extends Attribute {
-	public String val;
+	public int val;	// SSA value id
 	
-	public ValueNumberAttr(String v) {
+	public ValueNumberAttr(int v) {
 		this.val = v;
 	}
 }
@@ -1,29 +1,26 @@
 package compiler;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
 
 import stmt.BranchStmt;
-import stmt.EntryStmt;
-import stmt.MoveStmt;
 import stmt.OtherStmt;
 import stmt.PhiNode;
 import stmt.Stmt;
 import stmt.Stmt.Operator;
-import token.Token;
 import token.Variable;
 
 public class Block extends Node {
 	
-	public static int GlobalIdCounter = 0;
-	
 	public final int id;
 	public int startLine;
 	public int endLine;
 	public List<Stmt> body;
 	public final Routine routine;
+	public boolean cold = false;	// placed after every routine, see Program.dump
 	
 	private List<PhiNode> phiNodeList = new LinkedList<PhiNode>();
 	private BranchStmt profBrStmt = null;
@@ -33,16 +30,18 @@ public class Block extends Node {
 	
 	private Block idom = null;
 	private List<Block> children = new ArrayList<Block>();
-	private List<Block> DF = new ArrayList<Block>();
+	
+	// block number in the routine's current BlockOrder
+	int orderIndex = -1;
 	
 	public Block(Routine routine) {
-		this.id = GlobalIdCounter++;
+		this.id = routine.newBlockId();
 		this.body = new ArrayList<Stmt>();
 		this.routine = routine;
 	}
 	
 	public Block(int startLine, int endLine, List<Stmt> stmts, Routine routine) {
-		this.id = GlobalIdCounter++;
+		this.id = routine.newBlockId();
 		this.startLine = startLine;
 		this.endLine = endLine;
 		this.body = new ArrayList<Stmt>(stmts);
@@ -50,36 +49,44 @@ public class Block extends Node {
 	}
 	
 	public void addPred(Block b) {
-		if (!preds.contains(b))
+		if (!preds.contains(b)) {
 			preds.add(b); 
+			routine.invalidateOrder();
+		}
 	}
 	
 	public void addSucc(Block b) {
-		if (!succs.contains(b))
+		if (!succs.contains(b)) {
 			succs.add(b); 
+			routine.invalidateOrder();
+		}
 	}
 	
 	public void addChild(Block b) { children.add(b); }
 	
-	public void addDF(Block b) {
-		if (!DF.contains(b))
-			DF.add(b); 
-	}
-	
 	public List<Block> getSuccs() { return succs; }
 	
 	public List<Block> getPreds() { return preds; }
 	
 	public List<Block> getChildren() { return children; }
 	
-	public List<Block> getDF() { return DF; }
-	
 	public List<PhiNode> getPhiNode() { return phiNodeList; }
 	
 	public void setIdom(Block b) { idom = b; }
 	
 	public Block getIdom() { return idom; }
 	
+	// walks the idoms from genDominator/genDominatorLT
+	public boolean dominates(Block b) {
+		while (b != this) {
+			Block up = b.getIdom();
+			if (up == null || up == b)
+				return false;
+			b = up;
+		}
+		return true;
+	}
+	
 	public int getIndex() { return body.get(0).index; }
 	
 	public void setProfBranchStmt(BranchStmt s) { profBrStmt = s; }
@@ -88,19 +95,6 @@ public class Block extends Node {
 	
 	public void removeProfBranchStmt() { profBrStmt = null; }
 	
-	public boolean hasAssignment(Variable v) {
-		
-		for (Stmt stmt: body) {
-			if (stmt instanceof MoveStmt || stmt instanceof EntryStmt) {
-				for (Token t: stmt.getLHS())
-					if (((Variable) t).equals(v))
-						return true;
-			}
-		}
-		
-		return false;
-	}
-	
 	public void insertPhiNode(Variable v) {
 		
 		phiNodeList.add(new PhiNode(v.name, preds.size(), this));
@@ -112,7 +106,7 @@ public class Block extends Node {
 		if (body.contains(stmt)) {
 			body.remove(stmt);
 			if (body.size() == 0)
-				body.add(new OtherStmt(Operator.nop));
+				body.add(new OtherStmt(routine.newStmtIndex(), Operator.nop));
 		} else if (phiNodeList.contains(stmt))
 			phiNodeList.remove(stmt);
 	}
@@ -128,72 +122,60 @@ public class Block extends Node {
 		}
 	}
 	
-	public String dump() {
-		StringBuilder sb = new StringBuilder();
+	public void dump(Appendable out) throws IOException {
 		for (Stmt stmt: body)
-			sb.append(stmt + "\n");
+			out.append(stmt.toString()).append('\n');
 		
 		if (profBrStmt != null)
-			sb.append(profBrStmt.toString() + "\n");
-		return sb.toString();
+			out.append(profBrStmt.toString()).append('\n');
 	}
 	
-	public String dumpIR() {
-		StringBuilder sb = new StringBuilder();
+	public void dumpIR(Appendable out) throws IOException {
 		for (Stmt stmt: body)
-			sb.append(stmt.toIRString() + "\n");
+			out.append(stmt.toIRString()).append('\n');
 		
 		if (profBrStmt != null)
-			sb.append(profBrStmt.toIRString() + "\n");
-		
-		return sb.toString();
+			out.append(profBrStmt.toIRString()).append('\n');
 	}
 	
-	public String dumpCFG() {
-		StringBuilder sb = new StringBuilder();
-		sb.append("Block#" + getIndex());
+	public void dumpCFG(Appendable out) throws IOException {
+		out.append("Block#").append(Integer.toString(getIndex()));
 		
-		sb.append("  Preds:");
+		out.append("  Preds:");
 		for (Block b: preds)
-			sb.append(" " + b.getIndex());
+			out.append(' ').append(Integer.toString(b.getIndex()));
 		
-		sb.append(", Succs:");
+		out.append(", Succs:");
 		for (Block b: succs)
-			sb.append(" " + b.getIndex());
+			out.append(' ').append(Integer.toString(b.getIndex()));
 		
-		sb.append(", Idom:");
+		out.append(", Idom:");
 		if (idom != null)
-			sb.append(" " + idom.getIndex());
+			out.append(' ').append(Integer.toString(idom.getIndex()));
 		
-		sb.append(", Children:");
+		out.append(", Children:");
 		for (Block b: children)
-			sb.append(" " + b.getIndex());
+			out.append(' ').append(Integer.toString(b.getIndex()));
 		
-		sb.append("\n");
+		out.append('\n');
 		
 		for (Stmt stmt: body)
-			sb.append(stmt.toIRString() + "\n");
+			out.append(stmt.toIRString()).append('\n');
 		
 		if (profBrStmt != null)
-			sb.append(profBrStmt.toIRString() + "\n");
-		return sb.toString();
+			out.append(profBrStmt.toIRString()).append('\n');
 	}
 	
-	
-	public String dumpSSA() {
-		StringBuilder sb = new StringBuilder();
-		sb.append("Block #" + getIndex() + "\n");
+	public void dumpSSA(Appendable out) throws IOException {
+		out.append("Block #").append(Integer.toString(getIndex())).append('\n');
 		
-		for (PhiNode phiNode: phiNodeList) {
-			sb.append(phiNode.toSSAString() + "\n");
-		}
+		for (PhiNode phiNode: phiNodeList)
+			out.append(phiNode.toSSAString()).append('\n');
 		
 		for (Stmt stmt: body)
-			sb.append(stmt.toSSAString() + "\n");
+			out.append(stmt.toSSAString()).append('\n');
 		
 		if (profBrStmt != null)
-			sb.append(profBrStmt.toSSAString() + "\n");
-		
-		return sb.toString();
+			out.append(profBrStmt.toSSAString()).append('\n');
 	}
 }
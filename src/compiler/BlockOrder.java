@@ -0,0 +1,49 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// DFS orderings of a routine's CFG from the entry block, see Tools.genOrder.
+// Blocks are numbered densely by their position in the routine's block list;
+// the order arrays hold those numbers and cover the reachable blocks only.
+public class BlockOrder {
+	
+	public final Block[] blocks;
+	public final int[] preorder;
+	public final int[] postorder;
+	public final int[] rpo;
+	
+	// per block number: position in preorder/postorder (-1 if unreachable)
+	// and DFS tree parent (-1 for the entry and unreachable blocks)
+	public final int[] preNumber;
+	public final int[] postNumber;
+	public final int[] parent;
+	
+	BlockOrder(Block[] blocks, int[] preorder, int[] postorder, int[] preNumber, int[] postNumber, int[] parent) {
+		this.blocks = blocks;
+		this.preorder = preorder;
+		this.postorder = postorder;
+		this.preNumber = preNumber;
+		this.postNumber = postNumber;
+		this.parent = parent;
+		
+		this.rpo = new int[postorder.length];
+		for (int i = 0; i < postorder.length; i++)
+			rpo[i] = postorder[postorder.length - 1 - i];
+	}
+	
+	public int size() { return preorder.length; }
+	
+	// block number of b, -1 if b is not in this ordering's block list
+	public int indexOf(Block b) {
+		int i = b.orderIndex;
+		return (i >= 0 && i < blocks.length && blocks[i] == b) ? i : -1;
+	}
+	
+	public List<Block> toList(int[] order) {
+		List<Block> list = new ArrayList<Block>(order.length);
+		for (int i: order)
+			list.add(blocks[i]);
+		return list;
+	}
+}
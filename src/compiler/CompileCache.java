@@ -0,0 +1,279 @@
+package compiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import stmt.CallStmt;
+import stmt.Stmt;
+import token.Code;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+// Optimized routines of earlier builds, so a routine whose text is unchanged
+// is not optimized again. The key of a routine is its parsed text with the
+// stmt numbers made relative to its first stmt and calls naming their
+// callee, its local variables and the options the optimizations depend on;
+// an entry is the file <dir>/<FNV-1a of the key>.rtn holding the key and
+// the optimized routine as Routine.dump prints it, numbered the same way.
+// A routine found there is parsed back instead of compiled, then gets its
+// CFG and dominators as any other. Entries are used LRU, by their last
+// modified time, and the oldest are deleted once the directory is over
+// its size limit. Bump VERSION whenever an optimization changes.
+public class CompileCache {
+
+	private static final String MAGIC = "start-cache";
+	private static final int VERSION = 3;
+	private static final String SUFFIX = ".rtn";
+
+	// stmt numbers in instr, method, register and code tokens
+	private static final Pattern NUMBERS = Pattern.compile("instr (-?\\d+):|@(-?\\d+):|\\((-?\\d+)\\)|\\[(-?\\d+)\\]");
+
+	private File dir;
+	private long limit;		// bytes
+	private String options;
+	private List<String> keys = new ArrayList<String>();	// by routine, see genKey
+
+	public CompileCache(String dirName, long limit, Option option) {
+		this.dir = new File(dirName);
+		this.limit = limit;
+		this.options = "opt=" + option.optimizeList + " ssa=" + option.ssaForm;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			System.out.println("CompileCache error: cannot create " + dirName);
+	}
+
+	// stmt numbers in text plus delta
+	private static String relocate(String text, int delta) {
+		Matcher m = NUMBERS.matcher(text);
+		StringBuffer sb = new StringBuffer(text.length());
+		while (m.find()) {
+			int g = 1;
+			while (m.group(g) == null)
+				g++;
+			String number = Integer.toString(Integer.parseInt(m.group(g)) + delta);
+			String match = m.group();
+			m.appendReplacement(sb, Matcher.quoteReplacement(match.substring(0, m.start(g) - m.start())
+					+ number + match.substring(m.end(g) - m.start())));
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+
+	private static String keyToken(Token t, int base, Stmt s) {
+		if (t instanceof Register)
+			return (((Register) t).type != null && ((Register) t).index == s.index) ?
+					":" + ((Register) t).type : "(" + (((Register) t).index - base) + ")";
+		if (t instanceof Code)
+			return (s instanceof CallStmt && ((CallStmt) s).getRoutine() != null) ?
+					"[" + ((CallStmt) s).getRoutine().getName() + "]" : "[" + (((Code) t).getIndex() - base) + "]";
+		return t.toString();
+	}
+
+	// the parsed text of r, before genCFG
+	private String genKey(Routine r, List<Stmt> body) {
+		int base = r.getStartLine();
+		StringBuilder sb = new StringBuilder();
+		sb.append(options).append('\n');
+		sb.append(r.getName()).append(':');
+		for (Variable v: r.getLocalVars())
+			sb.append(' ').append(v.fullString());
+		sb.append('\n');
+		for (Stmt s: body) {
+			sb.append(s.index - base).append(' ').append(s.getOperator());
+			for (Token t: s.getRHS())
+				sb.append(' ').append(keyToken(t, base, s));
+			for (Token t: s.getLHS())
+				sb.append(' ').append(keyToken(t, base, s));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// FNV-1a
+	private static long hash(String text) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			h ^= text.charAt(i) & 0xff;
+			h *= 0x100000001b3L;
+			h ^= text.charAt(i) >>> 8;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private File getFile(String key) {
+		return new File(dir, String.format("%016x", hash(key)) + SUFFIX);
+	}
+
+	// replaces the body of every routine found in the cache by the optimized
+	// one and marks it cached, see Routine.compile; call before compiling
+	public void load(Program program) {
+		for (Routine r: program.getRoutines()) {
+			String key = genKey(r, r.getBody());
+			keys.add(key);
+			File file = getFile(key);
+			if (file.exists() && load(program, r, key, file)) {
+				r.cached = true;
+				file.setLastModified(System.currentTimeMillis());
+			}
+		}
+	}
+
+	private boolean load(Program program, Routine r, String key, File file) {
+		List<String> callees = new ArrayList<String>();
+		StringBuilder code = new StringBuilder();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				if (!(MAGIC + " " + VERSION).equals(in.readLine()))
+					return false;
+				int n = Integer.parseInt(in.readLine());
+				StringBuilder k = new StringBuilder();
+				for (int i = 0; i < n; i++)
+					k.append(in.readLine()).append('\n');
+				if (!k.toString().equals(key))
+					return false;	// another routine of the same hash
+
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("call "))
+						callees.add(line.substring(5));
+					else
+						code.append(relocate(line, r.getStartLine())).append('\n');
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("CompileCache.load error: " + e.getMessage());
+			return false;
+		} catch (NumberFormatException e) {
+			System.out.println("CompileCache.load error: " + file + " is corrupt");
+			return false;
+		}
+
+		StartScanner scanner = new StartScanner(ByteBuffer.wrap(code.toString().getBytes(StandardCharsets.ISO_8859_1)));
+		List<Variable> vars = null;
+		List<Stmt> body = new ArrayList<Stmt>();
+		int call = 0;
+		while (scanner.nextLine()) {
+			if (scanner.isMethod()) {
+				vars = scanner.parseMethod().getLocalVars();
+			} else if (scanner.isInstr()) {
+				Stmt s = scanner.parseInstr();
+				if (s == null)
+					return false;
+				if (s instanceof CallStmt) {
+					Routine callee = (call < callees.size()) ? program.getRoutine(callees.get(call++)) : null;
+					if (callee == null)
+						return false;
+					s.setRHS(0, new Code(callee.getStartLine()));
+					((CallStmt) s).setRoutine(callee);
+				}
+				body.add(s);
+			}
+		}
+		if (vars == null || body.isEmpty())
+			return false;
+
+		r.setLocalVars(vars);
+		r.setBody(body);
+		r.setEndLine(r.getStartLine() + body.size() - 1);
+		return true;
+	}
+
+	// saves every routine compiled (not cached) since load, then evicts;
+	// call after renumberStmt, so a routine is numbered from its entry
+	public void store(Program program) {
+		List<Routine> routines = program.getRoutines();
+		for (int i = 0; i < routines.size() && i < keys.size(); i++) {
+			Routine r = routines.get(i);
+			if (!r.cached && r.getBlocks().get(0) == r.getEntryBlock())
+				store(r, keys.get(i));
+		}
+		evict();
+	}
+
+	private void store(Routine r, String key) {
+		int base = r.getStartLine();
+		StringBuilder sb = new StringBuilder();
+		sb.append(MAGIC + " " + VERSION).append('\n');
+		String[] keyLines = key.split("\n");
+		sb.append(keyLines.length).append('\n');
+		sb.append(key);
+		sb.append(relocate(r.toString(), -base)).append('\n');
+		for (Block b: r.getBlocks())
+			for (Stmt s: b.body)
+				if (s instanceof CallStmt)
+					sb.append("call ").append(((CallStmt) s).getRoutine().getName()).append('\n');
+		sb.append(relocate(r.dump(), -base));
+
+		// written aside and renamed, so a reader never sees half an entry
+		File file = getFile(key);
+		File tmp = new File(dir, file.getName() + ".tmp");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+			try {
+				out.write(sb.toString());
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					tmp.delete();
+			}
+		} catch (IOException e) {
+			System.out.println("CompileCache.store error: " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	// the least recently used entries go until the rest fit in limit
+	private void evict() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+
+		long size = 0;
+		List<File> entries = new ArrayList<File>();
+		for (File f: files)
+			if (f.getName().endsWith(SUFFIX)) {
+				entries.add(f);
+				size += f.length();
+			}
+		if (size <= limit)
+			return;
+
+		Collections.sort(entries, new Comparator<File>() {
+
+			@Override
+			public int compare(File o1, File o2) {
+				long m1 = o1.lastModified(), m2 = o2.lastModified();
+				return (m1 < m2) ? -1 : (m1 > m2) ? 1 : o1.getName().compareTo(o2.getName());
+			}
+
+		});
+
+		for (int i = 0; i < entries.size() && size > limit; i++) {
+			File f = entries.get(i);
+			long length = f.length();
+			if (f.delete())
+				size -= length;
+		}
+	}
+}
@@ -1,14 +1,8 @@
 package compiler;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
-
-import attr.ConstantAttr;
-import attr.ConstantAttr.ConstantType;
 
 import stmt.AllocStmt;
 import stmt.ArithStmt;
@@ -29,185 +23,266 @@ import token.Register;
 import token.Token;
 import token.Variable;
 
+import attr.ConstantAttr;
+
+// Sparse conditional constant propagation. Flow edges are numbered per
+// destination block (edgeBase[dst.id] + position in dst's preds, the entry
+// edge last); the lattice is kept in parallel arrays indexed by SSA value id
+// and both worklists are int queues, so propagation allocates nothing.
 public class ConstantPropOpt {
-	private class FlowEdge {
-		public Block src;
-		public Block dst;
-		
-		public FlowEdge(Block src, Block dst) {
-			this.src = src;
-			this.dst = dst;
-		}
-	}
+
+	// lattice types, in ConstantAttr.ConstantType order
+	private static final byte TOP = 0;
+	private static final byte CONSTANT = 1;
+	private static final byte BOTTOM = 2;
 
 	private Routine routine;
+	private SSAValueTable values;
 	private DefUseAnalysis du;
-	
-	private HashSet<String> executeFlag = new HashSet<String>();
-	private List<FlowEdge> flowWorkList = new LinkedList<FlowEdge>();
-	private List<Stmt> ssaWorkList = new LinkedList<Stmt>();
-	private HashMap<String, ConstantAttr> varAttr = new HashMap<String, ConstantAttr>();
-	
+
+	// flow edges
+	private int[] edgeBase;	// by block id
+	private Block[] edgeSrc;
+	private Block[] edgeDst;
+	private int entryEdge;
+	private BitSet executed;
+	private int[] reach;	// executed edges into a block, by block id
+
+	private IntQueue flowWorkList = new IntQueue();
+	private IntQueue ssaWorkList = new IntQueue();	// value ids whose uses need a visit
+
+	// lattice, by value id
+	private byte[] latticeType;
+	private int[] latticeValue;
+
+	// result of the last evaluate/meet
+	private byte resultType;
+	private int resultValue;
+
 	public int varCounter = 0;
-	
+
 	public ConstantPropOpt(Routine r) {
 		this.routine = r;
-		this.du = new DefUseAnalysis(r);
+		this.values = r.ssaTrans.getValues();
+		this.du = new DefUseAnalysis(r, values);
 	}
-	
-	private String getFlowEdgeString(FlowEdge e) {
-		if (e.src == null)
-			return "b#" + "->" + "b#" + e.dst.getIndex();
-		else
-			return "b#" + e.src.getIndex() + "->" + "b#" + e.dst.getIndex(); 
-	}
-	
-	private String getFlowEdgeString(Block src, Block dst) {
-		if (src == null)
-			return "b#" + "->" + "b#" + dst.getIndex();
-		else
-			return "b#" + src.getIndex() + "->" + "b#" + dst.getIndex();
+
+	private void genFlowEdges() {
+		List<Block> blocks = routine.getBlocks();
+		edgeBase = new int[routine.getBlockIdBound()];
+		reach = new int[edgeBase.length];
+
+		int n = 0;
+		for (Block b: blocks) {
+			edgeBase[b.id] = n;
+			n += b.getPreds().size();
+		}
+		entryEdge = n;
+
+		edgeSrc = new Block[n + 1];
+		edgeDst = new Block[n + 1];
+		for (Block b: blocks)
+			for (int i = 0; i < b.getPreds().size(); i++) {
+				edgeSrc[edgeBase[b.id] + i] = b.getPreds().get(i);
+				edgeDst[edgeBase[b.id] + i] = b;
+			}
+		edgeDst[entryEdge] = routine.getEntryBlock();
+
+		executed = new BitSet(n + 1);
 	}
-	
+
 	private void insertFlowWorkList(Block src, Block dst) {
-		flowWorkList.add(new FlowEdge(src, dst));
+		List<Block> preds = dst.getPreds();
+		for (int i = 0; i < preds.size(); i++)
+			if (preds.get(i) == src) {
+				flowWorkList.add(edgeBase[dst.id] + i);
+				return;
+			}
+		System.out.println("ConstantPropOpt.insertFlowWorkList error: block#" + src.getIndex() + " isn't a pred of block#" + dst.getIndex());
 	}
-	
-	private void insertSSAWorkList(String var) {
-		for (Stmt stmt: du.getUseList(var))
-			ssaWorkList.add(stmt);
+
+	private void insertSSAWorkList(int id) {
+		ssaWorkList.add(id);
 	}
-	
-	private ConstantAttr getTokenAttr(Token t) {
-		if (t instanceof Variable || t instanceof Register)
-			return varAttr.get(t.toSSAString());
-		else if (t instanceof Constant)
-			return new ConstantAttr(((Constant) t).getValue());
+
+	// lattice of a value (id >= 0) or of a constant operand (id == -1)
+	private byte tokenType(Token t) {
+		if (t instanceof Variable || t instanceof Register) {
+			int id = values.getId(t);
+			return (id < 0) ? BOTTOM : latticeType[id];
+		} else if (t instanceof Constant || t instanceof Offset)
+			return CONSTANT;
+		return BOTTOM;
+	}
+
+	private int tokenValue(Token t) {
+		if (t instanceof Variable || t instanceof Register) {
+			int id = values.getId(t);
+			return (id < 0) ? 0 : latticeValue[id];
+		} else if (t instanceof Constant)
+			return ((Constant) t).getValue();
 		else if (t instanceof Offset)
-			return new ConstantAttr(((Offset) t).getValue());
-		else if (t instanceof GP)
-			return new ConstantAttr(ConstantType.Bottom);
-		return null;
+			return ((Offset) t).getValue();
+		return 0;
+	}
+
+	private void setResult(byte type, int value) {
+		resultType = type;
+		resultValue = value;
+	}
+
+	// phi meet of (ta, va) and (tb, vb)
+	private void meet(byte ta, int va, byte tb, int vb) {
+		if (ta == BOTTOM || tb == BOTTOM)
+			setResult(BOTTOM, 0);
+		else if (ta == TOP)
+			setResult(tb, vb);
+		else if (tb == TOP)
+			setResult(ta, va);
+		else if (va == vb)
+			setResult(CONSTANT, va);
+		else
+			setResult(BOTTOM, 0);
 	}
-	
+
+	private void evaluate(Operator op, byte ta, int va, byte tb, int vb) {
+		switch (op) {
+		case mul:
+			if ((ta == BOTTOM && tb == TOP) || (tb == BOTTOM && ta == TOP))
+				setResult(CONSTANT, 0);
+			else if ((ta == CONSTANT && va == 0) || (tb == CONSTANT && vb == 0))
+				setResult(CONSTANT, 0);
+			else if (ta == TOP || tb == TOP)
+				setResult(TOP, 0);
+			else if (ta == BOTTOM || tb == BOTTOM)
+				setResult(BOTTOM, 0);
+			else
+				setResult(CONSTANT, ConstantAttr.constantCalc(op, va, vb));
+			break;
+		case add: case sub: case div: case mod:
+		case cmpeq: case cmple: case cmplt:
+			if ((ta == BOTTOM && tb == TOP) || (tb == BOTTOM && ta == TOP))
+				setResult(CONSTANT, 0);
+			else if (ta == TOP || tb == TOP)
+				setResult(TOP, 0);
+			else if (ta == BOTTOM || tb == BOTTOM)
+				setResult(BOTTOM, 0);
+			else
+				setResult(CONSTANT, ConstantAttr.constantCalc(op, va, vb));
+			break;
+		default:
+			System.out.println("ConstantPropOpt.evaluate error: unsupported operator " + op);
+			setResult(BOTTOM, 0);
+		}
+	}
+
+	// store the last result for the value defined by lhs, queue its uses if it changed
+	private void update(Token lhs) {
+		int id = values.getId(lhs);
+		byte oldType = latticeType[id];
+		if (oldType == resultType && (resultType != CONSTANT || latticeValue[id] == resultValue))
+			return;
+
+		latticeType[id] = resultType;
+		latticeValue[id] = resultValue;
+		insertSSAWorkList(id);
+	}
+
 	private void visitPhiNode(PhiNode phiNode) {
-		
+
 		List<Token> rhs = phiNode.getRHS();
-		String name = phiNode.getLHS().get(0).toSSAString();
-		ConstantAttr oldAttr = varAttr.get(name);
-		ConstantAttr newAttr = ConstantAttr.operate(Stmt.Operator.phi, 
-				getTokenAttr(rhs.get(0)),
-				getTokenAttr(rhs.get(1)));
-		
-		for (int i = 2; i < rhs.size(); i++)
-			newAttr = ConstantAttr.operate(Stmt.Operator.phi, newAttr, getTokenAttr(rhs.get(i)));
-		
-		if (!newAttr.equals(oldAttr)) {
-			varAttr.put(name, newAttr);
-			insertSSAWorkList(name);
+		Token t0 = rhs.get(0);
+		Token t1 = rhs.get(1);
+		meet(tokenType(t0), tokenValue(t0), tokenType(t1), tokenValue(t1));
+
+		for (int i = 2; i < rhs.size(); i++) {
+			Token t = rhs.get(i);
+			meet(resultType, resultValue, tokenType(t), tokenValue(t));
 		}
-		
-//		System.out.println(phiNode.toSSAString() + " old:" + oldAttr + ", new:" + newAttr);
+
+		update(phiNode.getLHS().get(0));
 	}
-	
+
 	private void visitArithStmt(ArithStmt stmt) {
-		
+
 		List<Token> rhs = stmt.getRHS();
-		Token lhs = stmt.getLHS().get(0);
-		String name = lhs.toSSAString();
-		ConstantAttr newAttr;
-		ConstantAttr oldAttr = getTokenAttr(lhs);
-		
-		Stmt.Operator op = stmt.getOperator();
-		if (op == Stmt.Operator.neg)
-			newAttr = ConstantAttr.operate(op, getTokenAttr(rhs.get(0)));
-		else
-			newAttr = ConstantAttr.operate(op, getTokenAttr(rhs.get(0)), getTokenAttr(rhs.get(1)));
-		
-		if (!newAttr.equals(oldAttr)) {
-			varAttr.put(name, newAttr);
-			insertSSAWorkList(name);
+		Token t0 = rhs.get(0);
+
+		Operator op = stmt.getOperator();
+		if (op == Operator.neg) {
+			byte type = tokenType(t0);
+			setResult(type, (type == CONSTANT) ? -tokenValue(t0) : tokenValue(t0));
+		} else {
+			Token t1 = rhs.get(1);
+			evaluate(op, tokenType(t0), tokenValue(t0), tokenType(t1), tokenValue(t1));
 		}
-		
-//		System.out.println(stmt.toSSAString() + " old:" + oldAttr + ", new:" + newAttr);
+
+		update(stmt.getLHS().get(0));
 	}
-	
+
 	private void visitMoveStmt(MoveStmt stmt) {
 		Token rhs = stmt.getRHS().get(0);
-		Token lhs = stmt.getLHS().get(0);
-		
-		ConstantAttr oldAttr = getTokenAttr(lhs);
-		ConstantAttr newAttr = getTokenAttr(rhs);
-		
-		if (!newAttr.equals(oldAttr)) {
-			varAttr.put(lhs.toSSAString(), newAttr);
-			insertSSAWorkList(lhs.toSSAString());
-		}
-		
-//		System.out.println(stmt.toSSAString() + " old:" + oldAttr + ", new:" + newAttr);
+
+		setResult(tokenType(rhs), tokenValue(rhs));
+		update(stmt.getLHS().get(0));
 	}
-	
+
 	private void visitBranchStmt(BranchStmt stmt) {
 		int brVal;
-		
-		if (stmt.getOperator() == Stmt.Operator.blbc)
+
+		if (stmt.getOperator() == Operator.blbc)
 			brVal = 0;
-		else if (stmt.getOperator() == Stmt.Operator.blbs)
+		else if (stmt.getOperator() == Operator.blbs)
 			brVal = 1;
 		else
 			return;
-		
+
 		Register r = (Register) stmt.getRHS().get(0);
-		ConstantAttr attr = varAttr.get(r.toSSAString());
+		byte type = tokenType(r);
 		Block b = stmt.getBlock();
-		
-		if (attr.type == ConstantAttr.ConstantType.Bottom) {
+
+		if (type == BOTTOM) {
 			insertFlowWorkList(b, b.getSuccs().get(0));
 			insertFlowWorkList(b, b.getSuccs().get(1));
-		} else if (attr.type == ConstantAttr.ConstantType.Constant) {
+		} else if (type == CONSTANT) {
 			Block dst = stmt.getBranchBlock();
-			if (attr.value == brVal) {
+			if (tokenValue(r) == brVal) {
 				insertFlowWorkList(b, dst);
 			} else {
 				if (dst != b.getSuccs().get(0))
 					insertFlowWorkList(b, b.getSuccs().get(0));
-				else 
+				else
 					insertFlowWorkList(b, b.getSuccs().get(1));
 			}
 		} else {
 			System.out.println("ConstantPropOpt.visitBranch error: branch reg isn't initialized (" + stmt.toSSAString() + ")");
 		}
 	}
-	
+
 	private void visitOtherStmt(Stmt stmt) {
+		boolean bottom = false;
 		if (stmt instanceof MemoryStmt) {
-			if (stmt.getOperator() == Operator.load) {
-				ConstantAttr attr = getTokenAttr(stmt.getLHS().get(0));
-				attr.type = ConstantType.Bottom;
-			}
+			bottom = stmt.getOperator() == Operator.load;
 		} else if (stmt instanceof DynamicStmt) {
-			if (stmt.getOperator() == Operator.lddynamic) {
-				ConstantAttr attr = getTokenAttr(stmt.getLHS().get(0));
-				attr.type = ConstantType.Bottom;
-			}
+			bottom = stmt.getOperator() == Operator.lddynamic;
 		} else if (stmt instanceof AllocStmt) {
 			// alloc type on heap, it should be bottom
-			ConstantAttr attr = getTokenAttr(stmt.getLHS().get(0));
-			attr.type = ConstantType.Bottom;
+			bottom = true;
 		} else if (stmt instanceof ObjCmpStmt) {
 			// type/null check, bottom
-			ConstantAttr attr = getTokenAttr(stmt.getLHS().get(0));
-			attr.type = ConstantType.Bottom;
+			bottom = true;
 		} else if (stmt instanceof SafetyStmt) {
 			// safety check, bottom
-			if (stmt.getLHS().size() > 0) {
-				ConstantAttr attr = getTokenAttr(stmt.getLHS().get(0));
-				attr.type = ConstantType.Bottom;
-			}
+			bottom = stmt.getLHS().size() > 0;
 		}
 		// other stmt doesn't have lhs
+
+		if (bottom) {
+			setResult(BOTTOM, 0);
+			update(stmt.getLHS().get(0));
+		}
 	}
-	
+
 	private void visitStmt(Stmt stmt) {
 		if (stmt instanceof ArithStmt) {
 			visitArithStmt((ArithStmt) stmt);
@@ -221,37 +296,31 @@ public class ConstantPropOpt {
 			visitOtherStmt(stmt);
 		}
 	}
-	
+
 	private void visitStmt(Block b) {
 //		System.out.println("visit block#" + b.index);
-		
+
 		for (PhiNode phiNode: b.getPhiNode())
 			visitPhiNode(phiNode);
-		
+
 		for (Stmt stmt: b.body)
 			visitStmt(stmt);
 	}
-	
+
 	private int reachCount(Block block) {
-		int count = 0;
-		for (Block pred: block.getPreds())
-			if (executeFlag.contains(getFlowEdgeString(pred, block)))
-				count ++;
-		if (executeFlag.contains(getFlowEdgeString(null, block)))
-			count ++;
-		
-		return count;
+		return reach[block.id];
 	}
-	
-	private boolean containsPhiNode(List<Stmt> use) {
-		for (Stmt s: use)
-			if (s instanceof PhiNode)
+
+	private boolean containsPhiNode(int id) {
+		for (int i = 0; i < du.getUseCount(id); i++)
+			if (du.getUse(id, i) instanceof PhiNode)
 				return true;
 		return false;
 	}
-	
+
 	private void eliminateCode() {
-		
+
+		// reach counts stay valid: removed blocks have no executed out edges
 		Iterator<Block> itBlock = routine.getBlocks().iterator();
 		while (itBlock.hasNext()) {
 			Block block = itBlock.next();
@@ -274,116 +343,126 @@ public class ConstantPropOpt {
 					succ.getPreds().remove(block);
 				}
 				itBlock.remove();
+				routine.invalidateOrder();
 			}
 		}
-		
-		Set<String> keys = varAttr.keySet();
-		
-		for (String var: keys) {
-			ConstantAttr attr = varAttr.get(var);
-			
-			if (attr.type == ConstantType.Constant) {
-				
+
+		for (int var = 0; var < latticeType.length; var++) {
+			if (!du.isDefined(var))
+				continue;
+
+			if (latticeType[var] == CONSTANT) {
+
 				varCounter ++;
-				
+
+				int value = latticeValue[var];
 				Stmt def = du.getDef(var);
-				List<Stmt> use = du.getUseList(var);
-				
-				if (!containsPhiNode(use)) {
+
+				if (!containsPhiNode(var)) {
 					def.getBlock().removeStmt(def);
-					for (Stmt stmt: use) {
+					for (int u = 0; u < du.getUseCount(var); u++) {
+						Stmt stmt = du.getUse(var, u);
 						if (stmt instanceof BranchStmt) {
 							int brVal;
-							
-							if (stmt.getOperator() == Stmt.Operator.blbc)
+
+							if (stmt.getOperator() == Operator.blbc)
 								brVal = 0;
 							else // blbs
 								brVal = 1;
-							
-							if (attr.value == brVal) {
-								stmt.getBlock().replaceStmt(stmt, new BranchStmt(((BranchStmt) stmt).getBranchBlock()));
+
+							if (value == brVal) {
+								stmt.getBlock().replaceStmt(stmt, new BranchStmt(routine.newStmtIndex(), ((BranchStmt) stmt).getBranchBlock()));
 							} else {
 								stmt.getBlock().removeStmt(stmt);
 							}
-							
+
 						} else {
 							int i;
 							for (i = 0; i < stmt.getRHS().size(); i++) {
 								Token t = stmt.getRHS().get(i);
-								if (t.toSSAString().equals(var))
+								if (values.getId(t) == var)
 									break;
 							}
-							stmt.setRHS(i, new Constant(attr.value));
+							stmt.setRHS(i, new Constant(value));
 						}
 					}
 				}
-			} else if (attr.type == ConstantType.Top) {
+			} else if (latticeType[var] == TOP) {
 				Stmt def = du.getDef(var);
-				
+
 				if (!(def instanceof EntryStmt))
 					def.getBlock().removeStmt(def);
 			}
 		}
 	}
-	
+
 	public void optimize() {
-		
+
 		du.analyze();
-		
+		genFlowEdges();
+
 		Block entryBlock = routine.getEntryBlock();
-		
-		Set<String> varName = du.getAllVarName();
-		for (String s: varName)
-			varAttr.put(s, new ConstantAttr(ConstantAttr.ConstantType.Top));
-		
+
+		// everything starts at top
+		latticeType = new byte[du.size()];
+		latticeValue = new int[du.size()];
+
 		// set parameters bottom
 		for (Token t: entryBlock.body.get(0).getLHS())
-			if (((Variable) t).offset > 0) {
-				ConstantAttr attr = varAttr.get(t.toSSAString());
-				attr.type = ConstantAttr.ConstantType.Bottom;
-			}
-		
-		FlowEdge entryEdge = new FlowEdge(null, entryBlock);
+			if (((Variable) t).offset > 0)
+				latticeType[values.getId(t)] = BOTTOM;
+
 		flowWorkList.add(entryEdge);
-		
+
 		while (!flowWorkList.isEmpty() || !ssaWorkList.isEmpty()) {
 			while (!flowWorkList.isEmpty()) {
-				
-				FlowEdge edge = flowWorkList.get(0);
-				flowWorkList.remove(0);
-				
-				if (executeFlag.contains(getFlowEdgeString(edge)))
+
+				int edge = flowWorkList.remove();
+
+				if (executed.get(edge))
 					continue;
-				executeFlag.add(getFlowEdgeString(edge));
-				
-				Block block = edge.dst;
-				
+				executed.set(edge);
+
+				Block block = edgeDst[edge];
+				reach[block.id] ++;
+
 				int count = reachCount(block);
 				if (count == 1)
 					visitStmt(block);
-				
+
 				if (block.getSuccs().size() == 1)
 					insertFlowWorkList(block, block.getSuccs().get(0));
-				
+
 			}
-			
+
+			// visiting all uses of a value at once keeps the stmt order
+			// of a stmt worklist
 			while (!ssaWorkList.isEmpty()) {
-				Stmt stmt = ssaWorkList.get(0);
-				ssaWorkList.remove(0);
-				
-				Block block = stmt.getBlock();
-				if (reachCount(block) > 0)
-					visitStmt(stmt);
+				int id = ssaWorkList.remove();
+
+				for (int i = 0; i < du.getUseCount(id); i++) {
+					Stmt stmt = du.getUse(id, i);
+					if (reachCount(stmt.getBlock()) > 0)
+						visitStmt(stmt);
+				}
 			}
 		}
-		
+
 		eliminateCode();
 	}
-	
+
+	private String latticeString(int id) {
+		switch (latticeType[id]) {
+		case TOP: return "Top";
+		case CONSTANT: return "" + latticeValue[id];
+		default: return "Bottom";
+		}
+	}
+
 	public void dump() {
 		routine.dumpSSA();
-		Set<String> keys = varAttr.keySet();
-		for (String key: keys)
-			System.out.println(key + ": " + varAttr.get(key));
+		for (int id = 0; id < latticeType.length; id++)
+			if (du.isDefined(id))
+				System.out.println(values.getName(id) + ": " + latticeString(id));
 	}
 }
@@ -1,95 +1,119 @@
 package compiler;
 
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Set;
 
 import stmt.EntryStmt;
-import stmt.MoveStmt;
 import stmt.PhiNode;
 import stmt.Stmt;
-import token.Register;
 import token.Token;
-import token.Variable;
 
+// Def and use stmts of every SSA value, indexed by SSAValueTable id. A stmt
+// using a value twice is in its use list twice.
 public class DefUseAnalysis {
 
 	private Routine routine;
-	private HashMap<String, Stmt> varDef = new HashMap<String, Stmt>();;
-	private HashMap<String, List<Stmt>> defUse = new HashMap<String, List<Stmt>>();;
-	
-	public DefUseAnalysis(Routine r) {
+	private SSAValueTable values;
+	private Stmt[] varDef;
+	private Stmt[][] defUse;
+	private int[] useCount;
+
+	public DefUseAnalysis(Routine r, SSAValueTable values) {
 		this.routine = r;
+		this.values = values;
+	}
+
+	public SSAValueTable getValues() { return values; }
+
+	// ids range over [0, size())
+	public int size() { return varDef.length; }
+
+	public boolean isDefined(int id) { return varDef[id] != null; }
+
+	public Stmt getDef(int id) { return varDef[id]; }
+
+	public int getUseCount(int id) { return useCount[id]; }
+
+	public Stmt getUse(int id, int i) { return defUse[id][i]; }
+
+	private void define(Token t, Stmt s) {
+		int id = values.getId(t);
+		if (id >= 0) {
+			varDef[id] = s;
+			defUse[id] = new Stmt[2];
+			useCount[id] = 0;
+		}
 	}
-	
-	public Set<String> getAllVarName() { return varDef.keySet(); }
-	
-	public List<Stmt> getUseList(String var) { return defUse.get(var); }
-	
-	public Stmt getDef(String var) { return varDef.get(var); }
-	
+
+	private void addUse(Token t, Stmt s) {
+		int id = values.getId(t);
+		if (id < 0 || defUse[id] == null)
+			return;
+		if (useCount[id] == defUse[id].length) {
+			Stmt[] grown = new Stmt[useCount[id] * 2];
+			System.arraycopy(defUse[id], 0, grown, 0, useCount[id]);
+			defUse[id] = grown;
+		}
+		defUse[id][useCount[id]++] = s;
+	}
+
 	public void analyze() {
-		
+
+		int n = values.size();
+		varDef = new Stmt[n];
+		defUse = new Stmt[n][];
+		useCount = new int[n];
+
 		List<Block> blocks = routine.getBlocks();
 		for (Block b: blocks) {
-			for (PhiNode phiNode: b.getPhiNode()) {
-				String name = phiNode.getLHS().get(0).toSSAString();
-				varDef.put(name, phiNode);
-				defUse.put(name, new LinkedList<Stmt>());
-			}
+			for (PhiNode phiNode: b.getPhiNode())
+				define(phiNode.getLHS().get(0), phiNode);
 			for (Stmt s: b.body)
 				for (Token t: s.getLHS())
-					if (t instanceof Variable || t instanceof Register) {
-						String name = t.toSSAString();
-						varDef.put(name, s);
-						defUse.put(name, new LinkedList<Stmt>());
-					}
+					define(t, s);
 		}
-		
+
 		for (Block b: blocks) {
-			for (PhiNode phiNode: b.getPhiNode()) {
-				for (Token t: phiNode.getRHS()) {
-					String name = t.toSSAString();
-					List<Stmt> list = defUse.get(name);
-					if (list != null)
-						list.add(phiNode);
-				}
-			}
+			for (PhiNode phiNode: b.getPhiNode())
+				for (Token t: phiNode.getRHS())
+					addUse(t, phiNode);
 
 			for (Stmt s: b.body)
 				for (Token t: s.getRHS())
-					if (t instanceof Variable || t instanceof Register) {
-						String name = t.toSSAString();
-						List<Stmt> list = defUse.get(name);
-						if (list != null)
-							list.add(s);
-					}
+					addUse(t, s);
 		}
 	}
-	
+
+	// drop the first occurrence of stmt from the use list of id
+	private boolean removeUse(int id, Stmt stmt) {
+		Stmt[] list = defUse[id];
+		for (int i = 0; i < useCount[id]; i++)
+			if (list[i] == stmt) {
+				System.arraycopy(list, i + 1, list, i, useCount[id] - i - 1);
+				list[--useCount[id]] = null;
+				return true;
+			}
+		return false;
+	}
+
 	private void updateUseList(Stmt stmt) {
 		for (Token t: stmt.getRHS()) {
-			if (t instanceof Variable || t instanceof Register) {
-				String name = t.toSSAString();
-				List<Stmt> list = defUse.get(name);
-				if (list != null) {
-					list.remove(stmt);
-					if (list.size() == 0)
-						removeToken(t.toSSAString());
-				}
+			int id = values.getId(t);
+			if (id >= 0 && defUse[id] != null) {
+				removeUse(id, stmt);
+				if (useCount[id] == 0)
+					removeToken(id);
 			}
 		}
 	}
-	
-	private void removeToken(String var) {
-		Stmt def = varDef.get(var);
+
+	private void removeToken(int id) {
+		Stmt def = varDef[id];
 		if (def instanceof EntryStmt) {
 			Iterator<Token> it = def.getLHS().iterator();
 			while (it.hasNext()) {
 				Token t = it.next();
-				if (t.toSSAString().equals(var)) {
+				if (values.getId(t) == id) {
 					it.remove();
 					break;
 				}
@@ -101,34 +125,28 @@ public class DefUseAnalysis {
 			updateUseList(def);
 		}
 	}
-	
+
 	public void eliminateUnused() {
-		Set<String> keySet = defUse.keySet();
-		for (String var: keySet) {
-			List<Stmt> useList = defUse.get(var);
-			if (useList.size() == 0) {
-				removeToken(var);
-			}
-			//System.out.println("var " + key + " def: " + varDef.get(key).index);
-		}
+		for (int id = 0; id < varDef.length; id++)
+			if (varDef[id] != null && useCount[id] == 0)
+				removeToken(id);
 	}
-	
+
 	public void dump() {
 		routine.dumpSSA();
-		
+
 		System.out.println();
-		
-		Set<String> keySet = varDef.keySet();
-		for (String key: keySet) {
-			System.out.println("var " + key + " def: " + varDef.get(key).index);
-		}
-		
-		keySet = varDef.keySet();
-		for (String key: keySet) {
-			System.out.print("var " + key + " use:");
-			for (Stmt s: defUse.get(key))
-				System.out.print(" " + s.index);
-			System.out.println();
-		}
+
+		for (int id = 0; id < varDef.length; id++)
+			if (varDef[id] != null)
+				System.out.println("var " + values.getName(id) + " def: " + varDef[id].index);
+
+		for (int id = 0; id < varDef.length; id++)
+			if (varDef[id] != null) {
+				System.out.print("var " + values.getName(id) + " use:");
+				for (int i = 0; i < useCount[id]; i++)
+					System.out.print(" " + defUse[id][i].index);
+				System.out.println();
+			}
 	}
 }
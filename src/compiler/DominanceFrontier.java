@@ -0,0 +1,73 @@
+package compiler;
+
+import java.util.BitSet;
+
+// Dominance frontiers as one BitSet of block numbers (see BlockOrder) per
+// block, computed by walking up the dominator tree from every predecessor
+// of each block (Cytron et al., in the formulation of Cooper, Harvey and
+// Kennedy). Needs the idoms from genDominator/genDominatorLT.
+public class DominanceFrontier {
+	
+	private BlockOrder order;
+	private BitSet[] df;
+	
+	public DominanceFrontier(Routine routine) {
+		order = routine.getOrder();
+		
+		int n = order.blocks.length;
+		df = new BitSet[n];
+		for (int i = 0; i < n; i++)
+			df[i] = new BitSet();
+		
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			Block idom = block.getIdom();
+			if (idom == null)
+				continue;	// unreachable
+			
+			for (Block pred: block.getPreds()) {
+				Block runner = pred;
+				while (runner != null && runner != idom) {
+					int r = order.indexOf(runner);
+					// an earlier walk already went from here up to idom
+					if (r == -1 || df[r].get(b))
+						break;
+					df[r].set(b);
+					// the entry block is its own idom
+					runner = (runner.getIdom() == runner) ? null : runner.getIdom();
+				}
+			}
+		}
+	}
+	
+	public BlockOrder getOrder() { return order; }
+	
+	// DF(b); do not modify
+	public BitSet get(Block b) { return df[order.indexOf(b)]; }
+	
+	// iterated dominance frontier DF+(S) of the blocks in s
+	public BitSet idf(BitSet s) {
+		BitSet result = new BitSet(df.length);
+		BitSet onWorkList = (BitSet) s.clone();
+		int[] workList = new int[df.length];
+		int top = 0;
+		
+		for (int b = s.nextSetBit(0); b >= 0; b = s.nextSetBit(b + 1))
+			workList[top++] = b;
+		
+		while (top > 0) {
+			BitSet frontier = df[workList[--top]];
+			for (int y = frontier.nextSetBit(0); y >= 0; y = frontier.nextSetBit(y + 1)) {
+				if (result.get(y))
+					continue;
+				result.set(y);
+				if (!onWorkList.get(y)) {
+					onWorkList.set(y);
+					workList[top++] = y;
+				}
+			}
+		}
+		
+		return result;
+	}
+}
@@ -0,0 +1,85 @@
+package compiler;
+
+// int -> int map with open addressing and linear probing; get returns -1
+// for missing keys, so values must be >= 0. Any int is a key: FREE marks
+// free slots, so that key is kept aside in hasMinKey / minValue.
+public class IntIntMap {
+	
+	private static final int FREE = Integer.MIN_VALUE;
+	
+	private int[] keys;
+	private int[] values;
+	private int size = 0;		// in keys, without the min key
+	private boolean hasMinKey = false;
+	private int minValue;
+	
+	public IntIntMap() {
+		this(16);
+	}
+	
+	public IntIntMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2)
+			capacity <<= 1;
+		keys = new int[capacity];
+		values = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			keys[i] = FREE;
+	}
+	
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	public int get(int key) {
+		if (key == FREE)
+			return hasMinKey ? minValue : -1;
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != FREE; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return values[i];
+		return -1;
+	}
+	
+	public void put(int key, int value) {
+		if (key == FREE) {
+			hasMinKey = true;
+			minValue = value;
+			return;
+		}
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; keys[i] != FREE; i = (i + 1) & mask)
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			rehash();
+	}
+	
+	public int size() { return hasMinKey ? size + 1 : size; }
+	
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = FREE;
+		
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == FREE)
+				continue;
+			int i = hash(oldKeys[j]) & mask;
+			while (keys[i] != FREE)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package compiler;
+
+// FIFO of ints in a ring buffer; grows by doubling, never shrinks.
+public class IntQueue {
+	
+	private int[] items;
+	private int head = 0;
+	private int size = 0;
+	
+	public IntQueue() {
+		this(16);
+	}
+	
+	public IntQueue(int capacity) {
+		items = new int[Math.max(capacity, 4)];
+	}
+	
+	public boolean isEmpty() { return size == 0; }
+	
+	public int size() { return size; }
+	
+	public void add(int v) {
+		if (size == items.length) {
+			int[] grown = new int[items.length * 2];
+			for (int i = 0; i < size; i++)
+				grown[i] = items[(head + i) % items.length];
+			items = grown;
+			head = 0;
+		}
+		items[(head + size) % items.length] = v;
+		size++;
+	}
+	
+	public int remove() {
+		int v = items[head];
+		head = (head + 1) % items.length;
+		size--;
+		return v;
+	}
+	
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,90 @@
+package compiler;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import stmt.Stmt;
+import token.Token;
+import token.Variable;
+
+// Block level liveness of the local variables of a routine before SSA.
+// Variables are numbered by their position in Routine.getLocalVars() and
+// matched by name, like SSATransform does.
+public class Liveness {
+	
+	private BlockOrder order;
+	private BitSet[] use;		// read before any write in the block
+	private BitSet[] def;
+	private BitSet[] liveIn;
+	private BitSet[] liveOut;
+	private BitSet nonLocal = new BitSet();	// in use of some block
+	
+	public Liveness(Routine routine) {
+		order = routine.getOrder();
+		
+		List<Variable> localVars = routine.getLocalVars();
+		Map<String, Integer> varIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < localVars.size(); i++)
+			varIndex.put(localVars.get(i).name, i);
+		
+		int n = order.blocks.length;
+		use = new BitSet[n];
+		def = new BitSet[n];
+		liveIn = new BitSet[n];
+		liveOut = new BitSet[n];
+		
+		for (int b = 0; b < n; b++) {
+			use[b] = new BitSet();
+			def[b] = new BitSet();
+			liveIn[b] = new BitSet();
+			liveOut[b] = new BitSet();
+			
+			for (Stmt stmt: order.blocks[b].body) {
+				for (Token t: stmt.getRHS())
+					if (t instanceof Variable) {
+						Integer i = varIndex.get(((Variable) t).name);
+						if (i != null && !def[b].get(i))
+							use[b].set(i);
+					}
+				for (Token t: stmt.getLHS())
+					if (t instanceof Variable) {
+						Integer i = varIndex.get(((Variable) t).name);
+						if (i != null)
+							def[b].set(i);
+					}
+			}
+			nonLocal.or(use[b]);
+		}
+		
+		// backward, so postorder converges fastest
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b: order.postorder) {
+				BitSet out = liveOut[b];
+				for (Block succ: order.blocks[b].getSuccs()) {
+					int s = order.indexOf(succ);
+					if (s != -1)
+						out.or(liveIn[s]);
+				}
+				
+				BitSet in = (BitSet) out.clone();
+				in.andNot(def[b]);
+				in.or(use[b]);
+				if (!in.equals(liveIn[b])) {
+					liveIn[b] = in;
+					changed = true;
+				}
+			}
+		}
+	}
+	
+	public BitSet getLiveIn(Block b) { return liveIn[order.indexOf(b)]; }
+	
+	public BitSet getLiveOut(Block b) { return liveOut[order.indexOf(b)]; }
+	
+	// variables live across some block boundary (Briggs' "global names")
+	public BitSet getNonLocal() { return nonLocal; }
+}
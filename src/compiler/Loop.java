@@ -0,0 +1,87 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// A natural loop: the header and every block that reaches one of its back
+// edges without passing the header. Blocks are numbered as in the
+// BlockOrder of the LoopForest that built it.
+public class Loop {
+
+	public final Block header;
+	public final Loop parent;
+	public final int depth;		// 1 for an outermost loop
+
+	private BlockOrder order;
+	private BitSet body;
+	private List<Block> latches = new ArrayList<Block>();
+	private List<Loop> children = new ArrayList<Loop>();
+
+	Loop(Block header, Loop parent, BlockOrder order, BitSet body, List<Block> latches) {
+		this.header = header;
+		this.parent = parent;
+		this.depth = (parent == null) ? 1 : parent.depth + 1;
+		this.order = order;
+		this.body = body;
+		this.latches.addAll(latches);
+		if (parent != null)
+			parent.children.add(this);
+	}
+
+	public boolean contains(Block b) {
+		int i = order.indexOf(b);
+		return i >= 0 && body.get(i);
+	}
+
+	// block numbers of the body; do not modify
+	public BitSet getBody() { return body; }
+
+	// body in reverse postorder, header first
+	public List<Block> getBlocks() {
+		List<Block> list = new ArrayList<Block>();
+		for (int b: order.rpo)
+			if (body.get(b))
+				list.add(order.blocks[b]);
+		return list;
+	}
+
+	// sources of the back edges
+	public List<Block> getLatches() { return latches; }
+
+	public List<Loop> getChildren() { return children; }
+
+	// blocks of the loop with a successor outside it
+	public List<Block> getExitingBlocks() {
+		List<Block> list = new ArrayList<Block>();
+		for (Block b: getBlocks())
+			for (Block succ: b.getSuccs())
+				if (!contains(succ)) {
+					list.add(b);
+					break;
+				}
+		return list;
+	}
+
+	// the only pred of the header outside the loop if it has no other
+	// succ, null if the loop has no such preheader
+	public Block getPreheader() {
+		Block pre = null;
+		for (Block pred: header.getPreds())
+			if (!contains(pred)) {
+				if (pre != null)
+					return null;
+				pre = pred;
+			}
+		return (pre != null && pre.getSuccs().size() == 1) ? pre : null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("loop#" + header.getIndex() + " depth " + depth + ":");
+		for (Block b: getBlocks())
+			sb.append(" " + b.getIndex());
+		return sb.toString();
+	}
+}
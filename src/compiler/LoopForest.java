@@ -0,0 +1,98 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+// Natural loops of a routine and their nesting. An edge t -> h is a back
+// edge if h dominates t; the loop of h is h plus every block reaching such
+// a t without passing h, all back edges of h together. Two natural loops
+// are disjoint or nested, so headers in DFS preorder (outer before inner)
+// give the nesting. Needs the idoms from genDominator/genDominatorLT.
+public class LoopForest {
+
+	private BlockOrder order;
+	private List<Loop> loops = new ArrayList<Loop>();	// outer before inner
+	private List<Loop> roots = new ArrayList<Loop>();
+	private Loop[] innermost;	// by block number, null outside any loop
+
+	public LoopForest(Routine routine) {
+		order = routine.getOrder();
+		innermost = new Loop[order.blocks.length];
+
+		for (int h: order.preorder) {
+			Block header = order.blocks[h];
+			BitSet body = null;
+			List<Block> latches = new ArrayList<Block>();
+			IntQueue work = new IntQueue();
+
+			for (Block pred: header.getPreds()) {
+				int p = order.indexOf(pred);
+				if (p < 0 || order.postNumber[p] < 0 || !header.dominates(pred))
+					continue;
+				if (body == null) {
+					body = new BitSet();
+					body.set(h);
+				}
+				latches.add(pred);
+				if (!body.get(p)) {
+					body.set(p);
+					work.add(p);
+				}
+			}
+			if (body == null)
+				continue;
+
+			while (!work.isEmpty())
+				for (Block pred: order.blocks[work.remove()].getPreds()) {
+					int p = order.indexOf(pred);
+					if (p >= 0 && order.postNumber[p] >= 0 && !body.get(p)) {
+						body.set(p);
+						work.add(p);
+					}
+				}
+
+			Loop loop = new Loop(header, innermost[h], order, body, latches);
+			loops.add(loop);
+			if (loop.parent == null)
+				roots.add(loop);
+			for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1))
+				innermost[b] = loop;
+		}
+	}
+
+	public BlockOrder getOrder() { return order; }
+
+	// every loop, each after the loops around it
+	public List<Loop> getLoops() { return loops; }
+
+	// every loop, each before the loops around it
+	public List<Loop> getLoopsInnerFirst() {
+		List<Loop> list = new ArrayList<Loop>(loops);
+		Collections.reverse(list);
+		return list;
+	}
+
+	public List<Loop> getRoots() { return roots; }
+
+	// innermost loop containing b, null if none
+	public Loop getLoop(Block b) {
+		int i = order.indexOf(b);
+		return (i < 0) ? null : innermost[i];
+	}
+
+	// number of loops containing b
+	public int getDepth(Block b) {
+		Loop loop = getLoop(b);
+		return (loop == null) ? 0 : loop.depth;
+	}
+
+	public void dump() {
+		for (Loop loop: loops) {
+			for (int i = 1; i < loop.depth; i++)
+				System.out.print("  ");
+			System.out.println(loop);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import stmt.ArithStmt;
+import stmt.BranchStmt;
+import stmt.CallStmt;
+import stmt.MoveStmt;
+import stmt.PhiNode;
+import stmt.SafetyStmt;
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Constant;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+// Loop-invariant code motion on the SSA form, innermost loops first. A stmt
+// is invariant if its operands are defined outside the loop or by stmts
+// already hoisted. Only blocks run on every iteration (they dominate every
+// latch) are looked at, so a hoisted stmt never runs more often than before;
+// these stmts move to the end of the loop's preheader:
+//  - ArithStmts, div and mod only by a nonzero constant as they may trap
+//  - loads from an invariant address, in a loop without stores and calls,
+//    from a block that also dominates every exiting block, so the load ran
+//    at least once whenever the loop was entered
+//  - with -opt=checks, checks of invariant operands from such blocks too, if
+//    nothing that may trap or write (see hasEffect) runs before them in an
+//    iteration, so a failing check still fails first
+// A loop entered by a single edge gets a preheader on that edge if it has
+// none; loops entered from several blocks are left alone. Moving a def up
+// the dominator tree keeps the SSA form.
+public class LoopInvariantOpt {
+
+	private Routine routine;
+	private SSAValueTable values;
+	private Block[] defBlock;	// by SSA value id, null if not defined
+	private List<Block> newPreheaders = new ArrayList<Block>();
+	private boolean hoistArith;
+	private boolean hoistChecks;
+	public int hoistCounter = 0;
+	public int checkCounter = 0;
+	public int preheaderCounter = 0;
+
+	public LoopInvariantOpt(Routine r) {
+		this(r, true, false);
+	}
+
+	public LoopInvariantOpt(Routine r, boolean hoistArith, boolean hoistChecks) {
+		this.routine = r;
+		this.values = r.ssaTrans.getValues();
+		this.hoistArith = hoistArith;
+		this.hoistChecks = hoistChecks;
+	}
+
+	// the only pred of the loop header outside the loop, null if none or several
+	private static Block entryPred(Loop loop) {
+		Block entry = null;
+		for (Block pred: loop.header.getPreds())
+			if (!loop.contains(pred)) {
+				if (entry != null)
+					return null;
+				entry = pred;
+			}
+		return entry;
+	}
+
+	private void genPreheaders() {
+		List<Block> entries = new ArrayList<Block>();
+		List<Block> headers = new ArrayList<Block>();
+		for (Loop loop: routine.getLoopForest().getLoops()) {
+			Block entry = entryPred(loop);
+			if (entry != null && loop.getPreheader() == null) {
+				entries.add(entry);
+				headers.add(loop.header);
+			}
+		}
+		for (int i = 0; i < entries.size(); i++)
+			newPreheaders.add(routine.splitEdge(entries.get(i), headers.get(i)));
+	}
+
+	// put the edge back if nothing was hoisted to its new block
+	private void removePreheader(Block block) {
+		Block src = block.getPreds().get(0);
+		Block dst = block.getSuccs().get(0);
+		src.getSuccs().set(src.getSuccs().indexOf(block), dst);
+		dst.getPreds().set(dst.getPreds().indexOf(block), src);
+
+		Stmt last = src.body.get(src.body.size() - 1);
+		if (last instanceof BranchStmt && ((BranchStmt) last).getBranchBlock() == block)
+			((BranchStmt) last).setBranchBlock(dst);
+
+		src.getChildren().remove(block);
+		if (dst.getIdom() == block) {
+			dst.setIdom(src);
+			src.addChild(dst);
+		}
+		routine.getBlocks().remove(block);
+		routine.invalidateOrder();
+	}
+
+	private void define(Token t, Block b) {
+		int id = values.getId(t);
+		if (id >= 0)
+			defBlock[id] = b;
+	}
+
+	private void findDefs() {
+		defBlock = new Block[values.size()];
+		for (Block b: routine.getBlocks()) {
+			for (PhiNode phi: b.getPhiNode())
+				define(phi.getLHS().get(0), b);
+			for (Stmt s: b.body)
+				for (Token t: s.getLHS())
+					define(t, b);
+		}
+	}
+
+	private boolean isInvariant(Token t, Loop loop) {
+		if (!(t instanceof Variable || t instanceof Register))
+			return true;
+		int id = values.getId(t);
+		if (id < 0 || defBlock[id] == null)
+			return false;
+		return !loop.contains(defBlock[id]);
+	}
+
+	private static boolean writesMemory(Stmt s) {
+		return s.getOperator() == Operator.store || s.getOperator() == Operator.stdynamic ||
+				s instanceof CallStmt;
+	}
+
+	private static boolean mayTrap(Stmt s) {
+		if (s.getOperator() != Operator.div && s.getOperator() != Operator.mod)
+			return false;
+		Token divisor = s.getRHS().get(1);
+		return !(divisor instanceof Constant) || ((Constant) divisor).getValue() == 0;
+	}
+
+	// anything but arithmetic that cannot trap, copies and branches
+	private static boolean hasEffect(Stmt s) {
+		if (s instanceof ArithStmt)
+			return mayTrap(s);
+		return !(s instanceof MoveStmt || s instanceof BranchStmt);
+	}
+
+	private boolean isHoistable(Stmt s, Loop loop, boolean loadsSafe, boolean everyTrip, boolean effect) {
+		if (s instanceof SafetyStmt) {
+			if (!hoistChecks || !everyTrip || effect)
+				return false;
+		} else if (!hoistArith)
+			return false;
+		else if (s instanceof ArithStmt) {
+			if (mayTrap(s))
+				return false;
+		} else if (s.getOperator() != Operator.load || !loadsSafe || !everyTrip)
+			return false;
+
+		for (Token t: s.getRHS())
+			if (!isInvariant(t, loop))
+				return false;
+		return true;
+	}
+
+	private void hoist(Loop loop) {
+		Block preheader = loop.getPreheader();
+		if (preheader == null)
+			return;
+
+		List<Block> blocks = loop.getBlocks();
+		List<Block> exiting = loop.getExitingBlocks();
+		List<Block> latches = loop.getLatches();
+		boolean loadsSafe = true;
+		for (Block b: blocks)
+			for (Stmt s: b.body)
+				if (writesMemory(s))
+					loadsSafe = false;
+
+		// in reverse postorder every def comes before its uses; effectOut
+		// tells if an effect may have run in this iteration by a block's end
+		List<Stmt> hoisted = new ArrayList<Stmt>();
+		Set<Block> effectOut = new HashSet<Block>();
+		for (Block b: blocks) {
+			boolean effect = false;
+			if (b != loop.header)
+				for (Block pred: b.getPreds())
+					if (effectOut.contains(pred))
+						effect = true;
+
+			boolean everyIteration = true;
+			for (Block latch: latches)
+				if (!b.dominates(latch))
+					everyIteration = false;
+
+			boolean everyTrip = true;
+			for (Block exit: exiting)
+				if (!b.dominates(exit))
+					everyTrip = false;
+
+			Iterator<Stmt> it = b.body.iterator();
+			while (it.hasNext()) {
+				Stmt s = it.next();
+				if (!everyIteration || !isHoistable(s, loop, loadsSafe, everyTrip, effect)) {
+					effect |= hasEffect(s);
+					continue;
+				}
+				it.remove();
+				s.setBlock(preheader);
+				if (s.getLHS().size() > 0)
+					define(s.getLHS().get(0), preheader);
+				if (s instanceof SafetyStmt)
+					checkCounter ++;
+				else
+					hoistCounter ++;
+				hoisted.add(s);
+			}
+			if (effect)
+				effectOut.add(b);
+		}
+
+		int size = preheader.body.size();
+		if (size > 0 && preheader.body.get(size - 1) instanceof BranchStmt)
+			preheader.body.addAll(size - 1, hoisted);
+		else
+			preheader.body.addAll(hoisted);
+	}
+
+	public void optimize() {
+		genPreheaders();
+		findDefs();
+		for (Loop loop: routine.getLoopForest().getLoopsInnerFirst())
+			hoist(loop);
+
+		for (Block b: newPreheaders) {
+			Stmt first = b.body.isEmpty() ? null : b.body.get(0);
+			if (first == null || first instanceof BranchStmt)
+				removePreheader(b);
+			else
+				preheaderCounter ++;
+		}
+	}
+}
@@ -1,9 +1,22 @@
 package compiler;
 
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import profile.Interpreter;
 import profile.ProfileMain;
 
 public class Main {
 	
+	// buffered, unsynchronized stdout for the dumps; flush before System.out is used again
+	private static Writer stdout() {
+		return new BufferedWriter( new OutputStreamWriter( new FileOutputStream( FileDescriptor.out ) ), 1 << 16 );
+	}
+	
 	public static void main( String[] args ) {
 		
 		Option option = new Option();
@@ -14,55 +27,100 @@ public class Main {
 		
 		Program program = new Program();
 		ProfileMain profile;
+		Metrics metrics = null;
+		Metrics.Record m = null;
+		
+		if ( option.report != null || option.backend == Option.BackendOption.Report ) {
+			metrics = new Metrics( program );
+			program.setMetrics( metrics );
+			m = metrics.start( Metrics.Stage.Parse, null );
+		}
 		
 		if ( !program.scanFile( option.fileName ) )
 			return;
-		program.genCFG();
-		
-		boolean ssaTrans = false;
+		if ( m != null )
+			m.stop();
 		
-		if ( option.optimizeList.size() > 0 ) { 
-			// need SSA
-			program.transformToSSA();
-			ssaTrans = true;
-		} 
+		boolean ssaTrans = option.optimizeList.size() > 0;
+		// leave SSA inside the per-routine pipeline unless the backend still needs it
+		boolean backFromSSA = ssaTrans && ( option.profileList.size() > 0 ||
+				( option.backend != Option.BackendOption.SSA && option.backend != Option.BackendOption.Report ) );
 		
-		if ( option.optimizeList.contains( Option.OptimizeOption.CP ) )
-			program.constantPropOpt();
-		if ( option.optimizeList.contains( Option.OptimizeOption.VN ) )
-			program.valueNumberOpt();
+		program.compile( option, backFromSSA );
+		if ( backFromSSA )
+			ssaTrans = false;
 		
 		if ( option.profileList.size() > 0 ) {
 			
-			if ( ssaTrans ) {
-				program.transformBackFromSSA();
-				ssaTrans = false;
-			}
+			m = ( metrics != null ) ? metrics.start( Metrics.Stage.Profile, null ) : null;
 			profile = new ProfileMain(program);
 			profile.run ( option );
+			if ( m != null )
+				m.stop();
 			
 //			return;
 		}
 		
 		if ( option.backend == Option.BackendOption.SSA ) {
 			if ( !ssaTrans ) {
-				program.transformToSSA();
+				m = ( metrics != null ) ? metrics.start( Metrics.Stage.SSA, null ) : null;
+				program.transformToSSA( option.ssaForm );
 				ssaTrans = true;
+				if ( m != null )
+					m.stop();
+			}
+			m = ( metrics != null ) ? metrics.start( Metrics.Stage.Dump, null ) : null;
+			try {
+				Writer out = stdout();
+				program.dumpSSA( out );
+				out.flush();
+			} catch ( IOException e ) {
+				e.printStackTrace();
 			}
-			System.out.print( program.dumpSSA() );
 			
 		} else if ( option.backend == Option.BackendOption.Report ) {
-			program.printReport();
+			if ( option.report != Option.ReportOption.JSON ) {
+				program.printReport();
+				System.out.print( metrics.toText() );
+			} else
+				System.out.print( metrics.toJSON() );
+			return;
 		} else {
-			if ( ssaTrans )
+			if ( ssaTrans ) {
+				m = ( metrics != null ) ? metrics.start( Metrics.Stage.DeSSA, null ) : null;
 				program.transformBackFromSSA();
+				if ( m != null )
+					m.stop();
+			}
 			
-			if ( option.backend == Option.BackendOption.ASM )
-				System.out.print( program.dump() );
-			else if ( option.backend == Option.BackendOption.IR )
-				System.out.print( program.dumpIR() );
-			else if ( option.backend == Option.BackendOption.CFG )
-				System.out.print( program.dumpCFG() );
+			m = ( metrics != null ) ? metrics.start( Metrics.Stage.Dump, null ) : null;
+			if ( option.backend == Option.BackendOption.Run ) {
+				Interpreter vm = new Interpreter( program );
+				vm.run( System.out );
+				System.out.println( "\n-------------------------" );
+				System.out.println( "- Instruction count : " + vm.instrCount );
+				System.out.println( "- Allocated bytes: " + vm.allocBytes );
+			} else {
+				try {
+					Writer out = stdout();
+					if ( option.backend == Option.BackendOption.ASM )
+						program.dump( out );
+					else if ( option.backend == Option.BackendOption.IR )
+						program.dumpIR( out );
+					else if ( option.backend == Option.BackendOption.CFG )
+						program.dumpCFG( out );
+					out.flush();
+				} catch ( IOException e ) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		// metrics go to stderr, so they never mix with the generated code
+		if ( m != null ) {
+			System.out.flush();
+			m.stop();
+			System.err.print( option.report == Option.ReportOption.JSON ? metrics.toJSON() : metrics.toText() );
 		}
 		
 	}
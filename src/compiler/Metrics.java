@@ -0,0 +1,293 @@
+package compiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Wall time, allocated bytes and IR size of every compiler stage, per routine
+// (routine != null) or for the whole program. Records may come from several
+// threads, see Program.compile.
+public class Metrics {
+
+	public enum Stage {
+		Parse("parse"),
+		CFG("cfg"),
+		Dominator("dominators"),
+		SSA("ssa"),
+		CP("cp"),
+		Checks("checks"),
+		VN("vn"),
+		LICM("licm"),
+		PRE("pre"),
+		DeSSA("de-ssa"),
+		Profile("profile"),
+		Dump("dump");
+
+		private String str;
+
+		private Stage(String str) { this.str = str; }
+
+		@Override
+		public String toString() { return str; }
+	};
+
+	public class Record {
+		public final Stage stage;
+		public final Routine routine;
+		public final int order;
+		public long time;	// ns
+		public long bytes;	// -1 if the JVM cannot tell
+		public int stmtsBefore, stmtsAfter;
+		public int blocksBefore, blocksAfter;
+
+		private long startTime, startBytes;
+
+		private Record(Stage stage, Routine routine, int order) {
+			this.stage = stage;
+			this.routine = routine;
+			this.order = order;
+			this.stmtsBefore = stmtCount();
+			this.blocksBefore = blockCount();
+			this.startBytes = allocatedBytes();
+			this.startTime = System.nanoTime();
+		}
+
+		public void stop() {
+			time = System.nanoTime() - startTime;
+			long endBytes = allocatedBytes();
+			bytes = (startBytes < 0 || endBytes < 0) ? -1 : endBytes - startBytes;
+			stmtsAfter = stmtCount();
+			blocksAfter = blockCount();
+			add(this);
+		}
+
+		private int stmtCount() {
+			if (routine != null)
+				return Metrics.stmtCount(routine);
+			int n = 0;
+			for (Routine r: program.getRoutines())
+				n += Metrics.stmtCount(r);
+			return n;
+		}
+
+		private int blockCount() {
+			if (routine != null)
+				return routine.getBlocks().size();
+			int n = 0;
+			for (Routine r: program.getRoutines())
+				n += r.getBlocks().size();
+			return n;
+		}
+	}
+
+	private Program program;
+	private List<Record> records = new ArrayList<Record>();
+	private ThreadMXBean threadBean;
+
+	public Metrics(Program program) {
+		this.program = program;
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean &&
+				((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+			threadBean = bean;
+		}
+	}
+
+	// IR size of a routine: stmts, phi nodes and profile branches
+	public static int stmtCount(Routine r) {
+		if (r.getBlocks().size() == 0)
+			return r.getEndLine() - r.getStartLine() + 1;
+		int n = 0;
+		for (Block b: r.getBlocks()) {
+			n += b.body.size() + b.getPhiNode().size();
+			if (b.getProfBranchStmt() != null)
+				n ++;
+		}
+		return n;
+	}
+
+	private long allocatedBytes() {
+		if (threadBean == null)
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// start measuring stage, for routine r or the whole program if r is null
+	public Record start(Stage stage, Routine r) {
+		return new Record(stage, r, (r == null) ? -1 : program.getRoutines().indexOf(r));
+	}
+
+	private synchronized void add(Record record) {
+		records.add(record);
+	}
+
+	private List<Record> sortedRecords() {
+		List<Record> sorted = new ArrayList<Record>(records);
+		// program records first, then by routine; stable, so stages keep their order
+		Collections.sort(sorted, new Comparator<Record>() {
+
+			@Override
+			public int compare(Record o1, Record o2) {
+				return o1.order - o2.order;
+			}
+
+		});
+		return sorted;
+	}
+
+	private Record[] totals() {
+		Record[] totals = new Record[Stage.values().length];
+		boolean[] perRoutine = new boolean[Stage.values().length];
+		for (Record r: records) {
+			Record t = totals[r.stage.ordinal()];
+			if (t == null) {
+				t = new Record(r.stage, null, -1);
+				t.time = 0;
+				t.bytes = 0;
+				t.stmtsBefore = t.stmtsAfter = t.blocksBefore = t.blocksAfter = 0;
+				totals[r.stage.ordinal()] = t;
+			}
+			t.time += r.time;
+			t.bytes = (t.bytes < 0 || r.bytes < 0) ? -1 : t.bytes + r.bytes;
+			if (r.routine != null) {
+				if (!perRoutine[r.stage.ordinal()]) {
+					// per routine sizes replace a whole program one
+					perRoutine[r.stage.ordinal()] = true;
+					t.stmtsBefore = t.stmtsAfter = t.blocksBefore = t.blocksAfter = 0;
+				}
+				t.stmtsBefore += r.stmtsBefore;
+				t.stmtsAfter += r.stmtsAfter;
+				t.blocksBefore += r.blocksBefore;
+				t.blocksAfter += r.blocksAfter;
+			} else if (!perRoutine[r.stage.ordinal()]) {
+				t.stmtsBefore = r.stmtsBefore;
+				t.stmtsAfter = r.stmtsAfter;
+				t.blocksBefore = r.blocksBefore;
+				t.blocksAfter = r.blocksAfter;
+			}
+		}
+		return totals;
+	}
+
+	private static String textLine(Record r) {
+		return String.format("  %-12s %10.3f ms %12s %7d -> %-7d %6d -> %d",
+				r.stage, r.time / 1e6, (r.bytes < 0) ? "n/a" : r.bytes + " B",
+				r.stmtsBefore, r.stmtsAfter, r.blocksBefore, r.blocksAfter);
+	}
+
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		String header = String.format("  %-12s %13s %12s %18s %16s\n", "stage", "time", "allocated", "stmts", "blocks");
+
+		Routine last = null;
+		boolean first = true;
+		for (Record r: sortedRecords()) {
+			if (first || r.routine != last) {
+				sb.append((r.routine == null) ? "Program:\n" : "Function: " + r.routine.getName() + "\n");
+				sb.append(header);
+				last = r.routine;
+				first = false;
+			}
+			sb.append(textLine(r) + "\n");
+		}
+
+		sb.append("Total:\n");
+		sb.append(header);
+		for (Record t: totals())
+			if (t != null)
+				sb.append(textLine(t) + "\n");
+
+		return sb.toString();
+	}
+
+	private static String jsonString(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static String jsonRecord(Record r) {
+		return "{\"stage\": " + jsonString(r.stage.toString()) +
+				", \"timeNs\": " + r.time +
+				", \"allocatedBytes\": " + r.bytes +
+				", \"stmtsBefore\": " + r.stmtsBefore +
+				", \"stmtsAfter\": " + r.stmtsAfter +
+				", \"blocksBefore\": " + r.blocksBefore +
+				", \"blocksAfter\": " + r.blocksAfter + "}";
+	}
+
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder();
+		List<Record> sorted = sortedRecords();
+
+		sb.append("{\n  \"program\": [");
+		String sep = "";
+		for (Record r: sorted)
+			if (r.routine == null) {
+				sb.append(sep + "\n    " + jsonRecord(r));
+				sep = ",";
+			}
+		sb.append("\n  ],\n  \"routines\": [");
+
+		String routineSep = "";
+		for (Routine routine: program.getRoutines()) {
+			sb.append(routineSep + "\n    {\"name\": " + jsonString(routine.getName()));
+			if (routine.ssaTrans != null) {
+				sb.append(", \"phis\": " + routine.ssaTrans.phiCounter);
+				sb.append(", \"phisAvoided\": " + routine.ssaTrans.phiAvoided);
+			}
+			if (routine.cp != null)
+				sb.append(", \"constantsPropagated\": " + routine.cp.varCounter);
+			if (routine.vn != null)
+				sb.append(", \"expressionsEliminated\": " + routine.vn.exprCounter);
+			if (routine.vn != null && routine.vn.isGlobal()) {
+				sb.append(", \"loadsEliminated\": " + routine.vn.loadCounter);
+				sb.append(", \"checksEliminated\": " + routine.vn.checkCounter);
+			}
+			if (routine.checks != null) {
+				sb.append(", \"nullChecksRemoved\": " + routine.checks.nullCounter);
+				sb.append(", \"typeChecksRemoved\": " + routine.checks.typeCounter);
+				sb.append(", \"boundsChecksRemoved\": " + routine.checks.boundsCounter);
+				sb.append(", \"boundsChecksByRange\": " + routine.checks.rangeCounter);
+			}
+			if (routine.licm != null) {
+				sb.append(", \"invariantsHoisted\": " + routine.licm.hoistCounter);
+				sb.append(", \"checksHoisted\": " + routine.licm.checkCounter);
+				sb.append(", \"preheadersAdded\": " + routine.licm.preheaderCounter);
+			}
+			if (routine.pre != null) {
+				sb.append(", \"preRemoved\": " + routine.pre.removeCounter);
+				sb.append(", \"preInserted\": " + routine.pre.insertCounter);
+			}
+			if (routine.inlineCounter > 0)
+				sb.append(", \"callsInlined\": " + routine.inlineCounter);
+			if (routine.coldCounter > 0)
+				sb.append(", \"coldBlocks\": " + routine.coldCounter);
+			if (routine.cached)
+				sb.append(", \"cached\": true");
+			sb.append(", \"passes\": [");
+			sep = "";
+			for (Record r: sorted)
+				if (r.routine == routine) {
+					sb.append(sep + "\n      " + jsonRecord(r));
+					sep = ",";
+				}
+			sb.append("\n    ]}");
+			routineSep = ",";
+		}
+
+		sb.append("\n  ],\n  \"total\": [");
+		sep = "";
+		for (Record t: totals())
+			if (t != null) {
+				sb.append(sep + "\n    " + jsonRecord(t));
+				sep = ",";
+			}
+		sb.append("\n  ]\n}\n");
+
+		return sb.toString();
+	}
+}
@@ -1,7 +1,44 @@
 package compiler;
 
+import java.io.IOException;
+
 import attr.Attribute;
 
-public class Node {
+// a program, routine or block: it dumps as assembly, IR, CFG or SSA into an
+// Appendable, see Main, and into a String for debugging
+public abstract class Node {
 	public Attribute attr = null;
+	
+	private enum Dump { ASM, IR, CFG, SSA };
+	
+	public abstract void dump(Appendable out) throws IOException;
+	
+	public abstract void dumpIR(Appendable out) throws IOException;
+	
+	public abstract void dumpCFG(Appendable out) throws IOException;
+	
+	public abstract void dumpSSA(Appendable out) throws IOException;
+	
+	public String dump() { return dumpString(Dump.ASM); }
+	
+	public String dumpIR() { return dumpString(Dump.IR); }
+	
+	public String dumpCFG() { return dumpString(Dump.CFG); }
+	
+	public String dumpSSA() { return dumpString(Dump.SSA); }
+	
+	private String dumpString(Dump kind) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			switch (kind) {
+			case ASM: dump(sb); break;
+			case IR: dumpIR(sb); break;
+			case CFG: dumpCFG(sb); break;
+			case SSA: dumpSSA(sb); break;
+			}
+		} catch (IOException e) {
+			throw new AssertionError(e);	// a StringBuilder does not throw
+		}
+		return sb.toString();
+	}
 }
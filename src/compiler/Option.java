@@ -1,56 +1,58 @@
 package compiler;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 public class Option {
 	
-	public static String DART_SDK;
-	public static String START;
-	public static String CONFIG_FILE = "config";
-	
-	static {
-		try {
-			BufferedReader reader = new BufferedReader( new InputStreamReader(new FileInputStream( CONFIG_FILE ) ) );
-			String lineStr;
-			while ( (lineStr = reader.readLine()) != null ) {
-				if ( lineStr.startsWith( "#" ) )
-					continue;
-				else if ( lineStr.startsWith( "DART" ) ) {
-					DART_SDK = lineStr.substring( lineStr.indexOf( '=' ) + 1 ) + "/bin/dart"; 
-				} else if ( lineStr.startsWith( "START" ))
-					START = lineStr.substring( lineStr.indexOf( '=' ) + 1 ) + "/bin/start.dart";
-			}
-		} catch ( FileNotFoundException e ) {
-			e.printStackTrace();
-		} catch ( IOException e ) {
-			e.printStackTrace();
-		}
-	}
-	
 	public enum BackendOption {
 		ASM,
 		CFG,
 		IR,
 		SSA,
 		Report,
+		Run,
 	};
 	
 	public enum OptimizeOption {
 		CP, // 
 		VN,
+		GVN,
+		PRE,
+		LICM,
+		CHECKS,
 		SSA,
 	};
 	
+	public enum SSAForm {
+		Minimal,
+		SemiPruned,
+		Pruned,
+	};
+	
+	public enum DominatorOption {
+		Iterative,	// Cooper, Harvey and Kennedy
+		LT,			// Lengauer and Tarjan
+	};
+	
+	public enum ReportOption {
+		Text,
+		JSON,
+	};
+	
 	public enum ProfileOption {
 		POS,
 		INLINE,
+		PATH,
+		ORDER,
+		SPLIT,
+		STATIC,
+	};
+	
+	public enum EdgeProfileOption {
+		All,		// a counter on every edge
+		Tree,		// only off a maximum spanning tree, Knuth / Ball and Larus
 	};
 	
 	public List<String> options;
@@ -58,22 +60,47 @@ public class Option {
 	public List<OptimizeOption> optimizeList;
 	public List<ProfileOption> profileList;
 	public BackendOption backend;
+	public int jobs;
+	public ReportOption report;
+	public DominatorOption dominator;
+	public SSAForm ssaForm;
+	public EdgeProfileOption edgeProfile;
+	public String profileDB;	// null if the profile is not kept
+	public String cacheDir;		// null if the optimized routines are not kept
+	public long cacheSize;		// bytes
 	
 	public void usage() {
-		System.out.println("java -jar compiler.jar <filename> [-opt=<optimize>] [-backend=<backend>] [-profile=<profile>]\n");
+		System.out.println("java -jar compiler.jar <filename> [-opt=<optimize>] [-backend=<backend>] [-profile=<profile>] [-jobs=<n>] [-report=<format>] [-dom=<algorithm>] [-ssa=<form>] [-edges=<placement>] [-profdb=<file>] [-cache=<dir>] [-cachesize=<MB>]\n");
 		System.out.println("Optimization supported options:");
 		System.out.println("ssa\tSSA optimization");
 		System.out.println("cp\tConstant propagation optimization (depends on SSA)");
 		System.out.println("vn\tValue numbering optimization (depends on SSA)");
+		System.out.println("gvn\tValue numbering of loads and safety checks as well (depends on SSA)");
+		System.out.println("pre\tPartial redundancy elimination by lazy code motion (depends on SSA)");
+		System.out.println("licm\tLoop-invariant code motion into loop preheaders (depends on SSA)");
+		System.out.println("checks\tNull, type and bounds check elimination, invariant checks hoisted out of loops (depends on SSA)");
 		System.out.println("\nProfile supported options:");
 		System.out.println("pos\tBasic block positioning to optimize branch prediction and icache");
-		System.out.println("inline\tInline methods");
+		System.out.println("inline\tInline hot calls of small routines, counted by a profiling run");
+		System.out.println("path\tBasic block positioning along the hot paths of a Ball-Larus path profile");
+		System.out.println("order\tProcedure ordering by the calls run between routines (Pettis-Hansen)");
+		System.out.println("split\tBasic block positioning with the blocks (almost) never run moved after every routine");
+		System.out.println("static\tBasic block positioning by estimated branch probabilities, without a profiling run");
 		System.out.println("\nBackend supported options:");
 		System.out.println("asm\tAssembly code (default)");
 		System.out.println("cfg\tControl flow graph");
 		System.out.println("ir\tIntermediate representation");
 		System.out.println("ssa\tSSA code");
 		System.out.println("report\tReport");
+		System.out.println("run\tRun the program in the built-in interpreter");
+		System.out.println("\n-jobs=<n>\tCompile routines on n threads (default 1)");
+		System.out.println("-report=<format>\tPer-pass time, allocation and IR size metrics, text or json");
+		System.out.println("-dom=<algorithm>\tDominator algorithm, iter (default) or lt (Lengauer-Tarjan)");
+		System.out.println("-ssa=<form>\tPhi placement, minimal (default), semipruned or pruned (by liveness)");
+		System.out.println("-edges=<placement>\tEdge counters of -profile=pos, tree (default, off a spanning tree) or all");
+		System.out.println("-profdb=<file>\tKeep the profile counts in file, no profiling run while the CFG is unchanged");
+		System.out.println("-cache=<dir>\tKeep the optimized routines in dir, routines unchanged since are not optimized again (with -opt)");
+		System.out.println("-cachesize=<MB>\tSize of the -cache directory, the least recently used routines go beyond it (default 64)");
 		
 	}
 	
@@ -83,6 +110,14 @@ public class Option {
 		optimizeList = new LinkedList<OptimizeOption>();
 		profileList = new LinkedList<ProfileOption>();
 		backend = BackendOption.IR;
+		jobs = 1;
+		report = null;
+		dominator = DominatorOption.Iterative;
+		ssaForm = SSAForm.Minimal;
+		edgeProfile = EdgeProfileOption.Tree;
+		profileDB = null;
+		cacheDir = null;
+		cacheSize = 64L << 20;
 		
 		for (int i = 0; i < args.length; i++)
 			options.add(args[i]);
@@ -109,6 +144,14 @@ public class Option {
 						optimizeList.add(OptimizeOption.CP);
 					else if (s.equals("vn"))
 						optimizeList.add(OptimizeOption.VN);
+					else if (s.equals("gvn"))
+						optimizeList.add(OptimizeOption.GVN);
+					else if (s.equals("pre"))
+						optimizeList.add(OptimizeOption.PRE);
+					else if (s.equals("licm"))
+						optimizeList.add(OptimizeOption.LICM);
+					else if (s.equals("checks"))
+						optimizeList.add(OptimizeOption.CHECKS);
 					else if (s.equals("ssa"))
 						optimizeList.add(OptimizeOption.SSA);
 					else {
@@ -129,6 +172,8 @@ public class Option {
 					backend = BackendOption.SSA;
 				else if (arg.equals("report"))
 					backend = BackendOption.Report;
+				else if (arg.equals("run"))
+					backend = BackendOption.Run;
 				else {
 					System.out.println("Unsupported backend option: " + arg + "\n");
 					return false;
@@ -141,11 +186,95 @@ public class Option {
 						profileList.add(ProfileOption.POS);
 					else if (s.equals("inline"))
 						profileList.add(ProfileOption.INLINE);
+					else if (s.equals("path"))
+						profileList.add(ProfileOption.PATH);
+					else if (s.equals("order"))
+						profileList.add(ProfileOption.ORDER);
+					else if (s.equals("split"))
+						profileList.add(ProfileOption.SPLIT);
+					else if (s.equals("static"))
+						profileList.add(ProfileOption.STATIC);
 					else {
 						System.out.println("Unsupported profile option: " + s + "\n");
 						return false;
 					}
 				}
+			} else if (arg.startsWith("report")) {
+				arg = arg.substring(arg.indexOf('=') + 1).toLowerCase();
+				if (arg.equals("text"))
+					report = ReportOption.Text;
+				else if (arg.equals("json"))
+					report = ReportOption.JSON;
+				else {
+					System.out.println("Unsupported report option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("dom")) {
+				arg = arg.substring(arg.indexOf('=') + 1).toLowerCase();
+				if (arg.equals("iter"))
+					dominator = DominatorOption.Iterative;
+				else if (arg.equals("lt"))
+					dominator = DominatorOption.LT;
+				else {
+					System.out.println("Unsupported dom option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("ssa")) {
+				arg = arg.substring(arg.indexOf('=') + 1).toLowerCase();
+				if (arg.equals("minimal"))
+					ssaForm = SSAForm.Minimal;
+				else if (arg.equals("semipruned"))
+					ssaForm = SSAForm.SemiPruned;
+				else if (arg.equals("pruned"))
+					ssaForm = SSAForm.Pruned;
+				else {
+					System.out.println("Unsupported ssa option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("edges")) {
+				arg = arg.substring(arg.indexOf('=') + 1).toLowerCase();
+				if (arg.equals("all"))
+					edgeProfile = EdgeProfileOption.All;
+				else if (arg.equals("tree"))
+					edgeProfile = EdgeProfileOption.Tree;
+				else {
+					System.out.println("Unsupported edges option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("profdb")) {
+				profileDB = arg.substring(arg.indexOf('=') + 1);
+				if (profileDB.length() == 0 || arg.indexOf('=') < 0) {
+					System.out.println("Unsupported profdb option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("cachesize")) {
+				arg = arg.substring(arg.indexOf('=') + 1);
+				try {
+					cacheSize = Long.parseLong(arg) << 20;
+				} catch (NumberFormatException e) {
+					cacheSize = -1;
+				}
+				if (cacheSize < 0) {
+					System.out.println("Unsupported cachesize option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("cache")) {
+				cacheDir = arg.substring(arg.indexOf('=') + 1);
+				if (cacheDir.length() == 0 || arg.indexOf('=') < 0) {
+					System.out.println("Unsupported cache option: " + arg + "\n");
+					return false;
+				}
+			} else if (arg.startsWith("jobs")) {
+				arg = arg.substring(arg.indexOf('=') + 1);
+				try {
+					jobs = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					jobs = 0;
+				}
+				if (jobs < 1) {
+					System.out.println("Unsupported jobs option: " + arg + "\n");
+					return false;
+				}
 			}
 		}
 		
@@ -0,0 +1,817 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import profile.StaticProfile;
+
+import stmt.ArithStmt;
+import stmt.BranchStmt;
+import stmt.CallStmt;
+import stmt.MoveStmt;
+import stmt.PhiNode;
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Constant;
+import token.GP;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+// Partial redundancy elimination by lazy code motion (Knoop, Ruthing and
+// Steffen), on the SSA form after CP and VN. Expressions are ArithStmts
+// other than div/mod (they may trap) and loads, identified by operator,
+// operands and type; an operand is killed by its def, a load by calls and
+// stores. Only stores through GP addresses write globals, so they kill the
+// loads of GP addresses and other stores kill the other loads. Each moved
+// expression gets a variable pre$t<n>: inserted computations and the
+// computations still reaching a deleted one copy their register into it,
+// deleted computations are replaced by it.
+//
+// Operands are SSA values, so inserted computations always see the same
+// operand values. Every use of a deleted computation's register, in any
+// block, reads the temp instead: the operand defs dominate the computation
+// and it dominates the uses, so no operand changes in between and every
+// copy into the temp there has the same value. Memory can change though,
+// so a load is only moved if every computation's register is used in its
+// own block, before a store or call.
+public class PartialRedundancyOpt {
+
+	private static final int OPERATORS = Operator.values().length;
+
+	private Routine routine;
+	private SSAValueTable values;
+	private BlockOrder order;
+
+	// expressions, keyed on (operator and type, operand, operand)
+	private ScopedHashTable exprTable = new ScopedHashTable();
+	private List<Stmt> exprTemplate = new ArrayList<Stmt>();	// first computation
+	private BitSet loads = new BitSet();
+	private BitSet globalLoads = new BitSet();	// of GP addresses
+	private BitSet heapLoads = new BitSet();
+	private BitSet rejected = new BitSet();
+	private Variable[] temps;
+
+	// constants, other operands and types get keys after the SSA values
+	private IntIntMap constants = new IntIntMap();
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+	private int nextKey;
+
+	// by SSA value id
+	private Stmt[] def;
+	private BitSet[] operandUsers;	// the expressions of the value
+	private boolean[] addressVisited;	// for isGlobalAddress
+	private boolean[] globalAddress;
+	private int[] deleted;		// expression of a deleted computation, -1 else
+
+	// by expression, see findDirect
+	private Token[] direct;
+
+	// by block number in order
+	private BitSet[] ueExpr, deExpr, kill;
+	private BitSet[] availOut, antIn, antOut, laterIn;
+	private BitSet[] delete;
+	private BitSet[][] insert;	// by succ position
+	private BitSet[][] save;
+	private BitSet[] saveAtEnd;
+
+	public int removeCounter = 0;
+	public int insertCounter = 0;
+
+	private int tempCounter = 0;	// temps are locals of this routine
+
+	public PartialRedundancyOpt(Routine r) {
+		this.routine = r;
+		this.values = r.ssaTrans.getValues();
+	}
+
+	private static boolean isCandidate(Stmt s) {
+		Operator op = s.getOperator();
+		if (s instanceof ArithStmt)
+			return op != Operator.div && op != Operator.mod;
+		return op == Operator.load;
+	}
+
+	private int getKey(Token t) {
+		int id = values.getId(t);
+		if (id >= 0)
+			return id;
+		if (t instanceof Constant) {
+			int value = ((Constant) t).getValue();
+			int key = constants.get(value);
+			if (key == -1) {
+				key = nextKey++;
+				constants.put(value, key);
+			}
+			return key;
+		}
+		return getNameKey(t.toSSAString());
+	}
+
+	private int getNameKey(String name) {
+		Integer key = names.get(name);
+		if (key == null) {
+			key = nextKey++;
+			names.put(name, key);
+		}
+		return key;
+	}
+
+	private int getOperatorKey(Stmt s) {
+		String type = ((Register) s.getLHS().get(0)).type;
+		return s.getOperator().getIndex() + OPERATORS * getNameKey(":" + type);
+	}
+
+	private int getOperandKey(Stmt s, int i) {
+		return (i < s.getRHS().size()) ? getKey(s.getRHS().get(i)) : -1;
+	}
+
+	// id of the expression s computes, -1 if s is not a candidate
+	private int getExpr(Stmt s) {
+		if (!isCandidate(s))
+			return -1;
+		int e = exprTable.get(getOperatorKey(s), getOperandKey(s, 0), getOperandKey(s, 1));
+		return (e == -1 || rejected.get(e)) ? -1 : e;
+	}
+
+	// an address computed from GP
+	private boolean isGlobalAddress(Token t) {
+		if (t instanceof GP)
+			return true;
+		int id = values.getId(t);
+		if (id < 0 || addressVisited[id])
+			return id >= 0 && globalAddress[id];
+		addressVisited[id] = true;
+
+		Stmt s = def[id];
+		if (s instanceof ArithStmt || s instanceof MoveStmt || s instanceof PhiNode)
+			for (Token op: s.getRHS())
+				if (isGlobalAddress(op)) {
+					globalAddress[id] = true;
+					break;
+				}
+		return globalAddress[id];
+	}
+
+	// the loads s may change, null for none
+	private BitSet memoryKills(Stmt s) {
+		if (s instanceof CallStmt)
+			return loads;
+		if (s.getOperator() == Operator.store)
+			return isGlobalAddress(s.getRHS().get(1)) ? globalLoads : heapLoads;
+		if (s.getOperator() == Operator.stdynamic)
+			return heapLoads;
+		return null;
+	}
+
+	private BitSet getUsers(Token t) {
+		int id = values.getId(t);
+		return (id < 0) ? null : operandUsers[id];
+	}
+
+	// add the expressions killed by s to out
+	private void addKills(Stmt s, BitSet out) {
+		for (Token t: s.getLHS()) {
+			BitSet users = getUsers(t);
+			if (users != null)
+				out.or(users);
+		}
+		BitSet memory = memoryKills(s);
+		if (memory != null)
+			out.or(memory);
+	}
+
+	private boolean kills(Stmt s, int e) {
+		for (Token t: s.getLHS()) {
+			BitSet users = getUsers(t);
+			if (users != null && users.get(e))
+				return true;
+		}
+		BitSet memory = memoryKills(s);
+		return memory != null && memory.get(e);
+	}
+
+	private void define(Token t, Stmt s) {
+		int id = values.getId(t);
+		if (id >= 0)
+			def[id] = s;
+	}
+
+	private void collectDefs() {
+		int n = values.size();
+		def = new Stmt[n];
+		operandUsers = new BitSet[n];
+		addressVisited = new boolean[n];
+		globalAddress = new boolean[n];
+		deleted = new int[n];
+		for (int id = 0; id < n; id++)
+			deleted[id] = -1;
+		nextKey = n;
+
+		for (Block b: routine.getBlocks()) {
+			for (PhiNode phi: b.getPhiNode())
+				define(phi.getLHS().get(0), phi);
+			for (Stmt s: b.body)
+				for (Token t: s.getLHS())
+					define(t, s);
+		}
+	}
+
+	private void collectExprs() {
+		collectDefs();
+		for (Block b: order.blocks)
+			for (Stmt s: b.body) {
+				if (!isCandidate(s))
+					continue;
+				int op = getOperatorKey(s), a = getOperandKey(s, 0), c = getOperandKey(s, 1);
+				if (exprTable.get(op, a, c) != -1)
+					continue;
+
+				int e = exprTemplate.size();
+				exprTable.put(op, a, c, e);
+				exprTemplate.add(s);
+				if (s.getOperator() == Operator.load) {
+					loads.set(e);
+					if (isGlobalAddress(s.getRHS().get(0)))
+						globalLoads.set(e);
+					else
+						heapLoads.set(e);
+				}
+				for (Token t: s.getRHS()) {
+					int id = values.getId(t);
+					if (id < 0)
+						continue;
+					if (operandUsers[id] == null)
+						operandUsers[id] = new BitSet();
+					operandUsers[id].set(e);
+				}
+			}
+		temps = new Variable[exprTemplate.size()];
+	}
+
+	// reject loads with a computation whose register is used in another
+	// block or after a store or call
+	private void rejectNonLocalLoads() {
+		Block[] useBlock = new Block[values.size()];	// by SSA value id
+		BitSet multiBlock = new BitSet();
+		for (Block b: routine.getBlocks())
+			for (Stmt s: b.body)
+				for (Token t: s.getRHS()) {
+					int id = values.getId(t);
+					if (id < 0)
+						continue;
+					if (useBlock[id] != null && useBlock[id] != b)
+						multiBlock.set(id);
+					useBlock[id] = b;
+				}
+
+		for (Block b: order.blocks) {
+			List<Stmt> body = b.body;
+			for (int i = 0; i < body.size(); i++) {
+				Stmt s = body.get(i);
+				int e = getExpr(s);
+				if (e < 0 || !loads.get(e))
+					continue;
+
+				Token reg = s.getLHS().get(0);
+				int id = values.getId(reg);
+				if (id < 0 || useBlock[id] == null)
+					continue;
+				if (useBlock[id] != b || multiBlock.get(id)) {
+					rejected.set(e);
+					continue;
+				}
+
+				boolean killed = false;
+				for (int j = i + 1; j < body.size() && !rejected.get(e); j++) {
+					Stmt t = body.get(j);
+					if (killed && usesRegister(t, ((Register) reg).index))
+						rejected.set(e);
+					if (kills(t, e))
+						killed = true;
+				}
+			}
+		}
+	}
+
+	private static boolean usesRegister(Stmt s, int index) {
+		for (Token t: s.getRHS())
+			if (t instanceof Register && ((Register) t).index == index)
+				return true;
+		return false;
+	}
+
+	private void localProperties() {
+		int n = order.blocks.length;
+		ueExpr = new BitSet[n];
+		deExpr = new BitSet[n];
+		kill = new BitSet[n];
+
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			ueExpr[b] = new BitSet();
+			deExpr[b] = new BitSet();
+			kill[b] = new BitSet();
+
+			for (PhiNode phi: block.getPhiNode())
+				addKills(phi, kill[b]);
+
+			BitSet killed = (BitSet) kill[b].clone();
+			BitSet k = new BitSet();
+			for (Stmt s: block.body) {
+				int e = getExpr(s);
+				if (e >= 0) {
+					if (!killed.get(e))
+						ueExpr[b].set(e);
+					deExpr[b].set(e);
+				}
+				k.clear();
+				addKills(s, k);
+				kill[b].or(k);
+				killed.or(k);
+				deExpr[b].andNot(k);
+			}
+		}
+	}
+
+	private BitSet earliest(int i, int j) {
+		BitSet e = (BitSet) antIn[j].clone();
+		e.andNot(availOut[i]);
+		BitSet transp = (BitSet) antOut[i].clone();
+		transp.andNot(kill[i]);
+		e.andNot(transp);
+		return e;
+	}
+
+	private BitSet later(int i, int j) {
+		BitSet l = earliest(i, j);
+		BitSet through = (BitSet) laterIn[i].clone();
+		through.andNot(ueExpr[i]);
+		l.or(through);
+		return l;
+	}
+
+	private void dataflow() {
+		int n = order.blocks.length;
+		int m = exprTemplate.size();
+		BitSet all = new BitSet();
+		all.set(0, m);
+
+		// available expressions, forward
+		availOut = new BitSet[n];
+		for (int b = 0; b < n; b++)
+			availOut[b] = (BitSet) all.clone();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b: order.rpo) {
+				BitSet in = meetPreds(b, availOut);
+				in.andNot(kill[b]);
+				in.or(deExpr[b]);
+				if (!in.equals(availOut[b])) {
+					availOut[b] = in;
+					changed = true;
+				}
+			}
+		}
+
+		// anticipated expressions, backward
+		antIn = new BitSet[n];
+		antOut = new BitSet[n];
+		for (int b = 0; b < n; b++) {
+			antIn[b] = (BitSet) all.clone();
+			antOut[b] = new BitSet();
+		}
+		changed = true;
+		while (changed) {
+			changed = false;
+			for (int b: order.postorder) {
+				BitSet out = null;
+				for (Block succ: order.blocks[b].getSuccs()) {
+					int s = order.indexOf(succ);
+					if (s < 0)
+						continue;
+					if (out == null)
+						out = (BitSet) antIn[s].clone();
+					else
+						out.and(antIn[s]);
+				}
+				antOut[b] = (out == null) ? new BitSet() : out;
+
+				BitSet in = (BitSet) antOut[b].clone();
+				in.andNot(kill[b]);
+				in.or(ueExpr[b]);
+				if (!in.equals(antIn[b])) {
+					antIn[b] = in;
+					changed = true;
+				}
+			}
+		}
+
+		// later, forward; a block without preds gets a virtual entry edge
+		laterIn = new BitSet[n];
+		for (int b = 0; b < n; b++)
+			laterIn[b] = (BitSet) all.clone();
+		changed = true;
+		while (changed) {
+			changed = false;
+			for (int j: order.rpo) {
+				BitSet in = null;
+				for (Block pred: order.blocks[j].getPreds()) {
+					int i = order.indexOf(pred);
+					if (i < 0 || order.postNumber[i] < 0)
+						continue;
+					if (in == null)
+						in = later(i, j);
+					else
+						in.and(later(i, j));
+				}
+				if (in == null)
+					in = (BitSet) antIn[j].clone();
+				if (!in.equals(laterIn[j])) {
+					laterIn[j] = in;
+					changed = true;
+				}
+			}
+		}
+
+		delete = new BitSet[n];
+		insert = new BitSet[n][];
+		for (int b = 0; b < n; b++) {
+			delete[b] = (BitSet) ueExpr[b].clone();
+			delete[b].andNot(laterIn[b]);
+
+			List<Block> succs = order.blocks[b].getSuccs();
+			insert[b] = new BitSet[succs.size()];
+			for (int k = 0; k < succs.size(); k++) {
+				int s = order.indexOf(succs.get(k));
+				if (s < 0 || order.postNumber[b] < 0) {
+					insert[b][k] = new BitSet();
+					continue;
+				}
+				insert[b][k] = later(b, s);
+				insert[b][k].andNot(laterIn[s]);
+			}
+		}
+	}
+
+	// intersection over the reachable preds, empty without any
+	private BitSet meetPreds(int b, BitSet[] out) {
+		BitSet in = null;
+		for (Block pred: order.blocks[b].getPreds()) {
+			int p = order.indexOf(pred);
+			if (p < 0 || order.postNumber[p] < 0)
+				continue;
+			if (in == null)
+				in = (BitSet) out[p].clone();
+			else
+				in.and(out[p]);
+		}
+		return (in == null) ? new BitSet() : in;
+	}
+
+	// blocks at whose start the temp of an expression must hold its value
+	private BitSet[] tempLiveIn() {
+		int n = order.blocks.length;
+		BitSet[] liveIn = new BitSet[n];
+		BitSet[] liveOut = new BitSet[n];
+		for (int b = 0; b < n; b++) {
+			liveIn[b] = new BitSet();
+			liveOut[b] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b: order.postorder) {
+				List<Block> succs = order.blocks[b].getSuccs();
+				BitSet out = new BitSet();
+				for (int k = 0; k < succs.size(); k++) {
+					int s = order.indexOf(succs.get(k));
+					if (s < 0)
+						continue;
+					BitSet live = (BitSet) liveIn[s].clone();
+					live.andNot(insert[b][k]);
+					out.or(live);
+				}
+				liveOut[b] = out;
+
+				BitSet in = (BitSet) out.clone();
+				in.andNot(deExpr[b]);
+				in.or(delete[b]);
+				if (!in.equals(liveIn[b])) {
+					liveIn[b] = in;
+					changed = true;
+				}
+			}
+		}
+		return liveIn;
+	}
+
+	private Variable getTemp(int e) {
+		if (temps[e] == null) {
+			String name = "pre$t" + (tempCounter++);
+			String type = ((Register) exprTemplate.get(e).getLHS().get(0)).type;
+			temps[e] = new Variable(name, type, 0);
+			temps[e].ssaName = name;
+			routine.getLocalVars().add(temps[e]);
+		}
+		Variable v = new Variable(temps[e].name, temps[e].type, 0);
+		v.ssaName = temps[e].ssaName;
+		return v;
+	}
+
+	// new computation of e, its register copied into the temp
+	private List<Stmt> genComputation(int e) {
+		Stmt template = exprTemplate.get(e);
+		int index = routine.newStmtIndex();
+
+		List<Token> oprands = new ArrayList<Token>();
+		for (Token t: template.getRHS())
+			oprands.add((Token) t.clone());
+		oprands.add(new Register(index, ((Register) template.getLHS().get(0)).type));
+		Stmt s = Stmt.create(index, template.getOperator(), oprands);
+		Stmt move = new MoveStmt(routine.newStmtIndex(), new Register(index), getTemp(e));
+
+		List<Stmt> list = new ArrayList<Stmt>();
+		list.add(s);
+		list.add(move);
+		return list;
+	}
+
+	// remove the first computation of e in block; replaceDeleted gives its
+	// uses the temp
+	private void deleteComputation(Block block, int e) {
+		List<Stmt> body = block.body;
+		for (int i = 0; i < body.size(); i++) {
+			Stmt s = body.get(i);
+			if (getExpr(s) != e)
+				continue;
+
+			deleted[values.getId(s.getLHS().get(0))] = e;
+			body.remove(i);
+			removeCounter ++;
+			return;
+		}
+	}
+
+	// after the code motion, as the operands of a computation are part of
+	// its expression key
+	private void replaceDeleted() {
+		for (Block b: routine.getBlocks())
+			for (Stmt s: b.body) {
+				List<Token> rhs = s.getRHS();
+				for (int k = 0; k < rhs.size(); k++) {
+					int id = values.getId(rhs.get(k));
+					if (id < 0 || deleted[id] == -1)
+						continue;
+					int e = deleted[id];
+					s.setRHS(k, (direct[e] != null) ? (Token) direct[e].clone() : getTemp(e));
+				}
+			}
+	}
+
+	private Stmt lastComputation(Block block, int e) {
+		for (int i = block.body.size() - 1; i >= 0; i--)
+			if (getExpr(block.body.get(i)) == e)
+				return block.body.get(i);
+		return null;
+	}
+
+	// copy the last computation of e in block into the temp
+	private void saveComputation(Block block, int e) {
+		Stmt s = lastComputation(block, e);
+		Stmt move = new MoveStmt(routine.newStmtIndex(), s.getLHS().get(0), getTemp(e));
+		move.setBlock(block);
+		block.body.add(block.body.indexOf(s) + 1, move);
+	}
+
+	private static void insertAtEnd(Block block, List<Stmt> stmts) {
+		int size = block.body.size();
+		if (size > 0 && block.body.get(size - 1) instanceof BranchStmt)
+			block.body.addAll(size - 1, stmts);
+		else
+			block.body.addAll(stmts);
+	}
+
+	// copies of the computations still needed below their block go on the
+	// edges that need them, or right after them if every edge does
+	private void placeSaves() {
+		int n = order.blocks.length;
+		BitSet[] liveIn = tempLiveIn();
+
+		save = new BitSet[n][];
+		saveAtEnd = new BitSet[n];
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			List<Block> succs = block.getSuccs();
+			save[b] = new BitSet[succs.size()];
+			saveAtEnd[b] = (succs.size() == 0) ? new BitSet() : (BitSet) deExpr[b].clone();
+
+			// a single computation being deleted leaves its value in the temp
+			BitSet saved = (BitSet) deExpr[b].clone();
+			for (int e = delete[b].nextSetBit(0); e >= 0; e = delete[b].nextSetBit(e + 1))
+				if (countComputations(block, e) == 1)
+					saved.clear(e);
+
+			for (int k = 0; k < succs.size(); k++) {
+				int s = order.indexOf(succs.get(k));
+				save[b][k] = (s < 0) ? new BitSet() : (BitSet) liveIn[s].clone();
+				save[b][k].andNot(insert[b][k]);
+				save[b][k].and(saved);
+				saveAtEnd[b].and(save[b][k]);
+			}
+			for (int k = 0; k < succs.size(); k++)
+				save[b][k].andNot(saveAtEnd[b]);
+		}
+	}
+
+	// Expressions with nothing inserted and a single computation left,
+	// dominating the deleted ones: their uses get its register, as in DVNT,
+	// and no temp is copied
+	private void findDirect() {
+		int n = order.blocks.length;
+		int m = exprTemplate.size();
+		direct = new Token[m];
+		int[] left = new int[m];
+		Stmt[] kept = new Stmt[m];
+		Block[] keptBlock = new Block[m];
+		BitSet inserted = new BitSet();
+
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			boolean[] skip = new boolean[m];
+			for (int e = delete[b].nextSetBit(0); e >= 0; e = delete[b].nextSetBit(e + 1))
+				skip[e] = true;
+			for (Stmt s: block.body) {
+				int e = getExpr(s);
+				if (e < 0)
+					continue;
+				if (skip[e]) {
+					skip[e] = false;	// the first one is deleted
+					continue;
+				}
+				left[e] ++;
+				kept[e] = s;
+				keptBlock[e] = block;
+			}
+			for (int k = 0; k < insert[b].length; k++)
+				inserted.or(insert[b][k]);
+		}
+
+		for (int e = 0; e < m; e++) {
+			if (left[e] != 1 || inserted.get(e))
+				continue;
+			Block at = keptBlock[e];
+			boolean dominates = true;
+			for (int b = 0; b < n; b++)
+				if (delete[b].get(e) && (order.blocks[b] == at || !at.dominates(order.blocks[b])))
+					dominates = false;
+			if (!dominates)
+				continue;
+
+			direct[e] = kept[e].getLHS().get(0);
+			for (int b = 0; b < n; b++) {
+				saveAtEnd[b].clear(e);
+				for (int k = 0; k < save[b].length; k++)
+					save[b][k].clear(e);
+			}
+		}
+	}
+
+	// Every temp copy is an instruction too: keep an expression only if the
+	// computations deleted outweigh the ones inserted plus the copies, each
+	// weighted by the estimated runs of its block or edge (StaticProfile),
+	// so deletions on branches that exclude each other don't add up to more
+	// than the block before them runs.
+	private void dropUnprofitable() {
+		int n = order.blocks.length;
+		int m = exprTemplate.size();
+		StaticProfile profile = new StaticProfile(routine);
+		double[] benefit = new double[m];
+		double[] cost = new double[m];
+
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			double f = profile.getFrequency(block);
+			for (int e = delete[b].nextSetBit(0); e >= 0; e = delete[b].nextSetBit(e + 1))
+				benefit[e] += f;
+			for (int e = saveAtEnd[b].nextSetBit(0); e >= 0; e = saveAtEnd[b].nextSetBit(e + 1))
+				cost[e] += f;
+
+			for (int k = 0; k < insert[b].length; k++) {
+				double w = profile.getFrequency(block, k);
+				for (int e = insert[b][k].nextSetBit(0); e >= 0; e = insert[b][k].nextSetBit(e + 1))
+					cost[e] += 2 * w;
+				for (int e = save[b][k].nextSetBit(0); e >= 0; e = save[b][k].nextSetBit(e + 1))
+					cost[e] += w;
+			}
+		}
+
+		BitSet drop = new BitSet();
+		for (int e = 0; e < m; e++) {
+			if (cost[e] >= benefit[e])
+				drop.set(e);
+		}
+
+		for (int b = 0; b < n; b++) {
+			delete[b].andNot(drop);
+			saveAtEnd[b].andNot(drop);
+			for (int k = 0; k < insert[b].length; k++) {
+				insert[b][k].andNot(drop);
+				save[b][k].andNot(drop);
+			}
+		}
+	}
+
+	private void transform() {
+		int n = order.blocks.length;
+
+		// by block number and succ position
+		List<List<List<Stmt>>> edgeStmts = new ArrayList<List<List<Stmt>>>();
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			List<Block> succs = block.getSuccs();
+			List<List<Stmt>> blockEdges = new ArrayList<List<Stmt>>();
+			edgeStmts.add(blockEdges);
+
+			for (int e = saveAtEnd[b].nextSetBit(0); e >= 0; e = saveAtEnd[b].nextSetBit(e + 1))
+				saveComputation(block, e);
+			for (int k = 0; k < succs.size(); k++) {
+				List<Stmt> moves = new ArrayList<Stmt>();
+				for (int e = save[b][k].nextSetBit(0); e >= 0; e = save[b][k].nextSetBit(e + 1)) {
+					Token reg = lastComputation(block, e).getLHS().get(0);
+					moves.add(new MoveStmt(routine.newStmtIndex(), reg, getTemp(e)));
+				}
+				blockEdges.add(moves);
+			}
+
+			for (int e = delete[b].nextSetBit(0); e >= 0; e = delete[b].nextSetBit(e + 1))
+				deleteComputation(block, e);
+		}
+
+		for (int b = 0; b < n; b++) {
+			Block block = order.blocks[b];
+			List<Block> succs = new ArrayList<Block>(block.getSuccs());
+			for (int k = 0; k < succs.size(); k++) {
+				BitSet ins = insert[b][k];
+				List<Stmt> stmts = edgeStmts.get(b).get(k);
+				if (ins.isEmpty() && stmts.isEmpty())
+					continue;
+
+				Block dst = succs.get(k);
+				Block at;
+				boolean atEnd;
+				if (block.getSuccs().size() == 1) {
+					at = block;
+					atEnd = true;
+				} else if (dst.getPreds().size() == 1) {
+					at = dst;
+					atEnd = false;
+				} else {
+					at = routine.splitEdge(block, dst);
+					atEnd = true;
+				}
+
+				for (int e = ins.nextSetBit(0); e >= 0; e = ins.nextSetBit(e + 1)) {
+					stmts.addAll(genComputation(e));
+					insertCounter ++;
+				}
+				for (Stmt s: stmts)
+					s.setBlock(at);
+
+				if (atEnd)
+					insertAtEnd(at, stmts);
+				else
+					at.body.addAll(0, stmts);
+			}
+		}
+		replaceDeleted();
+	}
+
+	private int countComputations(Block block, int e) {
+		int count = 0;
+		for (Stmt s: block.body)
+			if (getExpr(s) == e)
+				count ++;
+		return count;
+	}
+
+	public void optimize() {
+		order = routine.getOrder();
+
+		collectExprs();
+		if (exprTemplate.isEmpty())
+			return;
+		rejectNonLocalLoads();
+		localProperties();
+		dataflow();
+		placeSaves();
+		findDirect();
+		dropUnprofitable();
+		transform();
+	}
+}
@@ -9,10 +9,13 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import profile.PositionProfile;
 
@@ -33,6 +36,7 @@ public class Program extends Node {
 	private List<String> globalVars;
 	private List<Routine> routines;
 	private Stmt firstStmt;
+	private Metrics metrics = null;
 	
 	public Program() {
 		typeDec = new LinkedList<String>();
@@ -49,29 +53,26 @@ public class Program extends Node {
 	
 	public boolean scanFile(String filename) {
 		
-		List<Stmt> stmts = new LinkedList<Stmt>();
+		List<Stmt> stmts = new ArrayList<Stmt>();
 		
 		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				line = line.trim();
-				if (line.startsWith("method")) {
-					routines.add(Routine.parse(line));
-				} else if (line.startsWith("instr")) {
-					Stmt s = Stmt.parse(line);
+			StartScanner scanner = StartScanner.open(filename);
+			while (scanner.nextLine()) {
+				if (scanner.isMethod()) {
+					routines.add(scanner.parseMethod());
+				} else if (scanner.isInstr()) {
+					Stmt s = scanner.parseInstr();
 					if (s instanceof CallStmt) {
 						int index = ((Code) s.getRHS().get(0)).getIndex();
 						Routine r = searchRoutine(index); 
 						((CallStmt) s).setRoutine(r);
 					}
 					stmts.add(s);
-				} else if (line.startsWith("type"))
-					typeDec.add(line);
-				else if (line.startsWith("global"))
-					globalVars.add(line);
+				} else if (scanner.isType())
+					typeDec.add(scanner.line());
+				else if (scanner.isGlobal())
+					globalVars.add(scanner.line());
 			}
-			reader.close();
 			
 		} catch (FileNotFoundException e) {
 			System.out.println(filename + "doesn't exist");
@@ -100,11 +101,26 @@ public class Program extends Node {
 		
 		firstStmt = stmts.get(0);
 		
+		setStmtCounters(stmts.size());
+		
 		return true;
 	}
 	
 	public List<Routine> getRoutines() { return routines; }
 	
+	public Routine getRoutine(String name) {
+		for (Routine r: routines)
+			if (r.getName().equals(name))
+				return r;
+		return null;
+	}
+	
+	public List<String> getTypeDecs() { return typeDec; }
+	
+	public void setMetrics(Metrics metrics) { this.metrics = metrics; }
+	
+	public Metrics getMetrics() { return metrics; }
+	
 	public void genCFG() {
 		for (Routine r: routines) {
 			r.genCFG();
@@ -112,26 +128,122 @@ public class Program extends Node {
 		}
 	}
 	
+	// runs Routine.compile over all routines, on a fork-join pool when jobs > 1;
+	// the routines only meet again here, before renumbering. With -cache the
+	// routines compiled before are taken from there, see CompileCache; it
+	// keeps them out of SSA only
+	public void compile(Option option, boolean backFromSSA) {
+		CompileCache cache = null;
+		if (option.cacheDir != null && backFromSSA) {
+			cache = new CompileCache(option.cacheDir, option.cacheSize, option);
+			cache.load(this);
+		}
+		
+		if (option.jobs > 1) {
+			ForkJoinPool pool = new ForkJoinPool(option.jobs);
+			pool.invoke(new CompileTask(new ArrayList<Routine>(routines), option, backFromSSA, metrics));
+			pool.shutdown();
+		} else {
+			for (Routine r: routines)
+				r.compile(option, backFromSSA, metrics);
+		}
+		
+		if (backFromSSA) {
+			Metrics.Record m = (metrics != null) ? metrics.start(Metrics.Stage.DeSSA, null) : null;
+			renumberStmt();
+			if (m != null)
+				m.stop();
+		}
+		
+		if (cache != null)
+			cache.store(this);
+	}
+	
+	private static class CompileTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private List<Routine> routines;
+		private Option option;
+		private boolean backFromSSA;
+		private Metrics metrics;
+		
+		public CompileTask(List<Routine> routines, Option option, boolean backFromSSA, Metrics metrics) {
+			this.routines = routines;
+			this.option = option;
+			this.backFromSSA = backFromSSA;
+			this.metrics = metrics;
+		}
+		
+		@Override
+		protected void compute() {
+			int n = routines.size();
+			if (n == 1) {
+				routines.get(0).compile(option, backFromSSA, metrics);
+			} else if (n > 1) {
+				invokeAll(new CompileTask(routines.subList(0, n / 2), option, backFromSSA, metrics),
+						new CompileTask(routines.subList(n / 2, n), option, backFromSSA, metrics));
+			}
+		}
+	}
+	
 	public void transformToSSA() {
+		transformToSSA(Option.SSAForm.Minimal);
+	}
+	
+	public void transformToSSA(Option.SSAForm form) {
 		for (Routine r: routines) {
-			r.ssaTrans = new SSATransform(r);
+			r.ssaTrans = new SSATransform(r, form);
 //			System.out.println("routine " + r.getName() + " gen SSA");
 			r.ssaTrans.translateToSSA();
 		}
 	}
 	
 	public void renumberStmt() {
-		Stmt.GlobalIndex = 1;
-		Map<Integer, Integer> newIndexMap = new HashMap<Integer, Integer>();
+		int globalIndex = 1;
+		List<Map<Integer, Integer>> newIndexMaps = new ArrayList<Map<Integer, Integer>>();
+		
+		// number every stmt first: after value numbering and block
+		// positioning, a register can be used in a block placed before the
+		// one defining it. The cold blocks of all routines come last, in the
+		// order Program.dump prints them
+		for (Routine routine: routines)
+			newIndexMaps.add(new HashMap<Integer, Integer>());
+		for (boolean cold: new boolean[] { false, true }) {
+			int i = 0;
+			for (Routine routine: routines) {
+				Map<Integer, Integer> newIndexMap = newIndexMaps.get(i++);
+				for (Block b: routine.getBlocks()) {
+					if (b.cold != cold)
+						continue;
+					for (Stmt s: b.body) {
+						++ globalIndex;
+						newIndexMap.put(s.index, globalIndex);
+					}
+					
+					BranchStmt profBrStmt = b.getProfBranchStmt();
+					if (profBrStmt != null) {
+						++ globalIndex;
+						newIndexMap.put(profBrStmt.index, globalIndex);
+					}
+				}
+			}
+		}
 		
+		int i = 0;
 		for (Routine routine: routines) {
+			Map<Integer, Integer> newIndexMap = newIndexMaps.get(i++);
 			
 			for (Block b: routine.getBlocks()) {
 				for (Stmt s: b.body) {
 					
-					++ Stmt.GlobalIndex;
-					newIndexMap.put(s.index, Stmt.GlobalIndex);
-					s.index = Stmt.GlobalIndex;
+					// the result register of a stmt (":int", a load's own
+					// register) is its own index
+					for (Token t: s.getLHS())
+						if (t instanceof Register && ((Register) t).index == s.index)
+							((Register) t).index = newIndexMap.get(s.index);
+					
+					s.index = newIndexMap.get(s.index);
 					
 					for (Token t: s.getRHS())
 						if (t instanceof Register) {
@@ -142,18 +254,24 @@ public class Program extends Node {
 				}
 				
 				BranchStmt profBrStmt = b.getProfBranchStmt();
-				if (profBrStmt != null) {
-					++ Stmt.GlobalIndex;
-					newIndexMap.put(profBrStmt.index, Stmt.GlobalIndex);
-					profBrStmt.index = Stmt.GlobalIndex;
-				}
+				if (profBrStmt != null)
+					profBrStmt.index = newIndexMap.get(profBrStmt.index);
 				
 				b.startLine = b.body.get(0).index;
 			}
 			
 			routine.setStartLine(routine.getEntryBlock().startLine);
-			newIndexMap.clear();
 		}
+		
+		setStmtCounters(globalIndex);
+	}
+	
+	// new stmts of every routine are numbered after the ones there are,
+	// each routine taking every routines.size()-th number, see Routine.newStmtIndex
+	private void setStmtCounters(int counter) {
+		int i = 0;
+		for (Routine r: routines)
+			r.setStmtCounter(counter, routines.size(), i++);
 	}
 	
 	public void transformBackFromSSA() {
@@ -182,81 +300,85 @@ public class Program extends Node {
 		}
 	}
 	
-	public String dump() {
-		StringBuilder sb = new StringBuilder();
-		
+	// declarations and the first nop, common to every dump
+	private void dumpHeader(Appendable out, boolean entryBlock) throws IOException {
 		for (String type: typeDec)
-			sb.append("    " + type + "\n");
-		for (Routine r: routines)
-			sb.append(r.toString() + "\n");
+			out.append("    ").append(type).append('\n');
+		for (Routine r: routines) {
+			out.append(r.toString());
+			if (entryBlock)
+				out.append(" [entryblock#").append(Integer.toString(r.getEntryBlock().getIndex())).append(']');
+			out.append('\n');
+		}
 		for (String global: globalVars)
-			sb.append("    " + global + "\n");
-		sb.append(firstStmt + "\n");
-		
-		for (Routine r: routines)
-			sb.append(r.dump());
-		
-		return sb.toString();
+			out.append("    ").append(global).append('\n');
+		out.append(firstStmt.toString()).append('\n');
 	}
 	
-	public String dumpIR() {
-		StringBuilder sb = new StringBuilder();
-		
-		for (String type: typeDec)
-			sb.append("    " + type + "\n");
+	// the dumps stream routine by routine into out, see Main
+	public void dump(Appendable out) throws IOException {
+		dumpHeader(out, false);
 		for (Routine r: routines)
-			sb.append(r.toString() + " [entryblock#" + r.getEntryBlock().getIndex() + "]\n");
-		for (String global: globalVars)
-			sb.append("    " + global + "\n");
-		sb.append(firstStmt + "\n");
-		
+			r.dump(out);
 		for (Routine r: routines)
-			sb.append(r.dumpIR());
-		
-		return sb.toString();
+			r.dumpCold(out);
 	}
 	
-	public String dumpCFG() {
-		StringBuilder sb = new StringBuilder();
-		
-		for (String type: typeDec)
-			sb.append("    " + type + "\n");
+	public void dumpIR(Appendable out) throws IOException {
+		dumpHeader(out, true);
 		for (Routine r: routines)
-			sb.append(r.toString() + " [entryblock#" + r.getEntryBlock().getIndex() + "]\n");
-		for (String global: globalVars)
-			sb.append("    " + global + "\n");
-		sb.append(firstStmt + "\n");
-		
+			r.dumpIR(out);
 		for (Routine r: routines)
-			sb.append(r.dumpCFG());
-		
-		return sb.toString();
+			r.dumpColdIR(out);
 	}
 	
-	public String dumpSSA() {
-		StringBuilder sb = new StringBuilder();
-		
-		for (String type: typeDec)
-			sb.append("    " + type + "\n");
+	public void dumpCFG(Appendable out) throws IOException {
+		dumpHeader(out, true);
 		for (Routine r: routines)
-			sb.append(r.toString() + " [entryblock#" + r.getEntryBlock().getIndex() + "]\n");
-		for (String global: globalVars)
-			sb.append("    " + global + "\n");
-		sb.append(firstStmt + "\n");
-		
+			r.dumpCFG(out);
+	}
+	
+	public void dumpSSA(Appendable out) throws IOException {
+		dumpHeader(out, true);
 		for (Routine r: routines)
-			sb.append(r.dumpSSA());
-		
-		return sb.toString();
+			r.dumpSSA(out);
 	}
 	
+	
 	public void printReport() {
 		for (Routine r: routines) {
 			System.out.println("Function: " + r.getName());
+			if (r.ssaTrans != null && r.ssaTrans.getForm() != Option.SSAForm.Minimal)
+				System.out.println("Number of phis avoided: " + r.ssaTrans.phiAvoided);
 			if (r.cp != null)
 				System.out.println("Number of constants propagated: " + r.cp.varCounter);
 			if (r.vn != null)
 				System.out.println("Number of expressions eliminated: " + r.vn.exprCounter);
+			if (r.vn != null && r.vn.isGlobal()) {
+				System.out.println("Number of loads eliminated: " + r.vn.loadCounter);
+				System.out.println("Number of checks eliminated: " + r.vn.checkCounter);
+			}
+			if (r.checks != null) {
+				System.out.println("Number of null checks removed: " + r.checks.nullCounter);
+				System.out.println("Number of type checks removed: " + r.checks.typeCounter);
+				System.out.println("Number of bounds checks removed: " + r.checks.boundsCounter +
+						" (" + r.checks.rangeCounter + " by induction range)");
+			}
+			if (r.licm != null) {
+				System.out.println("Number of invariant stmts hoisted: " + r.licm.hoistCounter);
+				System.out.println("Number of checks hoisted: " + r.licm.checkCounter);
+				System.out.println("Number of preheaders added: " + r.licm.preheaderCounter);
+			}
+			if (r.pre != null) {
+				System.out.println("Number of expressions removed by PRE: " + r.pre.removeCounter);
+				System.out.println("Number of expressions inserted by PRE: " + r.pre.insertCounter);
+			}
+			if (r.inlineCounter > 0)
+				System.out.println("Number of calls inlined: " + r.inlineCounter);
+			if (r.coldCounter > 0)
+				System.out.println("Number of cold blocks: " + r.coldCounter);
+			if (r.cached)
+				System.out.println("Optimized code from the compile cache");
 		}
 	}
 }
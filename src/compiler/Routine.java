@@ -1,11 +1,12 @@
 package compiler;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
@@ -18,7 +19,6 @@ import stmt.EntryStmt;
 import stmt.MoveStmt;
 import stmt.Stmt;
 import stmt.Stmt.Operator;
-import token.Token;
 import token.Code;
 import token.Variable;
 
@@ -34,12 +34,30 @@ public class Routine extends Node {
 	
 	private int blockCount = 0;
 	private Block entryBlock;
+	private BlockOrder order = null;	// cached, see getOrder
+	private DominanceFrontier df = null;
+	private LoopForest loops = null;
+	
+	// per-routine counters, so routines can be compiled independently; new
+	// stmts are numbered stmtCounter + k * stmtStride + stmtOffset, k = 1, 2,
+	// ..., so routines with their own offset below the stride never share one
+	private int stmtCounter = 0;
+	private int stmtStride = 1;
+	private int stmtOffset = 0;
+	private int newStmtCount = 0;
+	private int blockIdCounter = 0;
 	
 	public SSATransform ssaTrans = null;
 	public ValueNumberOpt vn = null;
 	public ConstantPropOpt cp = null;
+	public SafetyCheckOpt checks = null;
+	public LoopInvariantOpt licm = null;
+	public PartialRedundancyOpt pre = null;
+	public int inlineCounter = 0;	// call sites inlined, see profile.InlineProfile
+	public int coldCounter = 0;		// blocks in the cold section, see profile.PositionProfile
+	public boolean cached = false;	// body optimized already, see CompileCache
 	
-	private Routine(String name, int startLine, List<Variable> vars) {
+	Routine(String name, int startLine, List<Variable> vars) {
 		this.name = name;
 		this.startLine = startLine;
 		this.localVars = vars;
@@ -53,13 +71,46 @@ public class Routine extends Node {
 	
 	public void setBody(List<Stmt> stmts) { body = stmts; }
 	
+	public List<Stmt> getBody() { return body; }
+	
 	public int getStartLine() { return startLine; }
 	
 	public int getEndLine() { return endLine; }
 	
 	public List<Block> getBlocks() { return blocks; }
 	
-	public void setBlocks(List<Block> blocks) { this.blocks = blocks; }
+	public void setBlocks(List<Block> blocks) {
+		this.blocks = blocks;
+		invalidateOrder();
+	}
+	
+	// DFS orderings of the CFG, computed once until the CFG changes
+	public BlockOrder getOrder() {
+		if (order == null)
+			order = Tools.genOrder(blocks, entryBlock);
+		return order;
+	}
+	
+	// dominance frontiers of the current dominator tree
+	public DominanceFrontier getDominanceFrontier() {
+		if (df == null)
+			df = new DominanceFrontier(this);
+		return df;
+	}
+	
+	// natural loops of the current dominator tree
+	public LoopForest getLoopForest() {
+		if (loops == null)
+			loops = new LoopForest(this);
+		return loops;
+	}
+	
+	// call after changing the block list or the CFG edges
+	public void invalidateOrder() {
+		order = null;
+		df = null;
+		loops = null;
+	}
 
 	public int getBlockCount() { return blockCount; }
 	
@@ -69,6 +120,66 @@ public class Routine extends Node {
 	
 	public void setLocalVars(List<Variable> vars) { localVars = vars; }
 	
+	// index for a newly created stmt
+	public int newStmtIndex() { return stmtCounter + (++newStmtCount) * stmtStride + stmtOffset; }
+	
+	public void setStmtCounter(int counter, int stride, int offset) {
+		stmtCounter = counter;
+		stmtStride = stride;
+		stmtOffset = offset;
+		newStmtCount = 0;
+	}
+	
+	public int newBlockId() { return blockIdCounter++; }
+	
+	// block ids are in [0, getBlockIdBound())
+	public int getBlockIdBound() { return blockIdCounter; }
+	
+	// new block on the edge src -> dst, keeping the position of the edge in
+	// both lists so the phis of dst still line up. src becomes its idom, and
+	// it becomes the idom of dst if src was the only way into dst
+	public Block splitEdge(Block src, Block dst) {
+		Block block = new Block(this);
+		block.getPreds().add(src);
+		block.getSuccs().add(dst);
+		src.getSuccs().set(src.getSuccs().indexOf(dst), block);
+		dst.getPreds().set(dst.getPreds().indexOf(src), block);
+		
+		block.setIdom(src);
+		src.addChild(block);
+		if (dst.getIdom() == src) {
+			boolean onlyEntry = true;
+			for (Block pred: dst.getPreds())
+				if (pred != block && !dst.dominates(pred))
+					onlyEntry = false;
+			if (onlyEntry) {
+				src.getChildren().remove(dst);
+				dst.setIdom(block);
+				block.addChild(dst);
+			}
+		}
+		
+		Stmt last = src.body.get(src.body.size() - 1);
+		if (last instanceof BranchStmt && ((BranchStmt) last).getBranchBlock() == dst) {
+			// taken branch: the new block goes last and jumps to dst
+			((BranchStmt) last).setBranchBlock(block);
+			Stmt br = new BranchStmt(newStmtIndex(), dst);
+			br.setBlock(block);
+			block.body.add(br);
+			blocks.add(block);
+		} else {
+			// fall through: right after src, falling into dst
+			ListIterator<Block> it = blocks.listIterator();
+			while (it.hasNext())
+				if (it.next() == src) {
+					it.add(block);
+					break;
+				}
+		}
+		invalidateOrder();
+		return block;
+	}
+	
 	private Block searchBlock(int stmtIndex) {
 		int left = 0;
 		int right = blockCount - 1;
@@ -159,6 +270,81 @@ public class Routine extends Node {
 				s.setBlock(b);
 		
 		entryBlock = blocks.get(0);
+		invalidateOrder();
+	}
+	
+	// whole per-routine pipeline: CFG, dominators and the SSA based optimizations;
+	// every stage is recorded in metrics unless it is null
+	public void compile(Option option, boolean backFromSSA, Metrics metrics) {
+		List<Option.OptimizeOption> optimizeList = option.optimizeList;
+		Metrics.Record m;
+		
+		m = (metrics != null) ? metrics.start(Metrics.Stage.CFG, this) : null;
+		genCFG();
+		if (m != null)
+			m.stop();
+		
+		m = (metrics != null) ? metrics.start(Metrics.Stage.Dominator, this) : null;
+		if (option.dominator == Option.DominatorOption.LT)
+			genDominatorLT();
+		else
+			genDominator();
+		if (m != null)
+			m.stop();
+		
+		if (optimizeList.size() == 0 || cached)
+			return;
+		
+		m = (metrics != null) ? metrics.start(Metrics.Stage.SSA, this) : null;
+		ssaTrans = new SSATransform(this, option.ssaForm);
+		ssaTrans.translateToSSA();
+		if (m != null)
+			m.stop();
+		
+		if (optimizeList.contains(Option.OptimizeOption.CP)) {
+			m = (metrics != null) ? metrics.start(Metrics.Stage.CP, this) : null;
+			cp = new ConstantPropOpt(this);
+			cp.optimize();
+			if (m != null)
+				m.stop();
+		}
+		if (optimizeList.contains(Option.OptimizeOption.CHECKS)) {
+			m = (metrics != null) ? metrics.start(Metrics.Stage.Checks, this) : null;
+			checks = new SafetyCheckOpt(this);
+			checks.optimize();
+			if (m != null)
+				m.stop();
+		}
+		if (optimizeList.contains(Option.OptimizeOption.VN) || optimizeList.contains(Option.OptimizeOption.GVN)) {
+			m = (metrics != null) ? metrics.start(Metrics.Stage.VN, this) : null;
+			vn = new ValueNumberOpt(this, optimizeList.contains(Option.OptimizeOption.GVN));
+			vn.optimize();
+			if (m != null)
+				m.stop();
+		}
+		// -opt=checks alone only hoists the checks
+		if (optimizeList.contains(Option.OptimizeOption.LICM) || optimizeList.contains(Option.OptimizeOption.CHECKS)) {
+			m = (metrics != null) ? metrics.start(Metrics.Stage.LICM, this) : null;
+			licm = new LoopInvariantOpt(this, optimizeList.contains(Option.OptimizeOption.LICM),
+					optimizeList.contains(Option.OptimizeOption.CHECKS));
+			licm.optimize();
+			if (m != null)
+				m.stop();
+		}
+		if (optimizeList.contains(Option.OptimizeOption.PRE)) {
+			m = (metrics != null) ? metrics.start(Metrics.Stage.PRE, this) : null;
+			pre = new PartialRedundancyOpt(this);
+			pre.optimize();
+			if (m != null)
+				m.stop();
+		}
+		
+		if (backFromSSA) {
+			m = (metrics != null) ? metrics.start(Metrics.Stage.DeSSA, this) : null;
+			ssaTrans.translateBackFromSSA();
+			if (m != null)
+				m.stop();
+		}
 	}
 	
 	private Block intersect(Block b1, Block b2) {
@@ -174,15 +360,19 @@ public class Routine extends Node {
 	public void genDominator() {
 		
 		boolean changed = true;
-		List<Block> postorder = Tools.genPostOrder(blocks);
+		BlockOrder order = getOrder();
+		df = null;
+		Block[] postorder = new Block[order.size()];
+		for (int i = 0; i < postorder.length; i++)
+			postorder[i] = order.blocks[order.postorder[i]];
 		
 		entryBlock.setIdom(entryBlock);
 		
 		while (changed) {
 			changed = false;
 			
-			for (int i = blockCount - 2; i >= 0; --i) {
-				Block b = postorder.get(i);
+			for (int i = postorder.length - 2; i >= 0; --i) {
+				Block b = postorder[i];
 				Iterator<Block> it = b.getPreds().iterator();
 				
 				Block newIdom = null;
@@ -208,17 +398,95 @@ public class Routine extends Node {
 			}
 		}
 		
-//		for (int i = 0; i < blockCount - 1; ++i) {
-//			Block b = postorder.get(i);
-//			b.getIdom().addChild(b);
-//		}
+		for (int i = postorder.length - 2; i >= 0; --i) {
+			Block b = postorder[i];
+			b.getIdom().addChild(b);
+		}
+	}
+	
+	// Lengauer-Tarjan with path compression over dense block numbers (DFS
+	// preorder). Same idoms and same children order as genDominator.
+	public void genDominatorLT() {
+		BlockOrder order = getOrder();
+		df = null;
+		int count = order.size();
+		int[] parent = new int[count];
+		int[] semi = new int[count];
+		int[] idom = new int[count];
+		int[] ancestor = new int[count];
+		int[] label = new int[count];
+		int[] bucketHead = new int[count];
+		int[] bucketNext = new int[count];
 		
-		for (int i = blockCount - 2; i >= 0; --i) {
-			Block b = postorder.get(i);
+		// vertices are preorder numbers from here on
+		for (int v = 0; v < count; v++) {
+			int p = order.parent[order.preorder[v]];
+			parent[v] = (p == -1) ? -1 : order.preNumber[p];
+			semi[v] = v;
+			label[v] = v;
+			ancestor[v] = -1;
+			bucketHead[v] = -1;
+		}
+		
+		int[] path = new int[count];
+		for (int w = count - 1; w > 0; w--) {
+			for (Block pred: order.blocks[order.preorder[w]].getPreds()) {
+				int p = order.indexOf(pred);
+				if (p == -1 || order.preNumber[p] == -1)
+					continue;	// unreachable predecessor
+				int u = eval(order.preNumber[p], ancestor, label, semi, path);
+				if (semi[u] < semi[w])
+					semi[w] = semi[u];
+			}
+			
+			bucketNext[w] = bucketHead[semi[w]];
+			bucketHead[semi[w]] = w;
+			ancestor[w] = parent[w];
+			
+			int p = parent[w];
+			for (int v = bucketHead[p]; v != -1; v = bucketNext[v]) {
+				int u = eval(v, ancestor, label, semi, path);
+				idom[v] = (semi[u] < semi[v]) ? u : p;
+			}
+			bucketHead[p] = -1;
+		}
+		
+		for (int w = 1; w < count; w++)
+			if (idom[w] != semi[w])
+				idom[w] = idom[idom[w]];
+		
+		entryBlock.setIdom(entryBlock);
+		for (int w = 1; w < count; w++)
+			order.blocks[order.preorder[w]].setIdom(order.blocks[order.preorder[idom[w]]]);
+		
+		// children in reverse postorder, as genDominator adds them
+		for (int i = order.postorder.length - 2; i >= 0; --i) {
+			Block b = order.blocks[order.postorder[i]];
 			b.getIdom().addChild(b);
 		}
 	}
 	
+	// vertex with the least semi on the compressed ancestor path of v
+	private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+		if (ancestor[v] == -1)
+			return v;
+		
+		// compress iteratively: collect the path up to the forest root
+		int top = 0;
+		for (int u = v; ancestor[ancestor[u]] != -1; u = ancestor[u])
+			path[top++] = u;
+		
+		while (top > 0) {
+			int u = path[--top];
+			int a = ancestor[u];
+			if (semi[label[a]] < semi[label[u]])
+				label[u] = label[a];
+			ancestor[u] = ancestor[a];
+		}
+		
+		return label[v];
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder(500);
@@ -228,65 +496,42 @@ public class Routine extends Node {
 		return sb.toString();
 	}
 	
-	public String dump() {
-		StringBuilder sb = new StringBuilder();
-		for (Block b: blocks) {
-			sb.append(b.dump());
-		}
-		return sb.toString();
+	// the cold blocks go after every routine, see Program.dump
+	public void dump(Appendable out) throws IOException {
+		for (Block b: blocks)
+			if (!b.cold)
+				b.dump(out);
 	}
 	
-	public String dumpIR() {
-		/*System.out.print("method " + name + "@" + startLine + ":");
-		for (Variable v: localVars)
-			System.out.print(" " + v.fullString());
-		System.out.println();*/
-		StringBuilder sb = new StringBuilder();
-		for (Block b: blocks) {
-			sb.append(b.dumpIR());
-		}
-		return sb.toString();
+	public void dumpCold(Appendable out) throws IOException {
+		for (Block b: blocks)
+			if (b.cold)
+				b.dump(out);
 	}
 	
-	public String dumpCFG() {
-		/*System.out.print("method " + name + "@" + startLine + ":");
-		for (Variable v: localVars)
-			System.out.print(" " + v.fullString());
-		System.out.println(" entryblock #" + entryBlock.index);*/
-		StringBuilder sb = new StringBuilder();
-		for (Block b: blocks) {
-			sb.append("\n" + b.dumpCFG());
-		}
-		return sb.toString();
+	public void dumpIR(Appendable out) throws IOException {
+		for (Block b: blocks)
+			if (!b.cold)
+				b.dumpIR(out);
 	}
 	
-	public String dumpSSA() {
-		/*System.out.print("method " + name + "@" + startLine + ":");
-		for (Variable v: localVars)
-			System.out.print(" " + v.fullString());
-		System.out.println(" entryblock #" + entryBlock.index);*/
-		StringBuilder sb = new StringBuilder();
+	public void dumpColdIR(Appendable out) throws IOException {
+		for (Block b: blocks)
+			if (b.cold)
+				b.dumpIR(out);
+	}
+	
+	public void dumpCFG(Appendable out) throws IOException {
 		for (Block b: blocks) {
-			sb.append("\n" + b.dumpSSA());
+			out.append('\n');
+			b.dumpCFG(out);
 		}
-		return sb.toString();
 	}
 	
-	public static Routine parse(String line) {
-		String method = line.substring(7);
-		String name = method.substring(0, method.indexOf('@'));
-		int startLine = Integer.parseInt(method.substring(method.indexOf('@') + 1, method.indexOf(':')));
-		String varstring = method.substring(method.indexOf(':') + 1, method.length());
-		
-		String vars[] = varstring.trim().split(" ");
-		List<Variable> varList = new ArrayList<Variable>();
-		for (String v: vars) 
-			if (v.length() > 0)
-				varList.add((Variable)Token.parse(v));
-		
-		/*for (Variable v: varList)
-			System.out.println(v.debug());*/
-		
-		return new Routine(name, startLine, varList);
+	public void dumpSSA(Appendable out) throws IOException {
+		for (Block b: blocks) {
+			out.append('\n');
+			b.dumpSSA(out);
+		}
 	}
 }
@@ -1,6 +1,7 @@
 package compiler;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,120 +29,111 @@ public class SSATransform {
 	private Block entryBlock;
 	private List<Variable> localVars;
 	
-	// SSA renaming
-	private Stack<String> varStack[];
+	// SSA renaming, stacks hold value ids
+	private Map<String, Integer> varIndex;
+	private Stack<Integer> varStack[];
 	private int varCounter[];
+	private SSAValueTable values = new SSAValueTable();
 	//private List<Variable> ssaVars;
 	
+	private Option.SSAForm form;
+	public int phiCounter = 0;
+	public int phiAvoided = 0;	// compared with minimal SSA
+	
 	public SSATransform(Routine r) {
+		this(r, Option.SSAForm.Minimal);
+	}
+	
+	public SSATransform(Routine r, Option.SSAForm form) {
 		this.routine = r;
 		this.blocks = routine.getBlocks();
 		this.entryBlock = routine.getEntryBlock();
 		this.localVars = routine.getLocalVars();
+		this.form = form;
 	}
 	
-	private void genDomFrontier() {
-		List<Block> topOrder = Tools.genTopOrder(blocks);
-		
-		for (Block block: topOrder) {
-			for (Block succ: block.getSuccs()) {
-				if (succ.getIdom() != block) {
-					block.addDF(succ);
-					//System.out.println("block " + block.index + " add " + succ.index);
-				}
-			}
-			for (Block child: block.getChildren())
-				for (Block df: child.getDF()) {
-					if (df.getIdom() != block) {
-						block.addDF(df);
-						//System.out.println("block " + block.index + " add " + df.index + " through " + child.index);
-					}
-				}
-		}
-	}
+	public Option.SSAForm getForm() { return form; }
+	
+	public SSAValueTable getValues() { return values; }
 	
 	private void placePhi() {
-		List<Block> workList = new LinkedList<Block>();
-		Set<Block> everOnWorkList = new HashSet<Block>();
-		Set<Block> hasAlready = new HashSet<Block>();
+		DominanceFrontier df = routine.getDominanceFrontier();
+		BlockOrder order = df.getOrder();
 		
 		// place entry stmt
 		if (localVars.size() > 0)
-			routine.getEntryBlock().body.add(0, new EntryStmt(localVars, entryBlock));
+			routine.getEntryBlock().body.add(0, new EntryStmt(routine.newStmtIndex(), localVars, entryBlock));
 		
-		for (Variable var: localVars) {
-			workList.clear();
-			everOnWorkList.clear();
-			hasAlready.clear();
-			
-			for (Block block: blocks)
-				if (block.hasAssignment(var)) {
-					workList.add(block);
-					everOnWorkList.add(block);
-				}
-			
-			while (!workList.isEmpty()) {
-				Block block = workList.get(0);
-				//System.out.println("Work on block " + block.index);
-				workList.remove(0);
-				for (Block df: block.getDF()) {
-					if (!hasAlready.contains(df)) {
-						df.insertPhiNode(var);
-						hasAlready.add(df);
-						if (!everOnWorkList.contains(df)) {
-							everOnWorkList.add(df);
-							workList.add(df);
-						}
+		// blocks assigning each variable, in one pass
+		Map<String, Integer> varIndex = new HashMap<String, Integer>();
+		BitSet[] defBlocks = new BitSet[localVars.size()];
+		for (int i = 0; i < localVars.size(); i++) {
+			varIndex.put(localVars.get(i).name, i);
+			defBlocks[i] = new BitSet();
+		}
+		
+		for (int b = 0; b < order.blocks.length; b++)
+			for (Stmt stmt: order.blocks[b].body)
+				if (stmt instanceof MoveStmt || stmt instanceof EntryStmt)
+					for (Token t: stmt.getLHS()) {
+						Integer i = varIndex.get(((Variable) t).name);
+						if (i != null)
+							defBlocks[i].set(b);
 					}
+		
+		// pruned: only where the variable is live; semi-pruned: only for
+		// variables live across blocks
+		Liveness live = (form != Option.SSAForm.Minimal) ? new Liveness(routine) : null;
+		
+		// phis of a block stay in variable order
+		for (int i = 0; i < localVars.size(); i++) {
+			BitSet idf = df.idf(defBlocks[i]);
+			for (int b = idf.nextSetBit(0); b >= 0; b = idf.nextSetBit(b + 1)) {
+				Block block = order.blocks[b];
+				if ((form == Option.SSAForm.SemiPruned && !live.getNonLocal().get(i)) ||
+						(form == Option.SSAForm.Pruned && !live.getLiveIn(block).get(i))) {
+					phiAvoided ++;
+					continue;
 				}
+				block.insertPhiNode(localVars.get(i));
+				phiCounter ++;
 			}
 		}
 	}
 	
 	private void genSSAName(Variable v) {
-		int i;
-		for (i = 0; i < localVars.size(); i++)
-			if (localVars.get(i).equals(v))
-				break;
-		
-		if (i == localVars.size()) {
+		Integer i = varIndex.get(v.name);
+		if (i == null) {
 			System.out.println(v.toIRString());
 		}
 			
 		Integer index = varCounter[i]++;
-		String name = v.name + "$" + index;
-		v.ssaName = name;
-		varStack[i].push(name);
+		v.ssaName = v.name + "$" + index;
+		varStack[i].push(values.newVariable(v));
 //		ssaVars.add(new Variable(name));
 	}
 	
 	private void setSSAName(Variable v) {
-		int i;
-		for (i = 0; i < localVars.size(); i++)
-			if (localVars.get(i).equals(v))
-				break;
-		
-		v.ssaName = varStack[i].peek();
+		int id = varStack[varIndex.get(v.name)].peek();
+		v.ssaName = values.getName(id);
+		v.ssaId = id;
 	}
 	
 	private void popSSAName(Variable v) {
-		int i;
-		for (i = 0; i < localVars.size(); i++)
-			if (localVars.get(i).equals(v))
-				break;
-		
-		varStack[i].pop();
+		varStack[varIndex.get(v.name)].pop();
 	}
 	
 	private void rename() {
 		int n = localVars.size();
+		varIndex = new HashMap<String, Integer>();
 		varStack = new Stack[n];
 		varCounter = new int[n];
 //		ssaVars = new ArrayList<Variable>();
 		
 		for (int i = 0; i < n; i++) {
 			Variable var = localVars.get(i);
-			Stack<String> stack = new Stack<String>(); 
+			Stack<Integer> stack = new Stack<Integer>(); 
+			varIndex.put(var.name, i);
 			
 			/*if (var.getOffset() > 0) {
 				varCounter[i] = 1;
@@ -155,6 +147,13 @@ public class SSATransform {
 		}
 		
 		renameBlock(entryBlock);
+		
+		// registers get their ids after all variable versions
+		for (Block b: blocks)
+			for (Stmt stmt: b.body)
+				for (Token t: stmt.getLHS())
+					if (t instanceof Register)
+						values.defineRegister((Register) t);
 	}
 	
 	// recursive
@@ -226,13 +225,12 @@ public class SSATransform {
 	}
 	
 	private void eliminateUnused() {
-		DefUseAnalysis du = new DefUseAnalysis(routine);
+		DefUseAnalysis du = new DefUseAnalysis(routine, values);
 		du.analyze();
 		du.eliminateUnused();
 	}
 	
 	public void translateToSSA() {
-		genDomFrontier();
 		placePhi();
 		rename();
 		eliminateUnused();
@@ -256,13 +254,35 @@ public class SSATransform {
 				Token lhs = phi.getLHS().get(0);
 				List<Token> rhs = phi.getRHS();
 				for (int i = 0; i < rhs.size(); i++) {
-					MoveStmt moveStmt = new MoveStmt(rhs.get(i), lhs);
+					MoveStmt moveStmt = new MoveStmt(routine.newStmtIndex(), rhs.get(i), lhs);
 					insertPhiMoveStmt(preds.get(i), moveStmt);
 				}
 			}
 		}
 	}
 	
+	// give var the name and slot of its SSA version, allocating a new slot
+	// below offset for a version not seen yet; returns the new lowest offset
+	private int renameVariable(Variable var, Map<String, Variable> oldVarMap,
+			Map<String, Variable> ssaVarMap, List<Variable> newVarList, int offset) {
+		if (ssaVarMap.containsKey(var.ssaName)) {
+			Variable ref = ssaVarMap.get(var.ssaName);
+			var.type = ref.type;
+			var.offset = ref.offset;
+			var.name = var.ssaName;
+		} else {
+			Variable ref = oldVarMap.get(var.name);
+			var.type = ref.type;
+			offset -= 4;
+			var.offset = offset;
+			
+			var.name = var.ssaName;
+			ssaVarMap.put(var.name, var);
+			newVarList.add(var);
+		}
+		return offset;
+	}
+	
 	private void renameVariable() {
 		
 		Map<String, Variable> oldVarMap = new HashMap<String, Variable>();
@@ -298,34 +318,15 @@ public class SSATransform {
 					}
 					it.remove();
 				} else {
+					// a variable added after renaming (see PartialRedundancyOpt)
+					// can be used in a block placed before its first def
 					for (Token t: stmt.getRHS())
-						if (t instanceof Variable) {
-							Variable var = (Variable) t;
-							Variable ref = ssaVarMap.get(var.ssaName);
-							var.offset = ref.offset;
-							var.type = ref.type;
-							var.name = var.ssaName;
-						}
+						if (t instanceof Variable)
+							offset = renameVariable((Variable) t, oldVarMap, ssaVarMap, newVarList, offset);
 					
 					for (Token t: stmt.getLHS())
-						if (t instanceof Variable) {
-							Variable var = (Variable) t;
-							if (ssaVarMap.containsKey(var.ssaName)) {
-								Variable ref = ssaVarMap.get(var.ssaName);
-								var.type = ref.type;
-								var.offset = ref.offset;
-								var.name = var.ssaName;
-							} else {
-								Variable ref = oldVarMap.get(var.name);
-								var.type = ref.type;
-								offset -= 4;
-								var.offset = offset;
-								
-								var.name = var.ssaName;
-								ssaVarMap.put(var.name, var);
-								newVarList.add(var);
-							}
-						}
+						if (t instanceof Variable)
+							offset = renameVariable((Variable) t, oldVarMap, ssaVarMap, newVarList, offset);
 				}
 			}
 		}
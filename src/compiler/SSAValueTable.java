@@ -0,0 +1,66 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import token.Register;
+import token.Token;
+import token.Variable;
+
+// Dense int ids for the SSA values of a routine: every variable version
+// gets one when SSATransform renames it (kept in Variable.ssaId), every
+// register defined by a stmt gets one after renaming. Optimizations index
+// arrays with these ids instead of hashing toSSAString().
+public class SSAValueTable {
+	
+	// a token naming each value, as template for newToken
+	private List<Token> values = new ArrayList<Token>();
+	private IntIntMap registers = new IntIntMap();
+	
+	public int size() { return values.size(); }
+	
+	public int newVariable(Variable v) {
+		int id = values.size();
+		Variable template = new Variable(v.name);
+		template.ssaName = v.ssaName;
+		template.ssaId = id;
+		values.add(template);
+		v.ssaId = id;
+		return id;
+	}
+	
+	public int defineRegister(Register r) {
+		int id = registers.get(r.index);
+		if (id == -1) {
+			id = values.size();
+			values.add(new Register(r.index));
+			registers.put(r.index, id);
+		}
+		return id;
+	}
+	
+	// id of a variable or register token, -1 for everything else
+	public int getId(Token t) {
+		if (t instanceof Variable)
+			return ((Variable) t).ssaId;
+		if (t instanceof Register)
+			return registers.get(((Register) t).index);
+		return -1;
+	}
+	
+	public boolean isRegister(int id) { return values.get(id) instanceof Register; }
+	
+	// a new token for value id
+	public Token newToken(int id) {
+		Token t = values.get(id);
+		if (t instanceof Register)
+			return new Register(((Register) t).index);
+		
+		Variable v = new Variable(((Variable) t).name);
+		v.ssaName = ((Variable) t).ssaName;
+		v.ssaId = id;
+		return v;
+	}
+	
+	public String getName(int id) { return values.get(id).toSSAString(); }
+}
@@ -0,0 +1,393 @@
+package compiler;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import stmt.AllocStmt;
+import stmt.ArithStmt;
+import stmt.BranchStmt;
+import stmt.CallStmt;
+import stmt.MoveStmt;
+import stmt.PhiNode;
+import stmt.SafetyStmt;
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Constant;
+import token.GP;
+import token.Offset;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+// Removes checknull, checktype and checkbounds on the SSA form. Walking the
+// dominator tree, a check is dropped if a dominating check of the same
+// object (looking through copies and earlier check results) already did
+// it; checknull also if the object comes from new/newlist. A checkbounds is
+// dropped if its constant index is below a dominating checkbounds of a
+// larger constant or the constant length of newlist, or if the index is an
+// induction variable counting up by 1 from a non-negative constant in a
+// loop whose header exits unless it is below the list's length. Uses of
+// the result of a dropped check get the dominating check's result, or the
+// operand if the object comes from new/newlist.
+//
+// The length of a list is the operand of its newlist; a bound equals it if
+// it is the same value or a load of the same global that no store or call
+// can change in between (stores through GP addresses only write globals).
+public class SafetyCheckOpt {
+
+	private Routine routine;
+	private SSAValueTable values;
+	private Stmt[] def;		// by SSA value id
+	private Block[] defBlock;
+	private LoopForest loops;
+	private boolean globalWrites;	// a store to a global or a call after the first block
+	private int lastEntryWrite = -1;	// position of the last one in the first block
+
+	public int nullCounter = 0;
+	public int typeCounter = 0;
+	public int boundsCounter = 0;
+	public int rangeCounter = 0;	// of boundsCounter, by induction range
+
+	// checks done in the dominator subtree being visited, keyed on (kind,
+	// object, operand): the SSA id of the result of a checknull/checktype,
+	// the largest constant index checked of a list
+	private static final int NULL = 0, TYPE = 1, BOUNDS = 2, MAX = 3;
+	private ScopedHashTable facts = new ScopedHashTable();
+
+	// constants and other operands get keys after the SSA values
+	private IntIntMap constants = new IntIntMap();
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+	private int nextKey;
+
+	// by SSA value id, for isGlobalAddress
+	private boolean[] addressVisited;
+	private boolean[] globalAddress;
+
+	// result registers of dropped checks
+	private Map<Integer, Token> replace = new HashMap<Integer, Token>();
+
+	public SafetyCheckOpt(Routine r) {
+		this.routine = r;
+		this.values = r.ssaTrans.getValues();
+	}
+
+	private void define(Token t, Stmt s, Block b) {
+		int id = values.getId(t);
+		if (id >= 0) {
+			def[id] = s;
+			defBlock[id] = b;
+		}
+	}
+
+	private void findDefs() {
+		def = new Stmt[values.size()];
+		defBlock = new Block[values.size()];
+		for (Block b: routine.getBlocks()) {
+			for (PhiNode phi: b.getPhiNode())
+				define(phi.getLHS().get(0), phi, b);
+			for (Stmt s: b.body)
+				for (Token t: s.getLHS())
+					define(t, s, b);
+		}
+	}
+
+	private Stmt getDef(Token t) {
+		int id = values.getId(t);
+		return (id < 0) ? null : def[id];
+	}
+
+	// t without copies and check results; every copy goes to a value
+	// defined before, so a chain is shorter than the number of values
+	private Token getRoot(Token t) {
+		for (int i = 0; i < values.size(); i++) {
+			Stmt s = getDef(t);
+			if (s instanceof MoveStmt || s instanceof SafetyStmt) {
+				Token src = s.getRHS().get(0);
+				if (src instanceof Variable || src instanceof Register || src instanceof Constant) {
+					t = src;
+					continue;
+				}
+			}
+			break;
+		}
+		return t;
+	}
+
+	private int getKey(Token t) {
+		Token root = getRoot(t);
+		int id = values.getId(root);
+		return (id >= 0) ? id : getOperandKey(root);
+	}
+
+	private int getOperandKey(Token t) {
+		if (t instanceof Constant) {
+			int value = ((Constant) t).getValue();
+			int key = constants.get(value);
+			if (key == -1) {
+				key = nextKey++;
+				constants.put(value, key);
+			}
+			return key;
+		}
+
+		String name = t.toSSAString();
+		Integer key = names.get(name);
+		if (key == null) {
+			key = nextKey++;
+			names.put(name, key);
+		}
+		return key;
+	}
+
+	// value of t if it is a constant
+	private Integer getConstant(Token t) {
+		Token root = getRoot(t);
+		return (root instanceof Constant) ? ((Constant) root).getValue() : null;
+	}
+
+	// an address computed from GP
+	private boolean isGlobalAddress(Token t) {
+		if (t instanceof GP)
+			return true;
+		int id = values.getId(t);
+		if (id < 0 || addressVisited[id])
+			return id >= 0 && globalAddress[id];
+		addressVisited[id] = true;
+
+		Stmt s = def[id];
+		if (s instanceof ArithStmt || s instanceof MoveStmt)
+			for (Token op: s.getRHS())
+				if (isGlobalAddress(op)) {
+					globalAddress[id] = true;
+					break;
+				}
+		return globalAddress[id];
+	}
+
+	// the offset of a global address GP + offset, as GP + offset may be
+	// computed again for every use; null for other addresses
+	private String getGlobalKey(Token t) {
+		Stmt s = getDef(getRoot(t));
+		if (s == null || s.getOperator() != Operator.add)
+			return null;
+		Token a = s.getRHS().get(0);
+		Token b = s.getRHS().get(1);
+		if (a instanceof GP && b instanceof Offset)
+			return b.toSSAString();
+		if (b instanceof GP && a instanceof Offset)
+			return a.toSSAString();
+		return null;
+	}
+
+	private boolean writesGlobals(Stmt s) {
+		return s instanceof CallStmt || (s.getOperator() == Operator.store &&
+				isGlobalAddress(s.getRHS().get(1)));
+	}
+
+	private void findGlobalWrites() {
+		addressVisited = new boolean[values.size()];
+		globalAddress = new boolean[values.size()];
+		Block entry = routine.getEntryBlock();
+		for (Block b: routine.getBlocks())
+			for (int i = 0; i < b.body.size(); i++)
+				if (writesGlobals(b.body.get(i))) {
+					if (b == entry)
+						lastEntryWrite = i;
+					else
+						globalWrites = true;
+				}
+	}
+
+	// length operand of the newlist t comes from, null if unknown
+	private Token getLength(Token t) {
+		Stmt s = getDef(getRoot(t));
+		if (s instanceof AllocStmt && s.getOperator() == Operator.newlist)
+			return s.getRHS().get(0);
+		return null;
+	}
+
+	// a and b hold the same value where b is used
+	private boolean isSameValue(Token a, Token b) {
+		if (getKey(a) == getKey(b))
+			return true;
+
+		// loads of the same global after every write to globals, which may
+		// only be in the first block
+		Token ra = getRoot(a);
+		Token rb = getRoot(b);
+		Stmt la = getDef(ra);
+		Stmt lb = getDef(rb);
+		if (globalWrites || la == null || lb == null || la.getOperator() != Operator.load ||
+				lb.getOperator() != Operator.load)
+			return false;
+		String addr = getGlobalKey(la.getRHS().get(0));
+		if (addr == null || !addr.equals(getGlobalKey(lb.getRHS().get(0))))
+			return false;
+
+		return isAfterGlobalWrites(la, defBlock[values.getId(ra)]) &&
+				isAfterGlobalWrites(lb, defBlock[values.getId(rb)]);
+	}
+
+	private boolean isAfterGlobalWrites(Stmt s, Block b) {
+		return b != routine.getEntryBlock() || b.body.indexOf(s) > lastEntryWrite;
+	}
+
+	// the phi of a loop header that t is, if it counts up by 1 from a
+	// non-negative constant; null otherwise
+	private PhiNode getInduction(Token t, Loop loop) {
+		Stmt s = getDef(getRoot(t));
+		if (!(s instanceof PhiNode) || s.getRHS().size() != 2)
+			return null;
+		PhiNode phi = (PhiNode) s;
+		Block header = phi.getBlock();
+		if (header != loop.header)
+			return null;
+
+		int self = getKey(phi.getLHS().get(0));
+		boolean init = false;
+		boolean step = false;
+		for (int i = 0; i < 2; i++) {
+			Token op = phi.getRHS().get(i);
+			if (!loop.contains(header.getPreds().get(i))) {
+				Integer c = getConstant(op);
+				init = (c != null && c >= 0);
+			} else {
+				Stmt inc = getDef(getRoot(op));
+				if (inc != null && inc.getOperator() == Operator.add) {
+					Token x = inc.getRHS().get(0);
+					Token y = inc.getRHS().get(1);
+					Integer cx = getConstant(x);
+					Integer cy = getConstant(y);
+					step = (cy != null && cy == 1 && getKey(x) == self) ||
+							(cx != null && cx == 1 && getKey(y) == self);
+				}
+			}
+		}
+		return (init && step) ? phi : null;
+	}
+
+	// index < length in block b, and index >= 0
+	private boolean isInRange(Token index, Token length, Block b) {
+		for (Loop loop = loops.getLoop(b); loop != null; loop = loop.parent) {
+			if (getInduction(index, loop) == null)
+				continue;
+
+			// the header leaves the loop unless index < bound
+			Block header = loop.header;
+			Stmt last = header.body.get(header.body.size() - 1);
+			if (!(last instanceof BranchStmt) || last.getOperator() == Operator.br ||
+					header.getSuccs().size() != 2)
+				continue;
+			Stmt cmp = getDef(last.getRHS().get(0));
+			if (cmp == null || cmp.getOperator() != Operator.cmplt ||
+					getKey(cmp.getRHS().get(0)) != getKey(index) ||
+					!isSameValue(length, cmp.getRHS().get(1)))
+				continue;
+
+			Block taken = ((BranchStmt) last).getBranchBlock();
+			Block other = (header.getSuccs().get(0) == taken) ? header.getSuccs().get(1) : header.getSuccs().get(0);
+			Block inLoop = (last.getOperator() == Operator.blbs) ? taken : other;
+			Block exit = (inLoop == taken) ? other : taken;
+			if (loop.contains(exit) || !loop.contains(inLoop) || inLoop.getPreds().size() != 1)
+				continue;
+			if (inLoop.dominates(b))
+				return true;
+		}
+		return false;
+	}
+
+	// what replaces the result of the check if it is redundant (the check
+	// itself for checkbounds), null otherwise
+	private Token visitCheck(Stmt s, Block b) {
+		Operator op = s.getOperator();
+		Token obj = s.getRHS().get(0);
+		int objKey = getKey(obj);
+
+		if (op == Operator.checknull) {
+			if (getDef(getRoot(obj)) instanceof AllocStmt) {
+				nullCounter ++;
+				return obj;
+			}
+			int done = facts.get(NULL, objKey, 0);
+			if (done != -1) {
+				nullCounter ++;
+				return def[done].getLHS().get(0);
+			}
+			facts.put(NULL, objKey, 0, values.getId(s.getLHS().get(0)));
+			return null;
+		}
+
+		if (op == Operator.checktype) {
+			int type = getOperandKey(s.getRHS().get(1));
+			int done = facts.get(TYPE, objKey, type);
+			if (done != -1) {
+				typeCounter ++;
+				return def[done].getLHS().get(0);
+			}
+			facts.put(TYPE, objKey, type, values.getId(s.getLHS().get(0)));
+			return null;
+		}
+
+		// checkbounds
+		Token index = s.getRHS().get(1);
+		int indexKey = getKey(index);
+		Integer c = getConstant(index);
+		int max = facts.get(MAX, objKey, 0);
+		Token length = getLength(obj);
+		Integer len = (length == null) ? null : getConstant(length);
+
+		if (facts.get(BOUNDS, objKey, indexKey) != -1 || (c != null && c >= 0 &&
+				(c <= max || (len != null && c < len)))) {
+			boundsCounter ++;
+			return obj;
+		}
+		if (length != null && isInRange(index, length, b)) {
+			boundsCounter ++;
+			rangeCounter ++;
+			return obj;
+		}
+
+		facts.put(BOUNDS, objKey, indexKey, 0);
+		if (c != null && c > max)
+			facts.put(MAX, objKey, 0, c);
+		return null;
+	}
+
+	private void visit(Block block) {
+		int mark = facts.mark();
+
+		Iterator<Stmt> it = block.body.iterator();
+		while (it.hasNext()) {
+			Stmt s = it.next();
+			List<Token> rhs = s.getRHS();
+			for (int i = 0; i < rhs.size(); i++)
+				if (rhs.get(i) instanceof Register) {
+					Token t = replace.get(((Register) rhs.get(i)).index);
+					if (t != null)
+						s.setRHS(i, (Token) t.clone());
+				}
+
+			Token same = (s instanceof SafetyStmt) ? visitCheck(s, block) : null;
+			if (same != null) {
+				if (s.getLHS().size() > 0)
+					replace.put(((Register) s.getLHS().get(0)).index, same);
+				it.remove();
+			}
+		}
+
+		for (Block child: block.getChildren())
+			visit(child);
+
+		facts.undo(mark);
+	}
+
+	public void optimize() {
+		findDefs();
+		nextKey = values.size();
+		findGlobalWrites();
+		loops = routine.getLoopForest();
+		visit(routine.getEntryBlock());
+	}
+}
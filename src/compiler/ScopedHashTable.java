@@ -0,0 +1,114 @@
+package compiler;
+
+// Hash table from (op, a, b) int triples to int values, with scopes: undo(mark)
+// drops everything put since mark() returned it. Open addressing with linear
+// probing; entries are only ever removed in reverse insertion order, which
+// leaves the probe sequences exactly as they were. Putting a key again
+// shadows its entry until undo drops the new one.
+public class ScopedHashTable {
+	
+	private static final int FREE = -1;
+	
+	// entries in insertion order, with the entry each one shadows or FREE
+	private int[] ops, as, bs, vals, shadows;
+	private int count = 0;
+	
+	// slot -> entry number
+	private int[] slots;
+	
+	public ScopedHashTable() {
+		ops = new int[64];
+		as = new int[64];
+		bs = new int[64];
+		vals = new int[64];
+		shadows = new int[64];
+		slots = new int[128];
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = FREE;
+	}
+	
+	private static int hash(int op, int a, int b) {
+		int h = (op * 31 + a) * 0x9E3779B9 + b;
+		h *= 0x85EBCA6B;
+		return h ^ (h >>> 15);
+	}
+	
+	private int find(int op, int a, int b) {
+		int mask = slots.length - 1;
+		for (int i = hash(op, a, b) & mask; slots[i] != FREE; i = (i + 1) & mask) {
+			int e = slots[i];
+			if (ops[e] == op && as[e] == a && bs[e] == b)
+				return i;
+		}
+		return -1;
+	}
+	
+	// value of (op, a, b), -1 if absent
+	public int get(int op, int a, int b) {
+		int i = find(op, a, b);
+		return (i < 0) ? -1 : vals[slots[i]];
+	}
+	
+	public void put(int op, int a, int b, int value) {
+		if (count == ops.length) {
+			ops = grow(ops);
+			as = grow(as);
+			bs = grow(bs);
+			vals = grow(vals);
+			shadows = grow(shadows);
+		}
+		ops[count] = op;
+		as[count] = a;
+		bs[count] = b;
+		vals[count] = value;
+		
+		if ((count + 1) * 2 > slots.length)
+			rehash(slots.length * 2);
+		int i = find(op, a, b);
+		shadows[count] = (i < 0) ? FREE : slots[i];
+		if (i < 0)
+			insert(count);
+		else
+			slots[i] = count;
+		count++;
+	}
+	
+	public int mark() { return count; }
+	
+	public void undo(int mark) {
+		int mask = slots.length - 1;
+		while (count > mark) {
+			int e = --count;
+			int i = hash(ops[e], as[e], bs[e]) & mask;
+			while (slots[i] != e)
+				i = (i + 1) & mask;
+			slots[i] = shadows[e];
+		}
+	}
+	
+	private void insert(int e) {
+		int mask = slots.length - 1;
+		int i = hash(ops[e], as[e], bs[e]) & mask;
+		while (slots[i] != FREE)
+			i = (i + 1) & mask;
+		slots[i] = e;
+	}
+	
+	private void rehash(int capacity) {
+		slots = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			slots[i] = FREE;
+		for (int e = 0; e < count; e++) {
+			if (shadows[e] == FREE)
+				insert(e);
+			else
+				slots[find(ops[e], as[e], bs[e])] = e;
+		}
+	}
+	
+	private static int[] grow(int[] a) {
+		int[] grown = new int[a.length * 2];
+		System.arraycopy(a, 0, grown, 0, a.length);
+		return grown;
+	}
+}
@@ -0,0 +1,293 @@
+package compiler;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Code;
+import token.Constant;
+import token.GP;
+import token.Offset;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+// Line scanner over a memory-mapped .start file. Instr and method lines are
+// tokenized on the bytes directly: no substring/split, no exceptions, and
+// names and types are interned so each distinct one is one String.
+// Stmts are built by Stmt.create, the only way .start text becomes IR.
+public class StartScanner {
+
+	private static final byte[] METHOD = { 'm', 'e', 't', 'h', 'o', 'd' };
+	private static final byte[] INSTR = { 'i', 'n', 's', 't', 'r' };
+	private static final byte[] TYPE = { 't', 'y', 'p', 'e' };
+	private static final byte[] GLOBAL = { 'g', 'l', 'o', 'b', 'a', 'l' };
+
+	private static final Map<String, Operator> operators = new HashMap<String, Operator>();
+
+	static {
+		for (Operator op: Operator.values())
+			operators.put(op.toString(), op);
+	}
+
+	private ByteBuffer buf;
+	private int pos = 0;
+	private int limit;
+
+	// current line, trimmed: [start, end)
+	private int start, end;
+
+	// intern table, open addressing on the byte hash
+	private String[] names = new String[256];
+	private byte[][] nameBytes = new byte[256][];
+	private int[] nameHashes = new int[256];
+	private int nameCount = 0;
+
+	public StartScanner(ByteBuffer buf) {
+		this.buf = buf;
+		this.limit = buf.limit();
+	}
+
+	public static StartScanner open(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			FileChannel channel = in.getChannel();
+			return new StartScanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			// the mapping stays valid after the channel is closed
+			in.close();
+		}
+	}
+
+	// move to the next line; false at the end of the file
+	public boolean nextLine() {
+		if (pos >= limit)
+			return false;
+
+		int lineEnd = pos;
+		while (lineEnd < limit && buf.get(lineEnd) != '\n')
+			lineEnd++;
+
+		start = pos;
+		end = lineEnd;
+		pos = lineEnd + 1;
+
+		// same as String.trim
+		while (start < end && (buf.get(start) & 0xff) <= ' ')
+			start++;
+		while (end > start && (buf.get(end - 1) & 0xff) <= ' ')
+			end--;
+
+		return true;
+	}
+
+	private boolean startsWith(byte[] prefix) {
+		if (end - start < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+			if (buf.get(start + i) != prefix[i])
+				return false;
+		return true;
+	}
+
+	public boolean isMethod() { return startsWith(METHOD); }
+
+	public boolean isInstr() { return startsWith(INSTR); }
+
+	public boolean isType() { return startsWith(TYPE); }
+
+	public boolean isGlobal() { return startsWith(GLOBAL); }
+
+	// the current line as a String, for type and global declarations
+	public String line() {
+		byte[] b = new byte[end - start];
+		for (int i = 0; i < b.length; i++)
+			b[i] = buf.get(start + i);
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+
+	// instr <index>: <op> <operand>*
+	public Stmt parseInstr() {
+		int p = start + INSTR.length;
+		int colon = indexOf(':', p, end);
+		int index = parseInt(skipSpace(p, colon), colon);
+
+		p = skipSpace(colon + 1, end);
+		int opEnd = indexOf(' ', p, end);
+		Operator op = operators.get(intern(p, opEnd));
+
+		List<Token> oprands = new LinkedList<Token>();
+		p = opEnd;
+		while (p < end) {
+			p = skipSpace(p, end);
+			if (p == end)
+				break;
+			int tokenEnd = indexOf(' ', p, end);
+			if (buf.get(p) == ':')
+				oprands.add(new Register(index, intern(p + 1, tokenEnd)));
+			else
+				oprands.add(parseToken(p, tokenEnd));
+			p = tokenEnd;
+		}
+
+		if (op == null) {
+			System.out.println("Stmt parsing error!");
+			return null;
+		}
+		return Stmt.create(index, op, oprands);
+	}
+
+	// method <name>@<start>: <var>*
+	public Routine parseMethod() {
+		int p = start + METHOD.length + 1;
+		int at = indexOf('@', p, end);
+		String name = intern(p, at);
+		int colon = indexOf(':', at + 1, end);
+		int startLine = parseInt(at + 1, colon);
+
+		List<Variable> varList = new ArrayList<Variable>();
+		p = colon + 1;
+		while (p < end) {
+			p = skipSpace(p, end);
+			if (p == end)
+				break;
+			int tokenEnd = indexOf(' ', p, end);
+			varList.add((Variable) parseToken(p, tokenEnd));
+			p = tokenEnd;
+		}
+
+		return new Routine(name, startLine, varList);
+	}
+
+	// a token on the bytes [s, e)
+	private Token parseToken(int s, int e) {
+		if (isInt(s, e))
+			return new Constant(parseInt(s, e));
+
+		byte c = buf.get(s);
+		if (e - s == 2 && c == 'G' && buf.get(s + 1) == 'P')
+			return new GP();
+		if (c == '(')
+			return new Register(parseInt(s + 1, e - 1));
+		if (c == '[')
+			return new Code(parseInt(s + 1, e - 1));
+
+		int sep = indexOf('#', s, e);
+		String name = intern(s, sep);
+
+		if (name.endsWith("_offset") || name.endsWith("_base") || name.endsWith("_type")) {
+			if (isInt(sep + 1, e))
+				return new Offset(name, parseInt(sep + 1, e));
+			return new Offset(name);
+		}
+
+		int colon = indexOf(':', sep + 1, e);
+		if (colon < e && colon > sep + 1)
+			return new Variable(name, intern(colon + 1, e), parseInt(sep + 1, colon));
+		return new Variable(name, parseInt(sep + 1, e));
+	}
+
+	private int indexOf(char c, int s, int e) {
+		while (s < e && buf.get(s) != c)
+			s++;
+		return s;
+	}
+
+	private int skipSpace(int s, int e) {
+		while (s < e && buf.get(s) == ' ')
+			s++;
+		return s;
+	}
+
+	// optional sign and at least one digit, like Integer.parseInt accepts
+	private boolean isInt(int s, int e) {
+		if (s < e && (buf.get(s) == '-' || buf.get(s) == '+'))
+			s++;
+		if (s == e)
+			return false;
+		for (; s < e; s++) {
+			byte c = buf.get(s);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	private int parseInt(int s, int e) {
+		boolean negative = false;
+		if (s < e && (buf.get(s) == '-' || buf.get(s) == '+')) {
+			negative = buf.get(s) == '-';
+			s++;
+		}
+		int value = 0;
+		for (; s < e; s++)
+			value = value * 10 + (buf.get(s) - '0');
+		return negative ? -value : value;
+	}
+
+	private String intern(int s, int e) {
+		int hash = 0;
+		for (int i = s; i < e; i++)
+			hash = 31 * hash + buf.get(i);
+
+		int mask = names.length - 1;
+		int slot = hash & mask;
+		while (names[slot] != null) {
+			if (nameHashes[slot] == hash && sameBytes(nameBytes[slot], s, e))
+				return names[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		byte[] b = new byte[e - s];
+		for (int i = 0; i < b.length; i++)
+			b[i] = buf.get(s + i);
+		String name = new String(b, StandardCharsets.ISO_8859_1);
+
+		names[slot] = name;
+		nameBytes[slot] = b;
+		nameHashes[slot] = hash;
+		if (++nameCount * 2 > names.length)
+			rehash();
+		return name;
+	}
+
+	private boolean sameBytes(byte[] b, int s, int e) {
+		if (b.length != e - s)
+			return false;
+		for (int i = 0; i < b.length; i++)
+			if (b[i] != buf.get(s + i))
+				return false;
+		return true;
+	}
+
+	private void rehash() {
+		String[] oldNames = names;
+		byte[][] oldBytes = nameBytes;
+		int[] oldHashes = nameHashes;
+
+		names = new String[oldNames.length * 2];
+		nameBytes = new byte[names.length][];
+		nameHashes = new int[names.length];
+
+		int mask = names.length - 1;
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] == null)
+				continue;
+			int slot = oldHashes[i] & mask;
+			while (names[slot] != null)
+				slot = (slot + 1) & mask;
+			names[slot] = oldNames[i];
+			nameBytes[slot] = oldBytes[i];
+			nameHashes[slot] = oldHashes[i];
+		}
+	}
+}
@@ -1,61 +1,71 @@
 package compiler;
 
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 public class Tools {
 	
-	private static List<Block> postorder;
-	private static HashMap<Block, Boolean> visit;
-	
-	private static void dfs(Block b) {
-		visit.put(b, true);
-		
-		for (Block child: b.getSuccs())
-			if (!visit.get(child))
-				dfs(child);
+	// DFS over the CFG from entry with an explicit stack, successors in list
+	// order. Routine.getOrder caches the result.
+	public static BlockOrder genOrder(List<Block> blockList, Block entry) {
+		int n = blockList.size();
+		Block[] blocks = blockList.toArray(new Block[n]);
+		for (int i = 0; i < n; i++)
+			blocks[i].orderIndex = i;
 		
-		postorder.add(b);
-	}
-	
-	// based on CFG
-	public static List<Block> genPostOrder(List<Block> blocks) {
-		visit = new HashMap<Block, Boolean>();
-		postorder = new LinkedList<Block>();
+		int[] preNumber = new int[n];
+		int[] postNumber = new int[n];
+		int[] parent = new int[n];
+		int[] next = new int[n];
+		int[] stack = new int[n];
+		int[] preorder = new int[n];
+		int[] postorder = new int[n];
+		int preCount = 0, postCount = 0, sp = 0;
 		
-		for (Block b: blocks)
-			visit.put(b, false);
-		
-		dfs(blocks.get(0));
-		
-		return postorder;
-	}
-	
-	// based on dominator tree
-	public static List<Block> genTopOrder(List<Block> blocks) {
-		List<Block> workList = new LinkedList<Block>(blocks);
-		HashMap<Block, Integer> degree = new HashMap<Block, Integer>();
-		List<Block> topOrder = new LinkedList<Block>();
+		for (int i = 0; i < n; i++) {
+			preNumber[i] = -1;
+			postNumber[i] = -1;
+			parent[i] = -1;
+		}
 		
-		for (Block b: blocks)
-			degree.put(b, new Integer(b.getChildren().size()));
+		if (entry != null && entry.orderIndex < n && blocks[entry.orderIndex] == entry) {
+			int e = entry.orderIndex;
+			preNumber[e] = preCount;
+			preorder[preCount++] = e;
+			stack[sp++] = e;
+		}
 		
-		while (!workList.isEmpty()) {
-			for (int i = 0; i < workList.size(); i++) {
-				Block b = workList.get(i);
-				Integer out = degree.get(b);
-				if (out == 0) {
-					workList.remove(i);
-					topOrder.add(b);
-					
-					Block parent = b.getIdom();
-					if (parent != null)
-						degree.put(parent, degree.get(parent) - 1); 
+		while (sp > 0) {
+			int v = stack[sp - 1];
+			List<Block> succs = blocks[v].getSuccs();
+			if (next[v] < succs.size()) {
+				Block succ = succs.get(next[v]++);
+				int w = succ.orderIndex;
+				if (w < 0 || w >= n || blocks[w] != succ) {
+					System.out.println("Tools.genOrder error: successor block #" + succ.id + " is not in the block list");
+					continue;
 				}
+				if (preNumber[w] == -1) {
+					preNumber[w] = preCount;
+					preorder[preCount++] = w;
+					parent[w] = v;
+					stack[sp++] = w;
+				}
+			} else {
+				postNumber[v] = postCount;
+				postorder[postCount++] = v;
+				sp--;
 			}
 		}
 		
-		return topOrder;
+		if (preCount < n) {
+			int[] pre = new int[preCount];
+			int[] post = new int[postCount];
+			System.arraycopy(preorder, 0, pre, 0, preCount);
+			System.arraycopy(postorder, 0, post, 0, postCount);
+			preorder = pre;
+			postorder = post;
+		}
+		
+		return new BlockOrder(blocks, preorder, postorder, preNumber, postNumber, parent);
 	}
 }
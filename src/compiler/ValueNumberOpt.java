@@ -4,14 +4,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
-import attr.ConstantAttr;
 import attr.ValueNumberAttr;
-import attr.ConstantAttr.ConstantType;
 
 import stmt.AllocStmt;
 import stmt.ArithStmt;
+import stmt.CallStmt;
 import stmt.DynamicStmt;
 import stmt.EntryStmt;
 import stmt.MemoryStmt;
@@ -21,289 +20,383 @@ import stmt.PhiNode;
 import stmt.SafetyStmt;
 import stmt.Stmt;
 import stmt.Stmt.Operator;
+import token.Constant;
 import token.Register;
 import token.Token;
 import token.Variable;
 
+// Dominator based value numbering (DVNT). Expressions are keyed on
+// (operator, value number, value number) in a scoped hash table, operands of
+// commutative operators in canonical order. The global mode (-opt=gvn) also
+// numbers loads, tagged with a memory epoch that stores and calls advance,
+// the null/type/bounds checks and isnull/istype.
 public class ValueNumberOpt {
-	
-	public class Expr {
-		public Operator op;
-		public String op1;
-		public String op2;
-		
-		public Expr(Operator op, String op1, String op2) {
-			this.op = op;
-			this.op1 = op1;
-			this.op2 = op2;
-		}
-		
-		public Expr(Operator op) {
-			this.op = op;
-		}
-		
-		@Override
-		public String toString() {
-			return op.toString() + " " + op1 + " " + op2;
-		}
-		
-		public boolean equals(Object o) {
-			Expr expr = (Expr) o;
-			if (op != expr.op)
-				return false;
-			
-			if ((op1.equals(expr.op1) && op2.equals(expr.op2)) ||
-				(op1.equals(expr.op2) && op2.equals(expr.op1)))
-				return true;
-			
-			return false;
-		}
-		
-		public int hashCode() {
-			int hash = 17031;
-			int code = op.getIndex() * hash + op1.hashCode() + op2.hashCode();
-			return code;
-		}
-	}
-	
+
 	private Routine routine;
+	private SSAValueTable values;
+	private boolean global;
 	public int exprCounter = 0;
-	
+	public int loadCounter = 0;		// global mode only
+	public int checkCounter = 0;
+
+	// value number of every SSA value id, -1 if not visited; the undo log
+	// holds (id, old value) pairs to restore when DVNT leaves a block
+	private int[] valueNumber;
+	private int[] undoLog = new int[64];
+	private int undoTop = 0;
+
+	private ScopedHashTable exprTable = new ScopedHashTable();
+
+	// constants, offsets and GP get value numbers after the SSA values
+	private IntIntMap constants = new IntIntMap();
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+	private int nextValue;
+
+	// memory state for loads
+	private int memEpoch;
+	private int nextEpoch = 0;
+
 	public ValueNumberOpt(Routine r) {
+		this(r, false);
+	}
+
+	public ValueNumberOpt(Routine r, boolean global) {
 		this.routine = r;
+		this.values = r.ssaTrans.getValues();
+		this.global = global;
 	}
-	
-	private Token genNewToken(String val) {
-		int pos;
-		if ((pos = val.indexOf('$')) < 0) {
-			int index = Integer.parseInt(val.substring(1, val.length() - 1));
-			return new Register(index);
-		} else {
-			//System.out.println("ValueNumberOpt.genNewRegister error: parse in variable type (" + val + ")");
-			String name = val.substring(0, pos);
-			Variable v = new Variable(name);
-			v.ssaName = val;
-			return v;
+
+	public boolean isGlobal() { return global; }
+
+	private static boolean isCommutative(Operator op) {
+		return op == Operator.add || op == Operator.mul || op == Operator.cmpeq;
+	}
+
+	// phis are only equal to phis of the same block
+	private static int phiKey(Block b) {
+		return -1 - b.id;
+	}
+
+	private Token genNewToken(int val) {
+		return values.newToken(val);
+	}
+
+	private int getValueNumber(int id) {
+		return (id < 0) ? -1 : valueNumber[id];
+	}
+
+	private void setValueNumber(Token t, int val) {
+		int id = values.getId(t);
+		if (undoTop + 2 > undoLog.length) {
+			int[] grown = new int[undoLog.length * 2];
+			System.arraycopy(undoLog, 0, grown, 0, undoTop);
+			undoLog = grown;
+		}
+		undoLog[undoTop++] = id;
+		undoLog[undoTop++] = valueNumber[id];
+		valueNumber[id] = val;
+	}
+
+	// its own value number for a token defining a value
+	private void setSelf(Token t) {
+		setValueNumber(t, values.getId(t));
+	}
+
+	private void undo(int mark) {
+		while (undoTop > mark) {
+			int old = undoLog[--undoTop];
+			valueNumber[undoLog[--undoTop]] = old;
+		}
+	}
+
+	private int getConstantValue(Token token) {
+		if (token instanceof Constant) {
+			int value = ((Constant) token).getValue();
+			int val = constants.get(value);
+			if (val == -1) {
+				val = nextValue++;
+				constants.put(value, val);
+			}
+			return val;
+		}
+
+		String name = token.toSSAString();
+		Integer val = names.get(name);
+		if (val == null) {
+			val = nextValue++;
+			names.put(name, val);
 		}
+		return val;
 	}
-	
-	private void dumpValueNumber(HashMap<String, String> valueNumber) {
-		Set<String> keySet = valueNumber.keySet();
-		for (String key: keySet)
-			System.out.println(key + ": " + valueNumber.get(key));
-		
+
+	private void dumpValueNumber() {
+		for (int id = 0; id < valueNumber.length; id++)
+			if (valueNumber[id] >= 0)
+				System.out.println(values.getName(id) + ": " + values.getName(valueNumber[id]));
+
 	}
-	
+
 	// PhiNode cannot call this function
 	// only replace rhs token
-	private String getValue(Stmt stmt, int index, HashMap<String, String> valueNumber) {
-		String val;
+	private int getValue(Stmt stmt, int index) {
+		int val;
 		Token token = stmt.getRHS().get(index);
 		if (token instanceof Variable || token instanceof Register) {
-			val = valueNumber.get(token.toSSAString());
-			if (val == null) {
+			int id = values.getId(token);
+			val = getValueNumber(id);
+			if (val == -1) {
 				System.out.println("ValueNumberOpt.getValue error: Token not found " + token.toSSAString());
-//				dumpValueNumber(valueNumber);
-			} else if (!val.equals(token.toSSAString())) {
+//				dumpValueNumber();
+			} else if (val != id) {
 				Token newReg = genNewToken(val);
 				stmt.setRHS(index, newReg);
 			}
 		} else
-			val = token.toSSAString();
+			val = getConstantValue(token);
 		return val;
 	}
-	
-	// return: 0 -> keep same, 1 -> meaningless, 2 -> redundant
-	private int visitPhiNode(PhiNode phi, HashMap<String, String> valueNumber, HashMap<Expr, String> exprHash) {
-		
+
+	// lhs of stmt gets the value of (op, a, b) if there is one and the stmt
+	// is redundant; otherwise lhs (if any) becomes the value of (op, a, b)
+	private boolean lookup(Stmt stmt, int op, int a, int b) {
+		List<Token> lhs = stmt.getLHS();
+		int val = exprTable.get(op, a, b);
+		if (val != -1) {
+			if (lhs.size() > 0)
+				setValueNumber(lhs.get(0), val);
+			return true;
+		}
+
+		if (lhs.size() > 0) {
+			setSelf(lhs.get(0));
+			exprTable.put(op, a, b, values.getId(lhs.get(0)));
+		} else
+			exprTable.put(op, a, b, 0);
+		return false;
+	}
+
+	// return: -1 -> keep, otherwise the value replacing the phi
+	private int visitPhiNode(PhiNode phi) {
+
 //		System.out.println("visit PhiNode:" + phi.toSSAString());
-		
-		boolean same = true;
-		String lhs = phi.getLHS().get(0).toSSAString();
-		
-		for (Token t: phi.getRHS())
+
+		Token lhs = phi.getLHS().get(0);
+		List<Token> rhs = phi.getRHS();
+
+		for (Token t: rhs)
 			if (t.getAttr() == null) {
-				valueNumber.put(lhs, lhs);
-				return 0;
+				setSelf(lhs);
+				return -1;
 			}
 
-		String op1 = ((ValueNumberAttr)phi.getRHS().get(0).getAttr()).val;
-		String op2 = ((ValueNumberAttr)phi.getRHS().get(1).getAttr()).val;
-		
-		if (op1.equals(op2)) {
-//			System.out.println("Meaningless phi: " + lhs + " := " + op1);
-			valueNumber.put(lhs, op1);
-			return 1;
+		int op1 = ((ValueNumberAttr) rhs.get(0).getAttr()).val;
+		boolean same = true;
+		for (Token t: rhs)
+			if (((ValueNumberAttr) t.getAttr()).val != op1)
+				same = false;
+
+		if (same) {
+//			System.out.println("Meaningless phi: " + lhs.toSSAString() + " := " + values.getName(op1));
+			setValueNumber(lhs, op1);
+			return op1;
+		}
+
+		if (rhs.size() != 2) {
+			setSelf(lhs);
+			return -1;
 		}
-		
-		Expr expr = new Expr(Operator.phinode, op1, op2);
-		
-		if (exprHash.containsKey(expr)) {
-//			System.out.println("Redundant phi: " + lhs + " := " + exprHash.get(expr));
-			valueNumber.put(lhs, exprHash.get(expr));
-			return 2;
+
+		int op2 = ((ValueNumberAttr) rhs.get(1).getAttr()).val;
+		int key = phiKey(phi.getBlock());
+		int val = exprTable.get(key, op1, op2);
+		if (val != -1) {
+//			System.out.println("Redundant phi: " + lhs.toSSAString() + " := " + values.getName(val));
+			setValueNumber(lhs, val);
+			return val;
 		} else {
-//			System.out.println("phi: " + lhs + " := " + lhs);
-			exprHash.put(expr, lhs);
-			valueNumber.put(lhs, lhs);
-			return 0;
+//			System.out.println("phi: " + lhs.toSSAString() + " := " + lhs.toSSAString());
+			setSelf(lhs);
+			exprTable.put(key, op1, op2, values.getId(lhs));
+			return -1;
 		}
 	}
-	
-	private boolean visitArithStmt(ArithStmt stmt, HashMap<String, String> valueNumber, HashMap<Expr, String> exprHash) {
-		
+
+	private boolean visitArithStmt(ArithStmt stmt) {
+
 //		System.out.println("visit ArithStmt:" + stmt.toSSAString());
-		
-		if (stmt.getOperator() == Operator.neg)
-			return false;
-		
-		Expr expr = new Expr(stmt.getOperator());
-		expr.op1 = getValue(stmt, 0, valueNumber);
-		expr.op2 = getValue(stmt, 1, valueNumber);
-		
-		String lhs = stmt.getLHS().get(0).toSSAString();
-		
-		if (exprHash.containsKey(expr)) {
-			valueNumber.put(lhs, exprHash.get(expr));
-			
-//			System.out.println("remove stmt:" + stmt.toSSAString());
-//			System.out.println("replace " + lhs + " by " + exprHash.get(expr));
-			return true;
-		} else {
-			valueNumber.put(lhs, lhs);
-			exprHash.put(expr, lhs);
-			return false;
+
+		Operator op = stmt.getOperator();
+		int op1 = getValue(stmt, 0);
+		int op2 = (op == Operator.neg) ? -1 : getValue(stmt, 1);
+
+		if (isCommutative(op) && op1 > op2) {
+			int t = op1;
+			op1 = op2;
+			op2 = t;
 		}
+
+//		System.out.println("remove stmt:" + stmt.toSSAString());
+		return lookup(stmt, op.getIndex(), op1, op2);
 	}
-	
-	private void visitMoveStmt(MoveStmt stmt, HashMap<String, String> valueNumber, HashMap<Expr, String> exprHash) {
-		
+
+	private void visitMoveStmt(MoveStmt stmt) {
+
 //		System.out.println("visit MoveStmt:" + stmt.toSSAString());
-		
+
 		Token rhs = stmt.getRHS().get(0);
-		String lhs = stmt.getLHS().get(0).toSSAString();
-		
+		Token lhs = stmt.getLHS().get(0);
+
 		if (rhs instanceof Variable || rhs instanceof Register) {
-			String val = getValue(stmt, 0, valueNumber);
-			valueNumber.put(lhs, val);
-			
+			int val = getValue(stmt, 0);
+			setValueNumber(lhs, val);
+
 		} else
-			valueNumber.put(lhs, lhs);
+			setSelf(lhs);
+	}
+
+	// global mode: loads, checks and object compares
+	private boolean visitGlobalStmt(Stmt stmt) {
+		Operator op = stmt.getOperator();
+		int n = stmt.getRHS().size();
+		int op1 = (n > 0) ? getValue(stmt, 0) : -1;
+		int op2 = (n > 1) ? getValue(stmt, 1) : -1;
+
+		if (op == Operator.load) {
+			if (lookup(stmt, op.getIndex(), op1, memEpoch)) {
+				++ loadCounter;
+				return true;
+			}
+			return false;
+		}
+
+		if (lookup(stmt, op.getIndex(), op1, op2)) {
+			if (stmt instanceof SafetyStmt)
+				++ checkCounter;
+			else
+				++ exprCounter;
+			return true;
+		}
+		return false;
 	}
-	
-	private void visitOtherStmt(Stmt stmt, HashMap<String, String> valueNumber, HashMap<Expr, String> exprHash) {
+
+	private boolean visitOtherStmt(Stmt stmt) {
+		if (global && (stmt instanceof SafetyStmt || stmt instanceof ObjCmpStmt ||
+				stmt.getOperator() == Operator.load))
+			return visitGlobalStmt(stmt);
+
 		if (stmt instanceof EntryStmt) {
 			for (Token t: stmt.getLHS())
-				valueNumber.put(t.toSSAString(), t.toSSAString());
+				setSelf(t);
 		} else if (stmt instanceof MemoryStmt) {
-			if (stmt.getOperator() == Operator.load) {
-				String lhs = stmt.getLHS().get(0).toSSAString();
-				valueNumber.put(lhs, lhs);
-			}
+			if (stmt.getOperator() == Operator.load)
+				setSelf(stmt.getLHS().get(0));
+			else
+				memEpoch = nextEpoch++;
 		} else if (stmt instanceof DynamicStmt) {
-			if (stmt.getOperator() == Operator.lddynamic) {
-				String lhs = stmt.getLHS().get(0).toSSAString();
-				valueNumber.put(lhs, lhs);
-			}
+			if (stmt.getOperator() == Operator.lddynamic)
+				setSelf(stmt.getLHS().get(0));
+			else
+				memEpoch = nextEpoch++;
+		} else if (stmt instanceof CallStmt) {
+			memEpoch = nextEpoch++;
 		} else if (stmt instanceof AllocStmt) {
 			// new, newlist on heap, it should be bottom
-			String lhs = stmt.getLHS().get(0).toSSAString();
-			valueNumber.put(lhs, lhs);
+			setSelf(stmt.getLHS().get(0));
 		} else if (stmt instanceof ObjCmpStmt) {
 			// istype/isnull check, bottom
-			String lhs = stmt.getLHS().get(0).toSSAString();
-			valueNumber.put(lhs, lhs);
+			setSelf(stmt.getLHS().get(0));
 		} else if (stmt instanceof SafetyStmt) {
 			// safety check, bottom
-			if (stmt.getLHS().size() > 0) {
-				String lhs = stmt.getLHS().get(0).toSSAString();
-				valueNumber.put(lhs, lhs);
-			}
+			if (stmt.getLHS().size() > 0)
+				setSelf(stmt.getLHS().get(0));
 		}
-		
+
 		for (int i = 0; i < stmt.getRHS().size(); i++)
-			getValue(stmt, i, valueNumber);
+			getValue(stmt, i);
+		return false;
 	}
-	
-	private void DVNT(Block block, HashMap<String, String> vnParent, HashMap<Expr, String> exprParent) {
-		
-		HashMap<String, String> valueNumber = new HashMap<String, String>(vnParent);
-		HashMap<Expr, String> exprHash = new HashMap<Expr, String>(exprParent);
-		
+
+	private void DVNT(Block block) {
+
+		int vnMark = undoTop;
+		int exprMark = exprTable.mark();
+
 		Iterator<PhiNode> itPhi = block.getPhiNode().iterator();
 		while (itPhi.hasNext()) {
 			PhiNode phiNode = itPhi.next();
-			int ret = visitPhiNode(phiNode, valueNumber, exprHash);
-			if (ret == 1) {
+			int val = visitPhiNode(phiNode);
+			if (val != -1) {
 				itPhi.remove();
 				++ exprCounter;
-				
-				String val = ((ValueNumberAttr)phiNode.getRHS().get(0).getAttr()).val;
+
 				List<Token> rhs = new LinkedList<Token>();
 				List<Token> lhs = new LinkedList<Token>();
 				rhs.add(genNewToken(val));
 				lhs.add(phiNode.getLHS().get(0));
-				
-				Stmt mov = new MoveStmt(rhs, lhs);
-				block.body.add(0, mov);
-				
-			} else if (ret == 2) {
-				itPhi.remove();
-				++ exprCounter;
-				
-				String op1 = ((ValueNumberAttr)phiNode.getRHS().get(0).getAttr()).val;
-				String op2 = ((ValueNumberAttr)phiNode.getRHS().get(1).getAttr()).val;
-				Expr expr = new Expr(Operator.phinode, op1, op2);
-				
-				List<Token> rhs = new LinkedList<Token>();
-				List<Token> lhs = new LinkedList<Token>();
-				rhs.add(genNewToken(exprHash.get(expr)));
-				lhs.add(phiNode.getLHS().get(0));
 
-				Stmt mov = new MoveStmt(rhs, lhs);
+				Stmt mov = new MoveStmt(routine.newStmtIndex(), rhs, lhs);
 				block.body.add(0, mov);
 			}
 		}
-		
+
 		Iterator<Stmt> itBody = block.body.iterator();
 		while (itBody.hasNext()) {
 			Stmt stmt = itBody.next();
+			boolean del = false;
 			if (stmt instanceof ArithStmt) {
-				boolean del = visitArithStmt((ArithStmt) stmt, valueNumber, exprHash);
-				if (del) {
+				del = visitArithStmt((ArithStmt) stmt);
+				if (del)
 					++ exprCounter;
-					itBody.remove();
-				}
 			} else if (stmt instanceof MoveStmt)
-				visitMoveStmt((MoveStmt) stmt, valueNumber, exprHash);
-			else {
-				visitOtherStmt(stmt, valueNumber, exprHash);
-			}
+				visitMoveStmt((MoveStmt) stmt);
+			else
+				del = visitOtherStmt(stmt);
+
+			if (del)
+				itBody.remove();
 		}
-		
+
 		for (Block succ: block.getSuccs()) {
 			int i;
 			for (i = 0; i < succ.getPreds().size(); i++)
 				if (succ.getPreds().get(i) == block)
 					break;
-				
+
 			for (PhiNode phi: succ.getPhiNode()) {
 				Token t = phi.getRHS().get(i);
-				if (valueNumber.containsKey(t.toSSAString())) {
-					t.setAttr(new ValueNumberAttr(valueNumber.get(t.toSSAString())));
+				int val = getValueNumber(values.getId(t));
+				if (val != -1) {
+					t.setAttr(new ValueNumberAttr(val));
 				}
 			}
-				
+
+		}
+
+		// a child reached only from this block sees its memory; anything
+		// else may have been stored to on the way
+		int epoch = memEpoch;
+		for (Block child: block.getChildren()) {
+			if (child.getPreds().size() == 1 && child.getPreds().get(0) == block)
+				memEpoch = epoch;
+			else
+				memEpoch = nextEpoch++;
+			DVNT(child);
 		}
-		
-		for (Block child: block.getChildren())
-			DVNT(child, valueNumber, exprHash);
+
+		exprTable.undo(exprMark);
+		undo(vnMark);
 	}
-	
+
 	public void optimize() {
-		DVNT(routine.getEntryBlock(), new HashMap<String, String>(), new HashMap<Expr, String>());
+		valueNumber = new int[values.size()];
+		for (int id = 0; id < valueNumber.length; id++)
+			valueNumber[id] = -1;
+		nextValue = values.size();
+		memEpoch = nextEpoch++;
+
+		DVNT(routine.getEntryBlock());
 	}
-	
+
 	public void dump() {
 		routine.dumpSSA();
 	}
@@ -0,0 +1,16 @@
+package profile;
+
+import compiler.Block;
+
+// what the Interpreter tells of the control flow, see Interpreter.setListener
+public interface BlockListener {
+
+	// a routine is called and starts at its entry block
+	public void enter( Block entry );
+	
+	// control goes from src to its successor dst, within one invocation
+	public void edge( Block src, Block dst );
+	
+	// the invocation returns from block last
+	public void exit( Block last );
+}
@@ -0,0 +1,33 @@
+package profile;
+
+import stmt.CallStmt;
+import stmt.CountStmt;
+
+import compiler.Block;
+import compiler.Routine;
+
+// a call stmt and how many times the profiling run executed it
+public class CallSite {
+
+	public final int index;
+	public final Routine caller;
+	public final CallStmt call;
+	public Block block;
+
+	public int counter;
+	public CountStmt count;
+
+	public CallSite( int index, Routine caller, Block block, CallStmt call ) {
+		this.index = index;
+		this.caller = caller;
+		this.block = block;
+		this.call = call;
+	}
+
+	public Routine getCallee() { return call.getRoutine(); }
+
+	@Override
+	public String toString() {
+		return "call#" + index + "(" + caller.getName() + "->" + getCallee().getName() + ")";
+	}
+}
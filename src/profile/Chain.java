@@ -6,31 +6,22 @@ import java.util.List;
 import compiler.Block;
 
 public class Chain {
-//	public static int GlobalIndex = 0;
 	
 	public int index;
 	public List<Block> blockList;
-	public List<Chain> inEdge, outEdge;
+	public List<Chain> inEdge, outEdge;	// chains to place before / after this one
+	
+	// placing, see PositionProfile.orderChains
+	public int pending = 0;		// chains of inEdge not placed yet
+	public long link = 0;		// count of the edges to and from the placed chains
+	public boolean placed = false;
 	
 	public Chain() {
-//		index = GlobalIndex ++;
 		blockList = new LinkedList<Block>();
 		inEdge = new LinkedList<Chain>();
 		outEdge = new LinkedList<Chain>();
 	}
 	
-	public void merge( Chain chain ) {
-		blockList.addAll( chain.blockList );
-	}
-	
-	public boolean isFirst( Block b ) {
-		return ( b == blockList.get(0) );
-	}
-	
-	public boolean isLast( Block b ) {
-		return ( b == blockList.get( blockList.size() - 1 ) );
-	}
-	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
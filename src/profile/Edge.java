@@ -7,21 +7,20 @@ import compiler.Block;
 
 public class Edge {
 	
-	public static int GlobalIndex = 0; 
-	
 	public final int index;
 	public final Block src, dst;
 	
 	//public double weight;
 	public int counter;
 	public Block profBlock;
-	public boolean isBackEdge;
+	public final boolean isBackEdge;	// to the header of a loop around src
+	public boolean inTree = false;	// not counted, see PositionProfile.genCounts
 	
-	public Edge(Block src, Block dst) {
-		this.index = ++GlobalIndex;
+	public Edge(int index, Block src, Block dst, boolean isBackEdge) {
+		this.index = index;
 		this.src = src;
 		this.dst = dst;
-		this.isBackEdge = ( src.getIndex() > dst.getIndex() );
+		this.isBackEdge = isBackEdge;
 	}
 	
 	@Override
@@ -0,0 +1,389 @@
+package profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import stmt.BranchStmt;
+import stmt.CallStmt;
+import stmt.CountStmt;
+import stmt.MoveStmt;
+import stmt.OtherStmt;
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Constant;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+import compiler.Block;
+import compiler.Metrics;
+import compiler.Program;
+import compiler.Routine;
+
+// Profile guided inlining on the non SSA form. instrument() counts every call
+// site; optimize() replaces the hot calls of small routines by a copy of the
+// callee's blocks:
+//  - the params of the call become moves into new locals of the caller, one
+//    for each param of the callee, and every local of the callee gets a new
+//    local too, so the caller's enter grows by the callee's frame
+//  - the block of the call is split after it, enter is dropped and every ret
+//    branches to (or falls into) the rest of the block
+// Callees are done before their callers (bottom-up on the call graph), so an
+// inlined body already has its own hot calls inlined. Recursive routines are
+// never inlined.
+public class InlineProfile implements Profile {
+
+	private static final int MAX_CALLEE_SIZE = 60;		// stmts
+	private static final int MAX_CALLER_SIZE = 1000;
+	private static final int HOT_PERCENT = 1;			// of all calls run
+
+	private Program program;
+	private List<CallSite> siteList = new ArrayList<CallSite>();
+	private Map<Routine, List<CallSite>> siteMap = new HashMap<Routine, List<CallSite>>();
+	private Set<Routine> recursive = new HashSet<Routine>();
+	private int inlineCounter = 0;	// numbers the new locals
+
+	public InlineProfile( Program program ) {
+		this.program = program;
+
+		genCallSites();
+	}
+
+	private void genCallSites() {
+		for ( Routine r: program.getRoutines() ) {
+			List<CallSite> localSites = new ArrayList<CallSite>();
+			for ( Block b: r.getBlocks() )
+				for ( Stmt s: b.body )
+					if ( s instanceof CallStmt && ((CallStmt) s).getRoutine() != null ) {
+						CallSite site = new CallSite( siteList.size() + 1, r, b, (CallStmt) s );
+						localSites.add( site );
+						siteList.add( site );
+					}
+			siteMap.put( r, localSites );
+		}
+	}
+
+	// a site's index is its counter in the profiling run
+	public List<CallSite> getCallSites() { return siteList; }
+
+	// the call sites of r, in the order of their counters
+	public List<CallSite> getCallSites( Routine r ) { return siteMap.get( r ); }
+
+	public void instrument() {
+		for ( CallSite site: siteList ) {
+			site.count = new CountStmt( site.caller.newStmtIndex(), new Constant( site.index ) );
+			site.count.setBlock( site.block );
+			site.block.body.add( site.block.body.indexOf( site.call ), site.count );
+		}
+	}
+
+	public void clean() {
+		for ( CallSite site: siteList ) {
+			site.block.body.remove( site.count );
+			site.count = null;
+		}
+	}
+
+	// routines that can reach themselves through calls
+	private void findRecursive() {
+		for ( Routine r: program.getRoutines() ) {
+			Set<Routine> visited = new HashSet<Routine>();
+			List<Routine> stack = new ArrayList<Routine>();
+			stack.add( r );
+			while ( !stack.isEmpty() ) {
+				Routine top = stack.remove( stack.size() - 1 );
+				for ( CallSite site: siteMap.get( top ) ) {
+					Routine callee = site.getCallee();
+					if ( callee == r )
+						recursive.add( r );
+					if ( visited.add( callee ) )
+						stack.add( callee );
+				}
+			}
+		}
+	}
+
+	// callees before callers
+	private void postorder( Routine r, Set<Routine> visited, List<Routine> order ) {
+		visited.add( r );
+		for ( CallSite site: siteMap.get( r ) )
+			if ( !visited.contains( site.getCallee() ) )
+				postorder( site.getCallee(), visited, order );
+		order.add( r );
+	}
+
+	private static Stmt findEnter( Routine r ) {
+		for ( Stmt s: r.getEntryBlock().body )
+			if ( s.getOperator() == Operator.enter )
+				return ( s.getRHS().get(0) instanceof Constant ) ? s : null;
+		return null;
+	}
+
+	// bytes of params popped by the rets of r, -1 if they differ or a ret
+	// does not end its block
+	private static int getParamSize( Routine r ) {
+		int size = -1;
+		for ( Block b: r.getBlocks() )
+			for ( int i = 0; i < b.body.size(); i++ ) {
+				Stmt s = b.body.get( i );
+				if ( s.getOperator() != Operator.ret )
+					continue;
+				if ( i != b.body.size() - 1 || !( s.getRHS().get(0) instanceof Constant ) )
+					return -1;
+				int value = ((Constant) s.getRHS().get(0)).getValue();
+				if ( size != -1 && size != value )
+					return -1;
+				size = value;
+			}
+		return size;
+	}
+
+	// the n params of the call at pos, in push order; null if some of them
+	// are not in its block or another call comes in between
+	private static List<Stmt> getParams( Block block, int pos, int n ) {
+		List<Stmt> params = new ArrayList<Stmt>();
+		for ( int i = pos - 1; i >= 0 && params.size() < n; i-- ) {
+			Stmt s = block.body.get( i );
+			if ( s instanceof CallStmt )
+				return null;
+			if ( s.getOperator() == Operator.param )
+				params.add( 0, s );
+		}
+		return ( params.size() == n ) ? params : null;
+	}
+
+	private static Block findBlock( Routine r, Stmt s ) {
+		for ( Block b: r.getBlocks() )
+			if ( b.body.contains( s ) )
+				return b;
+		return null;
+	}
+
+	private static void addStmt( Block b, Stmt s ) {
+		s.setBlock( b );
+		b.body.add( s );
+	}
+
+	private boolean inline( CallSite site ) {
+		Routine caller = site.caller;
+		Routine callee = site.getCallee();
+		if ( callee == caller || recursive.contains( callee ) ||
+				Metrics.stmtCount( callee ) > MAX_CALLEE_SIZE ||
+				Metrics.stmtCount( caller ) + Metrics.stmtCount( callee ) > MAX_CALLER_SIZE )
+			return false;
+
+		int paramSize = getParamSize( callee );
+		Stmt callerEnter = findEnter( caller );
+		if ( paramSize < 0 || callerEnter == null || findEnter( callee ) == null )
+			return false;
+
+		Block block = findBlock( caller, site.call );
+		int pos = block.body.indexOf( site.call );
+		List<Stmt> params = getParams( block, pos, paramSize / 4 );
+		if ( params == null )
+			return false;
+
+		// a new local of the caller for every param and local of the callee
+		int frame = ((Constant) callerEnter.getRHS().get(0)).getValue();
+		int id = ++ inlineCounter;
+		List<Variable> vars = new ArrayList<Variable>( callee.getLocalVars() );
+		for ( Block b: callee.getBlocks() )
+			for ( Stmt s: b.body ) {
+				for ( Token t: s.getRHS() )
+					if ( t instanceof Variable )
+						vars.add( (Variable) t );
+				for ( Token t: s.getLHS() )
+					if ( t instanceof Variable )
+						vars.add( (Variable) t );
+			}
+		Map<Integer, Variable> slots = new HashMap<Integer, Variable>();
+		for ( Variable v: vars ) {
+			if ( v.offset == 0 || slots.containsKey( v.offset ) )
+				continue;
+			frame += 4;
+			Variable slot = new Variable( v.name + "$in" + id, v.type, -frame );
+			slot.ssaName = slot.name;
+			caller.getLocalVars().add( slot );
+			slots.put( v.offset, slot );
+		}
+		callerEnter.setRHS( 0, new Constant( frame ) );
+
+		// the last param pushed is at offset 8
+		for ( int i = 0; i < params.size(); i++ ) {
+			Stmt param = params.get( i );
+			Variable slot = slots.get( 8 + 4 * ( params.size() - 1 - i ) );
+			if ( slot == null ) {
+				block.body.remove( param );
+				continue;
+			}
+			Stmt move = new MoveStmt( param.index, param.getRHS().get(0), slot );
+			move.setBlock( block );
+			block.replaceStmt( param, move );
+		}
+
+		// split the block after the call; if the call ends it, the rest is
+		// the block it falls into
+		pos = block.body.indexOf( site.call );
+		Block rest;
+		boolean split = ( pos < block.body.size() - 1 );
+		if ( split ) {
+			rest = new Block( caller );
+			List<Stmt> tail = block.body.subList( pos + 1, block.body.size() );
+			for ( Stmt s: tail )
+				addStmt( rest, s );
+			tail.clear();
+			for ( Block succ: block.getSuccs() ) {
+				rest.getSuccs().add( succ );
+				succ.getPreds().set( succ.getPreds().indexOf( block ), rest );
+			}
+		} else {
+			rest = block.getSuccs().get(0);
+			rest.getPreds().remove( block );
+		}
+		block.getSuccs().clear();
+		block.body.remove( pos );
+
+		// copy the callee, renumbering its registers
+		Map<Block, Block> blockMap = new HashMap<Block, Block>();
+		Map<Integer, Integer> regMap = new HashMap<Integer, Integer>();
+		List<Block> copies = new ArrayList<Block>();
+		for ( Block b: callee.getBlocks() ) {
+			Block copy = new Block( caller );
+			blockMap.put( b, copy );
+			copies.add( copy );
+		}
+		for ( Block b: callee.getBlocks() ) {
+			Block copy = blockMap.get( b );
+			for ( Stmt s: b.body ) {
+				if ( s.getOperator() == Operator.enter )
+					continue;
+				Stmt c = (Stmt) s.clone();
+				c.index = caller.newStmtIndex();
+				regMap.put( s.index, c.index );
+				addStmt( copy, c );
+			}
+			for ( Block succ: b.getSuccs() )
+				copy.getSuccs().add( blockMap.get( succ ) );
+			for ( Block pred: b.getPreds() )
+				copy.getPreds().add( blockMap.get( pred ) );
+		}
+
+		for ( Block copy: copies )
+			for ( Stmt s: copy.body ) {
+				rename( s.getRHS(), regMap, slots );
+				rename( s.getLHS(), regMap, slots );
+				if ( s instanceof BranchStmt )
+					((BranchStmt) s).setBranchBlock( blockMap.get( ((BranchStmt) s).getBranchBlock() ) );
+			}
+
+		// rets go to the rest of the block, the last copy falls into it
+		Block last = copies.get( copies.size() - 1 );
+		for ( Block copy: copies ) {
+			int n = copy.body.size();
+			if ( n == 0 || copy.body.get( n - 1 ).getOperator() != Operator.ret )
+				continue;
+			copy.body.remove( n - 1 );
+			copy.getSuccs().add( rest );
+			rest.getPreds().add( copy );
+			if ( copy != last )
+				addStmt( copy, new BranchStmt( caller.newStmtIndex(), rest ) );
+		}
+
+		Block entry = blockMap.get( callee.getEntryBlock() );
+		block.getSuccs().add( entry );
+		entry.getPreds().add( block );
+		if ( entry != copies.get(0) )
+			addStmt( block, new BranchStmt( caller.newStmtIndex(), entry ) );
+
+		// a last copy left empty (a lone ret) is skipped
+		if ( last.body.isEmpty() && last.getSuccs().size() == 1 && last != entry ) {
+			for ( Block pred: last.getPreds() ) {
+				pred.getSuccs().set( pred.getSuccs().indexOf( last ), rest );
+				Stmt s = pred.body.isEmpty() ? null : pred.body.get( pred.body.size() - 1 );
+				if ( s instanceof BranchStmt && ((BranchStmt) s).getBranchBlock() == last )
+					((BranchStmt) s).setBranchBlock( rest );
+				rest.getPreds().add( pred );
+			}
+			rest.getPreds().remove( last );
+			copies.remove( last );
+		}
+		for ( Block b: new Block[] { block, rest } )
+			if ( b.body.isEmpty() )
+				addStmt( b, new OtherStmt( caller.newStmtIndex(), Operator.nop ) );
+		for ( Block copy: copies )
+			if ( copy.body.isEmpty() )
+				addStmt( copy, new OtherStmt( caller.newStmtIndex(), Operator.nop ) );
+
+		List<Block> blocks = caller.getBlocks();
+		int at = blocks.indexOf( block ) + 1;
+		blocks.addAll( at, copies );
+		if ( split )
+			blocks.add( at + copies.size(), rest );
+		caller.invalidateOrder();
+		return true;
+	}
+
+	private static void rename( List<Token> tokens, Map<Integer, Integer> regMap, Map<Integer, Variable> slots ) {
+		for ( int i = 0; i < tokens.size(); i++ ) {
+			Token t = tokens.get( i );
+			if ( t instanceof Register ) {
+				Integer index = regMap.get( ((Register) t).index );
+				if ( index != null )
+					((Register) t).index = index;
+			} else if ( t instanceof Variable && slots.containsKey( ((Variable) t).offset ) ) {
+				tokens.set( i, (Token) slots.get( ((Variable) t).offset ).clone() );
+			}
+		}
+	}
+
+	// dominators again, for the new blocks
+	private static void genDominator( Routine r ) {
+		for ( Block b: r.getBlocks() ) {
+			b.setIdom( null );
+			b.getChildren().clear();
+		}
+		r.invalidateOrder();
+		r.genDominator();
+	}
+
+	public void optimize() {
+		long total = 0;
+		for ( CallSite site: siteList )
+			total += site.counter;
+
+		findRecursive();
+		List<Routine> order = new ArrayList<Routine>();
+		Set<Routine> visited = new HashSet<Routine>();
+		for ( Routine r: program.getRoutines() )
+			if ( !visited.contains( r ) )
+				postorder( r, visited, order );
+
+		for ( Routine r: order ) {
+			List<CallSite> sites = new ArrayList<CallSite>( siteMap.get( r ) );
+			Collections.sort( sites, new Comparator<CallSite>() {
+
+				@Override
+				public int compare( CallSite o1, CallSite o2 ) {
+					return ( o2.counter - o1.counter );
+				}
+
+			} );
+
+			int inlined = 0;
+			for ( CallSite site: sites )
+				if ( site.counter > 0 && site.counter * 100L >= total * HOT_PERCENT && inline( site ) )
+					inlined ++;
+
+			if ( inlined > 0 ) {
+				r.inlineCounter += inlined;
+				genDominator( r );
+			}
+		}
+	}
+}
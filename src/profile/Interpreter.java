@@ -0,0 +1,506 @@
+package profile;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import stmt.BranchStmt;
+import stmt.CallStmt;
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Constant;
+import token.GP;
+import token.Offset;
+import token.Register;
+import token.Token;
+import token.Variable;
+
+import compiler.Block;
+import compiler.Program;
+import compiler.Routine;
+
+// Runs a (non SSA) program in memory, following the semantics of the start VM.
+// Every routine is linked once into an array of Instr, a register is a slot of
+// the frame of its routine, and "count k" increments getCount(k).
+public class Interpreter {
+
+	private static final int GP_VALUE = 0;
+	private static final int HEAP_BASE = 32768;
+	private static final int STACK_SIZE = 1 << 20; // bytes
+
+	private static final int TYPE_LIST = 1;
+	private static final int TYPE_INTEGER = 2;
+
+	// operand kinds
+	private static final int CONST = 0;
+	private static final int REG = 1;
+	private static final int LOCAL = 2;
+
+	private static class Instr {
+		public Stmt stmt;
+		public Operator op;
+		public int[] kind;
+		public int[] value;
+		public String[] name;	// dynamic field, or type of new/istype/checktype
+		public int target = -1;	// branch target pc
+		public Linked callee = null;
+	}
+
+	private static class Linked {
+		public Routine routine;
+		public Instr[] instrs;
+		public int entry;
+		public Block[] blockAt;	// the block starting at a pc, for the listener
+	}
+
+	private static class Frame {
+		public Linked code;
+		public int[] regs;
+		public int pc;
+		public Block block = null;	// the block run last, for the listener
+
+		public Frame(Linked code, int pc) {
+			this.code = code;
+			this.regs = new int[code.instrs.length];
+			this.pc = pc;
+		}
+	}
+
+	private static class Trap extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public Trap(String msg) { super(msg); }
+	}
+
+	private Program program;
+	private Map<Routine, Linked> codeMap = new HashMap<Routine, Linked>();
+	private Linked mainCode = null;
+
+	private Map<String, Integer> typeId = new HashMap<String, Integer>();
+	private List<Map<String, Integer>> fieldOffset = new ArrayList<Map<String, Integer>>();
+	private List<Map<String, Boolean>> fieldBoxed = new ArrayList<Map<String, Boolean>>();
+
+	private int[] memory;
+	private int heapTop;
+	private int[] stack;
+	private int sp, fp;
+
+	private Frame current = null;
+	private int[] counts = new int[16];
+	private PrintStream out;
+	private BlockListener listener = null;
+
+	public long instrCount = 0;
+	public long allocBytes = 0;
+
+	public Interpreter(Program program) {
+		this.program = program;
+
+		addType("List", "");
+		addType("Integer", "value#4:int");
+		for (String type: program.getTypeDecs())
+			addType(type.substring(5, type.indexOf(':')).trim(), type.substring(type.indexOf(':') + 1));
+	}
+
+	private void addType(String name, String fields) {
+		Map<String, Integer> offsets = new HashMap<String, Integer>();
+		Map<String, Boolean> boxed = new HashMap<String, Boolean>();
+
+		for (String field: fields.trim().split(" ")) {
+			if (field.length() == 0)
+				continue;
+			String fieldName = field.substring(0, field.indexOf('#'));
+			String fieldType = field.substring(field.indexOf(':') + 1);
+			offsets.put(fieldName, Integer.parseInt(field.substring(field.indexOf('#') + 1, field.indexOf(':'))));
+			boxed.put(fieldName, fieldType.equals("int") || fieldType.equals("bool"));
+		}
+
+		typeId.put(name, fieldOffset.size() + 1);
+		fieldOffset.add(offsets);
+		fieldBoxed.add(boxed);
+	}
+
+	public int getCount(int index) {
+		return (index < counts.length) ? counts[index] : 0;
+	}
+
+	// told of every block entered while running, see BlockListener
+	public void setListener(BlockListener listener) {
+		this.listener = listener;
+	}
+
+	private Linked getCode(Routine r) {
+		Linked code = codeMap.get(r);
+		if (code == null) {
+			code = new Linked();
+			code.routine = r;
+			codeMap.put(r, code);
+		}
+		return code;
+	}
+
+	private void link() {
+		for (Routine r: program.getRoutines()) {
+			Linked code = getCode(r);
+			List<Stmt> stmts = new ArrayList<Stmt>();
+			Map<Block, Integer> blockPc = new HashMap<Block, Integer>();
+			Map<Integer, Integer> regPc = new HashMap<Integer, Integer>();
+
+			for (Block b: r.getBlocks()) {
+				blockPc.put(b, stmts.size());
+				for (Stmt s: b.body) {
+					regPc.put(s.index, stmts.size());
+					stmts.add(s);
+				}
+				if (b.getProfBranchStmt() != null)
+					stmts.add(b.getProfBranchStmt());
+			}
+
+			code.instrs = new Instr[stmts.size()];
+			code.entry = blockPc.get(r.getEntryBlock());
+			code.blockAt = new Block[stmts.size()];
+			for (Block b: r.getBlocks())
+				if (!b.body.isEmpty())
+					code.blockAt[blockPc.get(b)] = b;
+
+			for (int pc = 0; pc < stmts.size(); pc++) {
+				Stmt s = stmts.get(pc);
+				Instr instr = new Instr();
+				instr.stmt = s;
+				instr.op = s.getOperator();
+
+				List<Token> rhs = s.getRHS();
+				int n = rhs.size();
+				instr.kind = new int[n];
+				instr.value = new int[n];
+				instr.name = new String[n];
+
+				for (int i = 0; i < n; i++)
+					linkOperand(instr, i, rhs.get(i), regPc);
+
+				if (s instanceof BranchStmt) {
+					Block target = ((BranchStmt) s).getBranchBlock();
+					instr.target = blockPc.get(target);
+				} else if (s instanceof CallStmt) {
+					instr.callee = getCode(((CallStmt) s).getRoutine());
+				} else if (instr.op == Operator.move) {
+					// destination is a local variable
+					instr.value = new int[] { instr.value[0], ((Variable) s.getLHS().get(0)).offset };
+					instr.kind = new int[] { instr.kind[0], LOCAL };
+				} else if (instr.op == Operator.entrypc) {
+					mainCode = code;
+				} else if (instr.op == Operator.count) {
+					int index = instr.value[0];
+					if (index >= counts.length) {
+						int[] newCounts = new int[Math.max(index + 1, counts.length * 2)];
+						System.arraycopy(counts, 0, newCounts, 0, counts.length);
+						counts = newCounts;
+					}
+				}
+
+				code.instrs[pc] = instr;
+			}
+		}
+	}
+
+	private void linkOperand(Instr instr, int i, Token t, Map<Integer, Integer> regPc) {
+		instr.kind[i] = CONST;
+
+		if (t instanceof Constant) {
+			instr.value[i] = ((Constant) t).getValue();
+		} else if (t instanceof GP) {
+			instr.value[i] = GP_VALUE;
+		} else if (t instanceof Register) {
+			Integer pc = regPc.get(((Register) t).index);
+			if (pc == null)
+				throw new Trap("register " + t + " is not defined (" + instr.stmt + ")");
+			instr.kind[i] = REG;
+			instr.value[i] = pc;
+		} else if (t instanceof Variable) {
+			instr.kind[i] = LOCAL;
+			instr.value[i] = ((Variable) t).offset;
+		} else if (t instanceof Offset) {
+			Offset o = (Offset) t;
+			instr.value[i] = o.getValue();
+			if (o.getName().endsWith("_offset"))
+				instr.name[i] = o.getName().substring(0, o.getName().length() - 7);
+			else if (o.getName().endsWith("_type"))
+				instr.name[i] = o.getName().substring(0, o.getName().length() - 5);
+		} else if (t instanceof token.Code) {
+			instr.value[i] = ((token.Code) t).getIndex();
+		}
+	}
+
+	private int read(Frame f, Instr instr, int i) {
+		switch (instr.kind[i]) {
+		case REG: return f.regs[instr.value[i]];
+		case LOCAL: return loadStack(fp + instr.value[i]);
+		default: return instr.value[i];
+		}
+	}
+
+	private int load(int addr) {
+		int word = addr >> 2;
+		if ((addr & 3) != 0 || addr < 0 || word >= memory.length)
+			throw new Trap("bad address " + addr);
+		return memory[word];
+	}
+
+	private void store(int addr, int value) {
+		int word = addr >> 2;
+		if ((addr & 3) != 0 || addr < 0 || word >= memory.length)
+			throw new Trap("bad address " + addr);
+		memory[word] = value;
+	}
+
+	private int loadStack(int addr) {
+		if (addr < 0 || addr >= STACK_SIZE)
+			throw new Trap("stack overflow");
+		return stack[addr >> 2];
+	}
+
+	private void storeStack(int addr, int value) {
+		if (addr < 0 || addr >= STACK_SIZE)
+			throw new Trap("stack overflow");
+		stack[addr >> 2] = value;
+	}
+
+	private void push(int value) {
+		sp -= 4;
+		storeStack(sp, value);
+	}
+
+	private int pop() {
+		int value = loadStack(sp);
+		sp += 4;
+		return value;
+	}
+
+	private int alloc(int size, int type) {
+		if (size < 4)
+			size = 4;
+		size = (size + 3) & ~3;
+
+		int addr = heapTop;
+		heapTop += size;
+		if ((heapTop >> 2) > memory.length) {
+			int[] newMemory = new int[Math.max(heapTop >> 2, memory.length * 2)];
+			System.arraycopy(memory, 0, newMemory, 0, memory.length);
+			memory = newMemory;
+		}
+		allocBytes += size;
+
+		memory[addr >> 2] = type;
+		return addr;
+	}
+
+	private int getTypeId(String name) {
+		Integer id = typeId.get(name);
+		if (id == null)
+			throw new Trap("unknown type " + name);
+		return id;
+	}
+
+	private int getField(int obj, String field) {
+		if (obj == 0)
+			throw new Trap("null pointer");
+		int type = load(obj);
+		Integer offset = (type > 0 && type <= fieldOffset.size()) ? fieldOffset.get(type - 1).get(field) : null;
+		if (offset == null)
+			throw new Trap("object has no field " + field);
+		return offset;
+	}
+
+	private boolean isBoxed(int obj, String field) {
+		return fieldBoxed.get(load(obj) - 1).get(field);
+	}
+
+	// run the main routine; returns false if the program traps
+	public boolean run(PrintStream out) {
+		this.out = out;
+
+		memory = new int[HEAP_BASE >> 2];
+		heapTop = HEAP_BASE;
+		stack = new int[STACK_SIZE >> 2];
+		sp = STACK_SIZE;
+		fp = STACK_SIZE;
+
+		try {
+			link();
+			if (mainCode == null)
+				throw new Trap("no entrypc");
+
+			execute(new Frame(mainCode, mainCode.entry));
+
+		} catch (Trap t) {
+			Stmt s = null;
+			if (current != null && current.pc > 0)
+				s = current.code.instrs[current.pc - 1].stmt;
+			System.err.println("Interpreter error: " + t.getMessage() + (s != null ? " (" + s + ")" : ""));
+			return false;
+		}
+
+		if (out != null)
+			out.flush();
+		return true;
+	}
+
+	private void execute(Frame frame) {
+		List<Frame> callStack = new ArrayList<Frame>();
+		Frame f = frame;
+		current = f;
+
+		while (true) {
+			Instr[] instrs = f.code.instrs;
+			if (f.pc >= instrs.length)
+				throw new Trap("routine " + f.code.routine.getName() + " falls off its end");
+
+			int pc = f.pc;
+			if (listener != null && f.code.blockAt[pc] != null) {
+				Block b = f.code.blockAt[pc];
+				if (f.block == null)
+					listener.enter(b);
+				else
+					listener.edge(f.block, b);
+				f.block = b;
+			}
+			Instr instr = instrs[pc];
+			int[] regs = f.regs;
+			f.pc = pc + 1;
+			++ instrCount;
+
+			switch (instr.op) {
+			case add: regs[pc] = read(f, instr, 0) + read(f, instr, 1); break;
+			case sub: regs[pc] = read(f, instr, 0) - read(f, instr, 1); break;
+			case mul: regs[pc] = read(f, instr, 0) * read(f, instr, 1); break;
+			case div:
+			case mod: {
+				int a = read(f, instr, 0);
+				int b = read(f, instr, 1);
+				if (b == 0)
+					throw new Trap("division by zero");
+				regs[pc] = (instr.op == Operator.div) ? a / b : a % b;
+				break;
+			}
+			case neg: regs[pc] = -read(f, instr, 0); break;
+			case cmpeq: regs[pc] = (read(f, instr, 0) == read(f, instr, 1)) ? 1 : 0; break;
+			case cmple: regs[pc] = (read(f, instr, 0) <= read(f, instr, 1)) ? 1 : 0; break;
+			case cmplt: regs[pc] = (read(f, instr, 0) < read(f, instr, 1)) ? 1 : 0; break;
+			case isnull: regs[pc] = (read(f, instr, 0) == 0) ? 1 : 0; break;
+			case istype: {
+				int obj = read(f, instr, 0);
+				regs[pc] = (obj != 0 && load(obj) == getTypeId(instr.name[1])) ? 1 : 0;
+				break;
+			}
+			case br:
+				f.pc = instr.target;
+				break;
+			case blbc:
+				if ((read(f, instr, 0) & 1) == 0)
+					f.pc = instr.target;
+				break;
+			case blbs:
+				if ((read(f, instr, 0) & 1) != 0)
+					f.pc = instr.target;
+				break;
+			case call:
+				push(0); // return address
+				callStack.add(f);
+				f = new Frame(instr.callee, instr.callee.entry);
+				current = f;
+				break;
+			case load: regs[pc] = load(read(f, instr, 0)); break;
+			case store: store(read(f, instr, 1), read(f, instr, 0)); break;
+			case move: storeStack(fp + instr.value[1], read(f, instr, 0)); break;
+			case newtype: regs[pc] = alloc(instr.value[0], getTypeId(instr.name[0])); break;
+			case newlist: {
+				int length = read(f, instr, 0);
+				if (length < 0)
+					throw new Trap("negative list length");
+				int list = alloc(8 + 4 * length, TYPE_LIST);
+				store(list + 4, length);
+				regs[pc] = list;
+				break;
+			}
+			case checknull: {
+				int obj = read(f, instr, 0);
+				if (obj == 0)
+					throw new Trap("null pointer");
+				regs[pc] = obj;
+				break;
+			}
+			case checktype: {
+				int obj = read(f, instr, 0);
+				if (obj != 0 && load(obj) != getTypeId(instr.name[1]))
+					throw new Trap("type check failed");
+				regs[pc] = obj;
+				break;
+			}
+			case checkbounds: {
+				int list = read(f, instr, 0);
+				int i = read(f, instr, 1);
+				if (i < 0 || i >= load(list + 4))
+					throw new Trap("index " + i + " out of bounds");
+				break;
+			}
+			case lddynamic: {
+				int obj = read(f, instr, 0);
+				String field = instr.name[1];
+				int value = load(obj + getField(obj, field));
+				if (isBoxed(obj, field)) {
+					int box = alloc(8, TYPE_INTEGER);
+					store(box + 4, value);
+					value = box;
+				}
+				regs[pc] = value;
+				break;
+			}
+			case stdynamic: {
+				int value = read(f, instr, 0);
+				int obj = read(f, instr, 1);
+				String field = instr.name[2];
+				int addr = obj + getField(obj, field);
+				if (isBoxed(obj, field)) {
+					if (value == 0)
+						throw new Trap("null pointer");
+					value = load(value + 4);
+				}
+				store(addr, value);
+				break;
+			}
+			case write:
+				if (out != null)
+					out.print(" " + read(f, instr, 0));
+				break;
+			case wrl:
+				if (out != null)
+					out.println();
+				break;
+			case enter:
+				push(fp);
+				fp = sp;
+				sp -= read(f, instr, 0);
+				break;
+			case ret:
+				if (listener != null)
+					listener.exit(f.block);
+				sp = fp;
+				fp = pop();
+				if (callStack.isEmpty())
+					return;
+				pop(); // return address
+				sp += read(f, instr, 0);
+				f = callStack.remove(callStack.size() - 1);
+				current = f;
+				break;
+			case param: push(read(f, instr, 0)); break;
+			case count: ++ counts[instr.value[0]]; break;
+			case entrypc: case nop:
+				break;
+			default:
+				throw new Trap("cannot execute " + instr.op);
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package profile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.Block;
+
+// an acyclic path of a routine, numbered by PathProfile, and how many times
+// the profiling run took it
+public class Path {
+
+	public final long id;
+	public final long count;
+	public final List<Block> blocks = new ArrayList<Block>();
+
+	// the successor position taken out of each block; for the last block the
+	// retreating edge the path ends at, -1 if it ends at a ret
+	public final List<Integer> succs = new ArrayList<Integer>();
+
+	public Path( long id, long count ) {
+		this.id = id;
+		this.count = count;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder( "path#" + id + "(" );
+		for ( int i = 0; i < blocks.size(); i++ )
+			sb.append( ( i > 0 ? "->" : "" ) + "block#" + blocks.get( i ).getIndex() );
+		return sb.append( ")" ).toString();
+	}
+}
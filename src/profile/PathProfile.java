@@ -0,0 +1,314 @@
+package profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Block;
+import compiler.BlockOrder;
+import compiler.Routine;
+
+// Ball and Larus path profiling of a routine. Without the retreating edges
+// v->w of a DFS, and with a dummy edge ENTRY->w and v->EXIT for each of
+// them, the CFG is a DAG whose paths from a virtual ENTRY (before the entry
+// block) to a virtual EXIT (after the ret blocks) are numbered 0 ..
+// getPathCount()-1: the out edges of a vertex get increments such that the
+// increments along a path add up to its number. The profiling run keeps a
+// path register per invocation (see PathTracer), adds to it the increment
+// of every edge taken, and counts the path it holds where one ends, at a
+// ret or a retreating edge; the latter starts the next path with the
+// increment of its ENTRY->w.
+public class PathProfile {
+
+	public static final long MAX_PATHS = 1L << 40;	// more are counted by edge instead
+	private static final int MAX_TABLE = 1 << 12;	// more are counted in a map
+	private static final int HOT_PERCENT = 1;
+
+	// an edge of the DAG
+	private static class DagEdge {
+
+		public final int dst;		// block position, or EXIT
+		public final int succ;		// position in the successors of its block, -1 if virtual
+		public long inc = 0;
+
+		public DagEdge( int dst, int succ ) {
+			this.dst = dst;
+			this.succ = succ;
+		}
+	}
+
+	private Routine routine;
+	private List<Block> blocks;
+	private final int ENTRY, EXIT;		// vertices after the blocks
+	private int[] position;		// in blocks, by block id
+	private List<List<DagEdge>> out = new ArrayList<List<DagEdge>>();
+	private long[] numPaths;
+	private boolean tooMany = false;
+
+	// by block position and successor position: the edge taken, or for a
+	// retreating edge its dummy v->EXIT; the dummy ENTRY->w of a retreating
+	// edge; the edge of a ret block to EXIT
+	private DagEdge[][] edgeOf;
+	private DagEdge[][] startOf;
+	private DagEdge[] retOf;
+
+	private long[] table = null;	// counts by path id, if there are few paths
+	private Map<Long, long[]> counts = new HashMap<Long, long[]>();
+	private long[][] edgeCounts;	// by block and successor position, if there are too many
+
+	public PathProfile( Routine routine ) {
+		this.routine = routine;
+		this.blocks = routine.getBlocks();
+		this.ENTRY = blocks.size();
+		this.EXIT = blocks.size() + 1;
+
+		genDag();
+		genIncrements();
+
+		if ( tooMany ) {
+			edgeCounts = new long[blocks.size()][];
+			for ( int i = 0; i < blocks.size(); i++ )
+				edgeCounts[i] = new long[blocks.get( i ).getSuccs().size()];
+		} else if ( numPaths[ENTRY] <= MAX_TABLE ) {
+			table = new long[(int) numPaths[ENTRY]];
+		}
+	}
+
+	public Routine getRoutine() { return routine; }
+
+	// number of acyclic paths, more than MAX_PATHS if the edges are counted instead
+	public long getPathCount() { return numPaths[ENTRY]; }
+
+	private void genDag() {
+		int n = blocks.size();
+		position = new int[routine.getBlockIdBound()];
+		for ( int i = 0; i < n; i++ )
+			position[blocks.get( i ).id] = i;
+		for ( int v = 0; v < n + 2; v++ )
+			out.add( new ArrayList<DagEdge>() );
+
+		edgeOf = new DagEdge[n][];
+		startOf = new DagEdge[n][];
+		retOf = new DagEdge[n];
+
+		// blocks are numbered by their position in the block list
+		BlockOrder order = routine.getOrder();
+		out.get( ENTRY ).add( new DagEdge( position[routine.getEntryBlock().id], -1 ) );
+
+		for ( int v = 0; v < n; v++ ) {
+			List<Block> succs = blocks.get( v ).getSuccs();
+			edgeOf[v] = new DagEdge[succs.size()];
+			startOf[v] = new DagEdge[succs.size()];
+			if ( order.postNumber[v] < 0 )
+				continue;
+
+			if ( succs.isEmpty() ) {
+				retOf[v] = new DagEdge( EXIT, -1 );
+				out.get( v ).add( retOf[v] );
+			}
+
+			for ( int k = 0; k < succs.size(); k++ ) {
+				int w = position[succs.get( k ).id];
+				if ( order.postNumber[w] >= order.postNumber[v] ) {
+					edgeOf[v][k] = new DagEdge( EXIT, k );
+					startOf[v][k] = new DagEdge( w, -1 );
+					out.get( ENTRY ).add( startOf[v][k] );
+				} else {
+					edgeOf[v][k] = new DagEdge( w, k );
+				}
+				out.get( v ).add( edgeOf[v][k] );
+			}
+		}
+	}
+
+	// in postorder every DAG edge goes to a vertex numbered before
+	private void genIncrements() {
+		numPaths = new long[blocks.size() + 2];
+		numPaths[EXIT] = 1;
+		for ( int v: routine.getOrder().postorder )
+			genIncrements( v );
+		genIncrements( ENTRY );
+		tooMany = numPaths[ENTRY] > MAX_PATHS;
+	}
+
+	private void genIncrements( int v ) {
+		long sum = 0;
+		for ( DagEdge e: out.get( v ) ) {
+			e.inc = sum;
+			sum = Math.min( sum + numPaths[e.dst], MAX_PATHS + 1 );
+		}
+		numPaths[v] = sum;
+	}
+
+	private void count( long id ) {
+		if ( table != null ) {
+			table[(int) id] ++;
+		} else {
+			long[] c = counts.get( id );
+			if ( c == null )
+				counts.put( id, new long[] { 1 } );
+			else
+				c[0] ++;
+		}
+	}
+
+	// the path register after the edge src->dst is taken with register
+	public long edge( long register, Block src, Block dst ) {
+		int v = position[src.id];
+		int k = src.getSuccs().indexOf( dst );
+		if ( tooMany ) {
+			edgeCounts[v][k] ++;
+			return 0;
+		}
+
+		DagEdge e = edgeOf[v][k];
+		if ( e.dst != EXIT )
+			return register + e.inc;
+		count( register + e.inc );
+		return startOf[v][k].inc;
+	}
+
+	// the invocation returns from block last with register
+	public void exit( long register, Block last ) {
+		DagEdge e = retOf[position[last.id]];
+		if ( !tooMany && e != null )
+			count( register + e.inc );
+	}
+
+	// the blocks of path id, from the largest increment not above the rest
+	// of id at each vertex
+	private Path decode( long id, long count ) {
+		Path path = new Path( id, count );
+		long rest = id;
+		int v = ENTRY;
+
+		while ( true ) {
+			DagEdge taken = null;
+			for ( DagEdge e: out.get( v ) )
+				if ( e.inc <= rest )
+					taken = e;
+			rest -= taken.inc;
+			if ( v != ENTRY )
+				path.succs.add( taken.succ );
+			if ( taken.dst == EXIT )
+				return path;
+			v = taken.dst;
+			path.blocks.add( blocks.get( v ) );
+		}
+	}
+
+	// the paths the profiling run took, the most frequent first
+	public List<Path> getPaths() {
+		List<Path> paths = new ArrayList<Path>();
+		if ( table != null ) {
+			for ( int id = 0; id < table.length; id++ )
+				if ( table[id] > 0 )
+					paths.add( decode( id, table[id] ) );
+		} else {
+			for ( Map.Entry<Long, long[]> entry: counts.entrySet() )
+				paths.add( decode( entry.getKey(), entry.getValue()[0] ) );
+		}
+
+		Collections.sort( paths, new Comparator<Path>() {
+
+			@Override
+			public int compare( Path o1, Path o2 ) {
+				if ( o1.count != o2.count )
+					return ( o1.count < o2.count ) ? 1 : -1;
+				return ( o1.id < o2.id ) ? -1 : ( o1.id > o2.id ) ? 1 : 0;
+			}
+
+		} );
+		return paths;
+	}
+
+	// the paths making up at least HOT_PERCENT of the paths run
+	public List<Path> getHotPaths() {
+		List<Path> paths = getPaths();
+		long total = 0;
+		for ( Path p: paths )
+			total += p.count;
+
+		List<Path> hot = new ArrayList<Path>();
+		for ( Path p: paths )
+			if ( p.count * 100 >= total * HOT_PERCENT )
+				hot.add( p );
+		return hot;
+	}
+
+	// counts of the edges, in block list and successor order as
+	// PositionProfile numbers them; a retreating edge is taken once for
+	// every path ending at it
+	public long[] getEdgeCounts() {
+		if ( !tooMany ) {
+			edgeCounts = new long[blocks.size()][];
+			for ( int i = 0; i < blocks.size(); i++ )
+				edgeCounts[i] = new long[blocks.get( i ).getSuccs().size()];
+			for ( Path p: getPaths() )
+				for ( int i = 0; i < p.blocks.size(); i++ ) {
+					int k = p.succs.get( i );
+					if ( k >= 0 )
+						edgeCounts[position[p.blocks.get( i ).id]][k] += p.count;
+				}
+		}
+
+		List<Long> list = new ArrayList<Long>();
+		for ( long[] c: edgeCounts )
+			for ( long count: c )
+				list.add( count );
+		long[] result = new long[list.size()];
+		for ( int i = 0; i < result.length; i++ )
+			result[i] = list.get( i );
+		return result;
+	}
+
+	// the counts as ProfileDB keeps them: (id, count) pairs of the paths
+	// run, or if there are too many paths of the edges run, by their
+	// position in getEdgeCounts
+	public long[] getCounts() {
+		List<Long> pairs = new ArrayList<Long>();
+		if ( tooMany ) {
+			long[] c = getEdgeCounts();
+			for ( int i = 0; i < c.length; i++ )
+				if ( c[i] > 0 ) {
+					pairs.add( (long) i );
+					pairs.add( c[i] );
+				}
+		} else {
+			for ( Path p: getPaths() ) {
+				pairs.add( p.id );
+				pairs.add( p.count );
+			}
+		}
+
+		long[] result = new long[pairs.size()];
+		for ( int i = 0; i < result.length; i++ )
+			result[i] = pairs.get( i );
+		return result;
+	}
+
+	public void setCounts( long[] c ) {
+		List<int[]> edges = new ArrayList<int[]>();	// (block, successor) positions
+		if ( tooMany )
+			for ( int i = 0; i < edgeCounts.length; i++ )
+				for ( int k = 0; k < edgeCounts[i].length; k++ )
+					edges.add( new int[] { i, k } );
+
+		for ( int i = 0; i + 1 < c.length; i += 2 ) {
+			long id = c[i];
+			if ( id < 0 || id >= ( tooMany ? edges.size() : numPaths[ENTRY] ) ) {
+				System.out.println( "PathProfile.setCounts error: no path#" + id + " in " + routine.getName() );
+				continue;
+			}
+			if ( tooMany )
+				edgeCounts[edges.get( (int) id )[0]][edges.get( (int) id )[1]] += c[i + 1];
+			else if ( table != null )
+				table[(int) id] += c[i + 1];
+			else
+				counts.put( id, new long[] { c[i + 1] } );
+		}
+	}
+}
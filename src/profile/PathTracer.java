@@ -0,0 +1,52 @@
+package profile;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Block;
+import compiler.Routine;
+
+// counts the paths of a run in their PathProfile, with a path register for
+// every invocation on the call stack
+public class PathTracer implements BlockListener {
+
+	private Map<Routine, PathProfile> profiles = new HashMap<Routine, PathProfile>();
+	private PathProfile[] stack = new PathProfile[64];
+	private long[] register = new long[64];
+	private int depth = 0;
+
+	public PathTracer( List<PathProfile> list ) {
+		for ( PathProfile p: list )
+			profiles.put( p.getRoutine(), p );
+	}
+
+	@Override
+	public void enter( Block entry ) {
+		if ( depth == stack.length ) {
+			PathProfile[] newStack = new PathProfile[2 * depth];
+			long[] newRegister = new long[2 * depth];
+			System.arraycopy( stack, 0, newStack, 0, depth );
+			System.arraycopy( register, 0, newRegister, 0, depth );
+			stack = newStack;
+			register = newRegister;
+		}
+		stack[depth] = profiles.get( entry.routine );
+		register[depth] = 0;
+		depth ++;
+	}
+
+	@Override
+	public void edge( Block src, Block dst ) {
+		PathProfile p = stack[depth - 1];
+		if ( p != null )
+			register[depth - 1] = p.edge( register[depth - 1], src, dst );
+	}
+
+	@Override
+	public void exit( Block last ) {
+		depth --;
+		if ( stack[depth] != null )
+			stack[depth].exit( register[depth], last );
+	}
+}
@@ -1,5 +1,6 @@
 package profile;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -8,6 +9,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;                                         
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import stmt.BranchStmt;
@@ -18,38 +20,213 @@ import token.Constant;
 import attr.BlockPosProfAttr;
 
 import compiler.Block;
+import compiler.Loop;
+import compiler.LoopForest;
 import compiler.Routine;
 
 public class PositionProfile implements Profile {
 	
-	public static List<Edge> ProfEdgeList = new LinkedList<Edge>();
+	private static final int COLD_RATIO = 1000;	// a block run less than once in this many calls is cold
 	
+	private List<Edge> profEdgeList;
 	private List<Edge> localEdgeList = new LinkedList<Edge>();
 	private Routine routine;
 	private List<Block> blocks;
+	private boolean spanningTree;
+	private boolean counted = false;	// every edge has its count
+	private List<Path> hotPaths = null;
+	private boolean split = false;
 	
-	public PositionProfile( Routine routine ) {
+	// profEdgeList: edges of the whole program, an edge's index is its position in the list
+	public PositionProfile( Routine routine, List<Edge> profEdgeList ) {
+		this( routine, profEdgeList, true );
+	}
+	
+	// spanningTree: count only the edges off a spanning tree, see genSpanningTree
+	public PositionProfile( Routine routine, List<Edge> profEdgeList, boolean spanningTree ) {
 		this.routine = routine;
+		this.profEdgeList = profEdgeList;
 		this.blocks = routine.getBlocks();
+		this.spanningTree = spanningTree;
 		
 		genEdges();
+		if ( spanningTree )
+			genSpanningTree();
 	}
 	
 	private void genEdges() {
+		LoopForest loops = routine.getLoopForest();
 		for ( Block b: blocks ) {
 			
 			b.attr = new BlockPosProfAttr();
 			
 			for ( Block succ: b.getSuccs() ) {
-				Edge e = new Edge( b, succ );
+				// back to the header of a loop around b, which dominates b
+				Loop loop = loops.getLoop( succ );
+				boolean back = loop != null && loop.header == succ && loop.contains( b );
+				Edge e = new Edge( profEdgeList.size() + 1, b, succ, back );
 				localEdgeList.add( e );
-				ProfEdgeList.add( e );
+				profEdgeList.add( e );
 				
 				((BlockPosProfAttr) b.attr).addEdge(e);
 			}
 		}
 	}
 	
+	private static int find( int[] parent, int x ) {
+		while ( parent[x] != x ) {
+			parent[x] = parent[parent[x]];
+			x = parent[x];
+		}
+		return x;
+	}
+	
+	// Knuth / Ball and Larus: with a virtual exit block, joined to the blocks
+	// ending in ret and to the entry, the count of every edge of a spanning
+	// tree follows from the others, as each block is left as often as it is
+	// entered. The tree takes the heaviest edges first, 10^(loop depth) of
+	// their blocks, so the edges run most are the ones left uncounted.
+	private void genSpanningTree() {
+		int exit = routine.getBlockIdBound();
+		int[] parent = new int[exit + 1];
+		for ( int i = 0; i <= exit; i++ )
+			parent[i] = i;
+		
+		// the virtual edges cannot be counted, and never close a cycle
+		parent[routine.getEntryBlock().id] = exit;
+		for ( Block b: blocks )
+			if ( b.getSuccs().isEmpty() )
+				parent[find( parent, b.id )] = exit;
+		
+		final LoopForest loops = routine.getLoopForest();
+		List<Edge> sorted = new ArrayList<Edge>( localEdgeList );
+		Collections.sort( sorted, new Comparator<Edge>() {
+			
+			@Override
+			public int compare( Edge o1, Edge o2 ) {
+				return getDepth( o2 ) - getDepth( o1 );
+			}
+			
+			private int getDepth( Edge e ) {
+				return Math.min( loops.getDepth( e.src ), loops.getDepth( e.dst ) );
+			}
+			
+		} );
+		
+		for ( Edge e: sorted ) {
+			int src = find( parent, e.src.id );
+			int dst = find( parent, e.dst.id );
+			if ( src != dst ) {
+				parent[src] = dst;
+				e.inTree = true;
+			}
+		}
+	}
+	
+	// edges in the order of their counters, see ProfileDB
+	public List<Edge> getEdges() { return localEdgeList; }
+	
+	// counts of every edge, from an earlier profiling run
+	public void setCounts( long[] counts ) {
+		for ( int i = 0; i < localEdgeList.size(); i++ )
+			localEdgeList.get( i ).counter = (int) Math.min( counts[i], Integer.MAX_VALUE );
+		counted = true;
+	}
+	
+	// paths of a PathProfile, the most frequent first: the chains are built
+	// along them before the edges they outweigh, see genPathOrder
+	public void setHotPaths( List<Path> paths ) {
+		hotPaths = paths;
+	}
+	
+	// move the cold blocks, see genColdBlocks, to the cold section after every
+	// routine
+	public void setSplit( boolean split ) {
+		this.split = split;
+	}
+	
+	// counts of the edges left uncounted by the profiling run; optimize calls
+	// it too
+	public void genCounts() {
+		if ( spanningTree && !counted )
+			genTreeCounts();
+		counted = true;
+	}
+	
+	// counts of the tree edges: a block (or the virtual exit) with a single
+	// edge of unknown count gets it from the balance of its known ones
+	private void genTreeCounts() {
+		int exit = routine.getBlockIdBound();
+		Block entry = routine.getEntryBlock();
+		
+		// edges as (src, dst) ids, the virtual ones after the real ones
+		List<int[]> ends = new ArrayList<int[]>();
+		for ( Edge e: localEdgeList )
+			ends.add( new int[] { e.src.id, e.dst.id } );
+		ends.add( new int[] { exit, entry.id } );
+		for ( Block b: blocks )
+			if ( b.getSuccs().isEmpty() )
+				ends.add( new int[] { b.id, exit } );
+		
+		int m = ends.size();
+		int[] count = new int[m];
+		boolean[] known = new boolean[m];
+		int[] balance = new int[exit + 1];	// in - out of the known edges
+		int[] unknown = new int[exit + 1];
+		List<List<Integer>> incident = new ArrayList<List<Integer>>();
+		for ( int i = 0; i <= exit; i++ )
+			incident.add( new ArrayList<Integer>() );
+		
+		for ( int i = 0; i < m; i++ ) {
+			int[] edge = ends.get( i );
+			incident.get( edge[0] ).add( i );
+			incident.get( edge[1] ).add( i );
+			if ( i < localEdgeList.size() && !localEdgeList.get( i ).inTree ) {
+				known[i] = true;
+				count[i] = localEdgeList.get( i ).counter;
+				balance[edge[0]] -= count[i];
+				balance[edge[1]] += count[i];
+			} else {
+				unknown[edge[0]] ++;
+				unknown[edge[1]] ++;
+			}
+		}
+		
+		List<Integer> worklist = new LinkedList<Integer>();
+		for ( int v = 0; v <= exit; v++ )
+			if ( unknown[v] == 1 )
+				worklist.add( v );
+		
+		while ( !worklist.isEmpty() ) {
+			int v = worklist.remove( 0 );
+			if ( unknown[v] != 1 )
+				continue;
+			
+			int i = -1;
+			for ( int j: incident.get( v ) )
+				if ( !known[j] )
+					i = j;
+			int[] edge = ends.get( i );
+			count[i] = ( edge[1] == v ) ? -balance[v] : balance[v];
+			known[i] = true;
+			balance[edge[0]] -= count[i];
+			balance[edge[1]] += count[i];
+			
+			for ( int u: edge ) {
+				unknown[u] --;
+				if ( unknown[u] == 1 )
+					worklist.add( u );
+			}
+		}
+		
+		for ( int i = 0; i < localEdgeList.size(); i++ )
+			if ( localEdgeList.get( i ).inTree ) {
+				if ( !known[i] )
+					System.out.println( "PositionProfile.genTreeCounts error: no count for " + localEdgeList.get( i ) );
+				localEdgeList.get( i ).counter = count[i];
+			}
+	}
+	
 	private void addProfileEdge( Edge edge ) {
 		
 		Block srcBlock = edge.src;
@@ -58,8 +235,8 @@ public class PositionProfile implements Profile {
 		
 		// set up profile block
 		{
-			CountStmt count = new CountStmt(new Constant(edge.index));
-			BranchStmt branch = new BranchStmt(dstBlock);
+			CountStmt count = new CountStmt(routine.newStmtIndex(), new Constant(edge.index));
+			BranchStmt branch = new BranchStmt(routine.newStmtIndex(), dstBlock);
 			profBlock.body.add(count);
 			profBlock.body.add(branch);
 		}
@@ -73,10 +250,11 @@ public class PositionProfile implements Profile {
 			((BranchStmt) lastStmt).setBranchBlock( profBlock );
 			
 		} else {
-			srcBlock.setProfBranchStmt( new BranchStmt( profBlock ) );
+			srcBlock.setProfBranchStmt( new BranchStmt( routine.newStmtIndex(), profBlock ) );
 		}
 		
 		blocks.add( profBlock );
+		routine.invalidateOrder();
 		edge.profBlock = profBlock;
 	}
 	
@@ -95,12 +273,14 @@ public class PositionProfile implements Profile {
 		}
 		
 		blocks.remove( edge.profBlock );
+		routine.invalidateOrder();
 		edge.profBlock = null;
 	}
 	
 	public void instrument() {
 		for ( Edge e: localEdgeList ) {
-			addProfileEdge( e );
+			if ( !e.inTree )
+				addProfileEdge( e );
 		}
 	}
 	
@@ -128,7 +308,7 @@ public class PositionProfile implements Profile {
 					
 					if ( workingList.contains( nextBlock ) ) {
 						if (!( block.body.get( block.body.size() - 1 ) instanceof BranchStmt )) {
-							BranchStmt brStmt = new BranchStmt( nextBlock );
+							BranchStmt brStmt = new BranchStmt( routine.newStmtIndex(), nextBlock );
 							block.body.add( brStmt );
 						}
 						block = null;
@@ -194,17 +374,240 @@ public class PositionProfile implements Profile {
 		routine.setBlocks(workingList);
 	}
 	
-	private void addChain( List<Block> blockList, Chain chain ) {
-		blockList.addAll( chain.blockList );
-		for ( Chain c: chain.outEdge ) {
-			c.inEdge.remove( chain );
+	// the edges sorted by their counters, with the edges of each hot path,
+	// in its order, before the first edge run less often than the path
+	private List<Edge> genPathOrder() {
+		List<Edge> order = new ArrayList<Edge>();
+		int next = 0;
+		
+		for ( Edge e: localEdgeList ) {
+			while ( next < hotPaths.size() && hotPaths.get( next ).count >= e.counter )
+				addPath( order, hotPaths.get( next++ ) );
+			order.add( e );
+		}
+		return order;
+	}
+	
+	private void addPath( List<Edge> order, Path path ) {
+		for ( int i = 0; i + 1 < path.blocks.size(); i++ ) {
+			Block b = path.blocks.get( i );
+			order.add( ((BlockPosProfAttr) b.attr).searchEdge( path.blocks.get( i + 1 ) ) );
+		}
+	}
+	
+	// Pettis and Hansen: every block starts as a chain of its own, and an edge
+	// joins the chain it leaves at the end to the chain it enters at the
+	// start. Chains are the sets of a union-find over block positions, with
+	// the head and tail of a chain at its root and its blocks linked by next
+	private List<Chain> genChains( List<Edge> edgeOrder, Map<Block, Integer> position, Chain[] chainOf ) {
+		
+		int n = blocks.size();
+		Block[] blockAt = blocks.toArray( new Block[n] );
+		int[] parent = new int[n];
+		int[] size = new int[n];
+		int[] head = new int[n];
+		int[] tail = new int[n];
+		int[] next = new int[n];
+		for ( int i = 0; i < n; i++ ) {
+			parent[i] = head[i] = tail[i] = i;
+			size[i] = 1;
+			next[i] = -1;
+		}
+		
+		for ( Edge e: edgeOrder ) {
+			int src = position.get( e.src );
+			int dst = position.get( e.dst );
+			int c = find( parent, src );
+			int d = find( parent, dst );
+			
+			if ( c != d && tail[c] == src && head[d] == dst ) {
+				int root = ( size[c] >= size[d] ) ? c : d;
+				next[src] = dst;
+				head[root] = head[c];
+				tail[root] = tail[d];
+				parent[c] = parent[d] = root;
+				size[root] = size[c] + size[d];
+			}
+		}
+		
+		List<Chain> chainList = new ArrayList<Chain>();
+		for ( int i = 0; i < n; i++ ) {
+			if ( head[find( parent, i )] != i )
+				continue;
+			Chain chain = new Chain();
+			chain.index = chainList.size();
+			for ( int b = i; b >= 0; b = next[b] ) {
+				chain.blockList.add( blockAt[b] );
+				chainOf[b] = chain;
+			}
+			chainList.add( chain );
+		}
+		return chainList;
+	}
+	
+	// a chain should come before another one its conditional branches go to
+	// (weighted by the count of the edge they fall through to), if it does
+	// so more than the other way round
+	private void genChainOrder( List<Chain> chainList, Map<Block, Integer> position, Chain[] chainOf ) {
+		
+		long n = chainList.size();
+		Map<Long, long[]> weight = new HashMap<Long, long[]>();	// by from * n + to
+		
+		for ( Chain chain: chainList )
+			for ( Block block: chain.blockList )
+				if ( block.getSuccs().size() > 1 ) {
+					
+					Block b1 = block.getSuccs().get(0);
+					Block b2 = block.getSuccs().get(1);
+					
+					Chain c1 = chainOf[position.get( b1 )];
+					Chain c2 = chainOf[position.get( b2 )];
+					
+					BlockPosProfAttr attr = (BlockPosProfAttr) block.attr;
+					Edge e1 = attr.searchEdge( b1 );
+					Edge e2 = attr.searchEdge( b2 );
+					
+					Chain to = null;
+					long w = 0;
+					if ( c1 != chain ) {
+						to = c1;
+						w = e2.counter;
+					} else if ( c2 != chain ) {
+						to = c2;
+						w = e1.counter;
+					}
+					if ( to == null )
+						continue;
+					
+					long[] sum = weight.get( chain.index * n + to.index );
+					if ( sum == null )
+						weight.put( chain.index * n + to.index, new long[] { w } );
+					else
+						sum[0] += w;
+				}
+		
+		for ( Map.Entry<Long, long[]> entry: weight.entrySet() ) {
+			Chain from = chainList.get( (int) ( entry.getKey() / n ) );
+			Chain to = chainList.get( (int) ( entry.getKey() % n ) );
+			long[] back = weight.get( to.index * n + from.index );
+			if ( entry.getValue()[0] > ( back == null ? 0 : back[0] ) ) {
+				from.outEdge.add( to );
+				to.inEdge.add( from );
+				to.pending ++;
+			}
+		}
+	}
+	
+	// a chain waiting in the queue, with its state when it was queued
+	private static class Candidate {
+		
+		public final Chain chain;
+		public final boolean ready;
+		public final long link;
+		
+		public Candidate( Chain chain ) {
+			this.chain = chain;
+			this.ready = ( chain.pending == 0 );
+			this.link = chain.link;
+		}
+		
+		public boolean isStale() {
+			return chain.placed || ready != ( chain.pending == 0 ) || link != chain.link;
 		}
 	}
 	
+	// the entry chain first, then of the chains whose predecessors (see
+	// genChainOrder) are all placed the one with the heaviest edges to and
+	// from the placed blocks; if there is none, the heaviest of any, which
+	// breaks a cycle of the order
+	private List<Block> orderChains( List<Chain> chainList, Map<Block, Integer> position, Chain[] chainOf ) {
+		
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>( chainList.size(), new Comparator<Candidate>() {
+			
+			@Override
+			public int compare( Candidate o1, Candidate o2 ) {
+				if ( o1.ready != o2.ready )
+					return o1.ready ? -1 : 1;
+				if ( o1.link != o2.link )
+					return ( o1.link > o2.link ) ? -1 : 1;
+				return o1.chain.index - o2.chain.index;
+			}
+			
+		} );
+		
+		for ( Chain c: chainList )
+			queue.add( new Candidate( c ) );
+		
+		List<Block> newBlockOrder = new ArrayList<Block>( blocks.size() );
+		Chain chain = chainOf[position.get( routine.getEntryBlock() )];
+		
+		while ( chain != null ) {
+			
+			chain.placed = true;
+			newBlockOrder.addAll( chain.blockList );
+			
+			for ( Chain c: chain.outEdge ) {
+				c.pending --;
+				if ( !c.placed )
+					queue.add( new Candidate( c ) );
+			}
+			
+			for ( Block b: chain.blockList ) {
+				for ( Edge e: ((BlockPosProfAttr) b.attr).getEdgeList() )
+					addLink( queue, chainOf[position.get( e.dst )], e );
+				for ( Block pred: b.getPreds() )
+					addLink( queue, chainOf[position.get( pred )], ((BlockPosProfAttr) pred.attr).searchEdge( b ) );
+			}
+			
+			chain = null;
+			while ( chain == null && !queue.isEmpty() ) {
+				Candidate c = queue.poll();
+				if ( !c.isStale() )
+					chain = c.chain;
+			}
+		}
+		
+		return newBlockOrder;
+	}
+	
+	private void addLink( PriorityQueue<Candidate> queue, Chain c, Edge e ) {
+		if ( c.placed || e == null )
+			return;
+		c.link += e.counter;
+		queue.add( new Candidate( c ) );
+	}
+	
+	// the blocks (but the entry) never run, or run less than once in
+	// COLD_RATIO calls of the routine, by the counts of the edges into them
+	private Set<Block> genColdBlocks() {
+		Map<Block, Long> count = new HashMap<Block, Long>();
+		for ( Edge e: localEdgeList ) {
+			Long c = count.get( e.dst );
+			count.put( e.dst, ( c == null ? 0 : c ) + e.counter );
+		}
+		
+		Block entry = routine.getEntryBlock();
+		long calls = 0;
+		for ( Edge e: ((BlockPosProfAttr) entry.attr).getEdgeList() )
+			calls += e.counter;
+		if ( count.containsKey( entry ) )
+			calls -= count.get( entry );
+		
+		Set<Block> cold = new HashSet<Block>();
+		for ( Block b: blocks ) {
+			long c = count.containsKey( b ) ? count.get( b ) : 0;
+			if ( b != entry && ( c == 0 || c * COLD_RATIO < calls ) )
+				cold.add( b );
+		}
+		return cold;
+	}
+	
 	private void bottomUpOptimize() {
 		
+		Set<Block> cold = ( split && localEdgeList.size() > 0 ) ? genColdBlocks() : null;
+		
 		for ( Edge e: localEdgeList )
-			if ( e.isBackEdge )
+			if ( e.isBackEdge && e.counter < Integer.MAX_VALUE )
 				e.counter ++;
 		
 		if ( localEdgeList.size() == 0 )
@@ -214,7 +617,7 @@ public class PositionProfile implements Profile {
 
 			@Override
 			public int compare( Edge o1, Edge o2 ) {
-				return ( o2.counter - o1.counter );
+				return ( o1.counter == o2.counter ) ? 0 : ( o1.counter > o2.counter ) ? -1 : 1;
 			}
 			
 		} );
@@ -222,140 +625,41 @@ public class PositionProfile implements Profile {
 //		for ( Edge e: localEdgeList )
 //			System.out.println( e.toString() + ": " + e.counter ); 
 		
-		List<Chain> chainList = new LinkedList<Chain>();
-		Map<Block, Chain> blockChainMap = new HashMap<Block, Chain>();
+		Map<Block, Integer> position = new HashMap<Block, Integer>();
+		for ( Block b: blocks )
+			position.put( b, position.size() );
+		Chain[] chainOf = new Chain[blocks.size()];
 		
-		for ( Edge e: localEdgeList ) {
-			
-//			if ( e.isBackEdge )
-//				continue;
-			
-			boolean srcVisited = blockChainMap.containsKey( e.src );
-			boolean dstVisited = blockChainMap.containsKey( e.dst );
-			
-			if ( srcVisited && dstVisited ) {
-
-				Chain srcChain = blockChainMap.get( e.src );
-				Chain dstChain = blockChainMap.get( e.dst );
-				
-				if ( srcChain != dstChain && 
-					 srcChain.isLast( e.src ) &&
-					 dstChain.isFirst( e.dst ) ) {
-					srcChain.merge( dstChain );
-					for ( Block b: dstChain.blockList )
-						blockChainMap.put( b, srcChain );
-					chainList.remove( dstChain );
-				}
-
-			} else if ( srcVisited ) {
-				
-				Chain c = blockChainMap.get( e.src );
-				if ( c.isLast( e.src ) ) {
-					c.blockList.add( e.dst );
-					blockChainMap.put( e.dst, c );
-				} else {
-					Chain chain = new Chain();
-					chain.blockList.add( e.dst );
-					chainList.add( chain );
-					blockChainMap.put( e.dst, chain );
-				}
-				
-			} else if ( dstVisited ) {
-				
-				Chain c = blockChainMap.get( e.dst );
-				if ( c.isFirst( e.dst ) ) {
-					c.blockList.add( 0, e.src );
-					blockChainMap.put( e.src, c );
-				} else {
-					Chain chain = new Chain();
-					chain.blockList.add( e.src );
-					chainList.add( chain );
-					blockChainMap.put( e.src, chain );
-				}
-				
-			} else {
-				
-				Chain chain = new Chain();
-				chain.blockList.add( e.src );
-				chain.blockList.add( e.dst );
-				
-				chainList.add( chain );
-				blockChainMap.put( e.src, chain );
-				blockChainMap.put( e.dst, chain );
-				
-			}
+		List<Edge> edgeOrder = ( hotPaths != null ) ? genPathOrder() : localEdgeList;
+		if ( cold != null ) {
+			// no chain runs from hot into cold blocks or back
+			List<Edge> sameSection = new ArrayList<Edge>();
+			for ( Edge e: edgeOrder )
+				if ( cold.contains( e.src ) == cold.contains( e.dst ) )
+					sameSection.add( e );
+			edgeOrder = sameSection;
 		}
-		
-		for ( int i = 0; i < chainList.size(); ++ i )
-			chainList.get( i ).index = i;
+		List<Chain> chainList = genChains( edgeOrder, position, chainOf );
 		
 //		for ( Chain c: chainList )
 //			System.out.println( c );
 		
-		// calculate order between chains
-		int n = chainList.size();
+		genChainOrder( chainList, position, chainOf );
+		List<Block> newBlockOrder = orderChains( chainList, position, chainOf );
 		
-		if (n > 2) {
-			int[][] chainOrder = new int[n][n];
-			
-			for ( int i = 0; i < n; i ++ )
-				for ( int j = 0; j < n; j ++ )
-					chainOrder[i][j] = 0;
-			
-			for ( Chain chain: chainList )
-				for ( Block block: chain.blockList )
-					if ( block.getSuccs().size() > 1 ) {
-						
-						Block b1 = block.getSuccs().get(0);
-						Block b2 = block.getSuccs().get(1);
-						
-						Chain c1 = blockChainMap.get( b1 );
-						Chain c2 = blockChainMap.get( b2 );
-						
-						BlockPosProfAttr attr = (BlockPosProfAttr) block.attr;
-						Edge e1 = attr.searchEdge( b1 );
-						Edge e2 = attr.searchEdge( b2 );
-						
-						if ( c1 != chain ) {
-							chainOrder[chain.index][c1.index] += e2.counter; // weight
-						} else if ( c2 != chain ) {
-							chainOrder[chain.index][c2.index] += e1.counter;
-						} 
-					}
-			
-			for ( Chain c1: chainList )
-				for ( Chain c2: chainList )
-					if ( c1 != c2 ) {
-						int id1 = c1.index;
-						int id2 = c2.index;
-						if ( chainOrder[id1][id2] > chainOrder[id2][id1] ) {
-							c1.outEdge.add( c2 );
-							c2.inEdge.add( c1 );
-						} else if ( chainOrder[id1][id2] < chainOrder[id2][id1] ) {
-							c1.inEdge.add( c2 );
-							c2.outEdge.add( c1 );
-						}
-					}
-		}
-		
-		List<Block> newBlockOrder = new LinkedList<Block>();
-		Chain entryChain = blockChainMap.get( routine.getEntryBlock() );
-		addChain( newBlockOrder, entryChain );
-		chainList.remove( entryChain );
-		
-		while ( !chainList.isEmpty() ) {
-			
-			Iterator<Chain> it = chainList.iterator();
-			Chain chain = null;
-			
+		if ( cold != null ) {
+			List<Block> coldBlocks = new ArrayList<Block>();
+			Iterator<Block> it = newBlockOrder.iterator();
 			while ( it.hasNext() ) {
-				chain = it.next();
-				if ( chain.inEdge.isEmpty() )
-					break;
+				Block b = it.next();
+				if ( cold.contains( b ) ) {
+					b.cold = true;
+					coldBlocks.add( b );
+					it.remove();
+				}
 			}
-			addChain( newBlockOrder, chain );
-			it.remove();
-			
+			newBlockOrder.addAll( coldBlocks );
+			routine.coldCounter = coldBlocks.size();
 		}
 		
 //		for ( Block b: newBlockOrder )
@@ -366,6 +670,8 @@ public class PositionProfile implements Profile {
 		for ( int i = 0; i < blockCount; i ++ ) {
 			Block block = newBlockOrder.get( i );
 			Block nextBlock = ( i < blockCount - 1 ) ? newBlockOrder.get( i + 1 ) : null;
+			if ( nextBlock != null && nextBlock.cold != block.cold )
+				nextBlock = null;	// the sections are apart in the output
 			Stmt lastStmt = block.body.get( block.body.size() - 1 );
 			
 			if ( block.getSuccs().size() == 1 ) {
@@ -378,7 +684,7 @@ public class PositionProfile implements Profile {
 					}
 				} else {
 					if ( nextBlock == null || succ != nextBlock ) {
-						BranchStmt brStmt = new BranchStmt( succ );
+						BranchStmt brStmt = new BranchStmt( routine.newStmtIndex(), succ );
 						block.body.add( brStmt );
 					}
 				}
@@ -405,6 +711,17 @@ public class PositionProfile implements Profile {
 					Edge tmpEdge = thenEdge;
 					thenEdge = elseEdge;
 					elseEdge = tmpEdge;*/
+				} else if ( thenBlock != nextBlock ) {
+					// neither successor follows, fall into a new block branching to thenBlock
+					Block jump = new Block( routine );
+					jump.body.add( new BranchStmt( routine.newStmtIndex(), thenBlock ) );
+					jump.cold = block.cold;
+					block.getSuccs().set( block.getSuccs().indexOf( thenBlock ), jump );
+					thenBlock.getPreds().set( thenBlock.getPreds().indexOf( block ), jump );
+					jump.addPred( block );
+					jump.addSucc( thenBlock );
+					newBlockOrder.add( i + 1, jump );
+					blockCount ++;
 				}
 				/*
 				boolean backedge = false;
@@ -429,11 +746,13 @@ public class PositionProfile implements Profile {
 	
 	public void clean() {
 		for ( Edge e: localEdgeList ) {
-			removeProfileEdge( e );
+			if ( e.profBlock != null )
+				removeProfileEdge( e );
 		}
 	}
 	
 	public void optimize() {
+		genCounts();
 //		topDownOptimize();
 		bottomUpOptimize();
 	}
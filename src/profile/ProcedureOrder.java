@@ -0,0 +1,204 @@
+package profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+
+import compiler.Block;
+import compiler.Program;
+import compiler.Routine;
+
+// Pettis and Hansen procedure ordering. The call graph is taken as undirected,
+// an edge weighing the calls run between two routines either way. Starting
+// with a group of its own for every routine, the two groups joined by the
+// heaviest edge are merged, the edges of the second one adding up into the
+// first, until no edge is left. A merge puts the two routines of the
+// heaviest original edge between the groups as close as reversing either
+// group can. The groups are laid out by the calls run into them, so the
+// routines never called (but main) end up last.
+public class ProcedureOrder {
+
+	private Program program;
+	private List<CallSite> sites;
+	private List<Routine> routines;
+	private Map<Routine, Integer> id = new HashMap<Routine, Integer>();
+
+	private List<Map<Integer, long[]>> calls = new ArrayList<Map<Integer, long[]>>();	// by routine
+	private List<Map<Integer, long[]>> affinity = new ArrayList<Map<Integer, long[]>>();	// by group root
+	private List<List<Integer>> members = new ArrayList<List<Integer>>();	// by group root
+	private int[] parent;
+	private long[] heat;	// times called, main once
+
+	public ProcedureOrder( Program program, List<CallSite> sites ) {
+		this.program = program;
+		this.sites = sites;
+		this.routines = new ArrayList<Routine>( program.getRoutines() );
+	}
+
+	private static boolean isMain( Routine r ) {
+		for ( Block b: r.getBlocks() )
+			for ( Stmt s: b.body )
+				if ( s.getOperator() == Operator.entrypc )
+					return true;
+		return false;
+	}
+
+	private static void addWeight( Map<Integer, long[]> map, int key, long weight ) {
+		long[] w = map.get( key );
+		if ( w == null )
+			map.put( key, new long[] { weight } );
+		else
+			w[0] += weight;
+	}
+
+	private static long getWeight( Map<Integer, long[]> map, int key ) {
+		long[] w = map.get( key );
+		return ( w == null ) ? 0 : w[0];
+	}
+
+	private void genCallGraph() {
+		int n = routines.size();
+		parent = new int[n];
+		heat = new long[n];
+		for ( int i = 0; i < n; i++ ) {
+			id.put( routines.get( i ), i );
+			parent[i] = i;
+			calls.add( new HashMap<Integer, long[]>() );
+			affinity.add( new HashMap<Integer, long[]>() );
+			members.add( new ArrayList<Integer>() );
+			members.get( i ).add( i );
+			if ( isMain( routines.get( i ) ) )
+				heat[i] = 1;
+		}
+
+		for ( CallSite site: sites ) {
+			Integer caller = id.get( site.caller );
+			Integer callee = id.get( site.getCallee() );
+			if ( caller == null || callee == null || site.counter <= 0 )
+				continue;
+			heat[callee] += site.counter;
+			if ( caller.equals( callee ) )
+				continue;
+			addWeight( calls.get( caller ), callee, site.counter );
+			addWeight( calls.get( callee ), caller, site.counter );
+		}
+
+		for ( int i = 0; i < n; i++ )
+			for ( Map.Entry<Integer, long[]> e: calls.get( i ).entrySet() )
+				affinity.get( i ).put( e.getKey(), new long[] { e.getValue()[0] } );
+	}
+
+	private static int find( int[] parent, int x ) {
+		while ( parent[x] != x ) {
+			parent[x] = parent[parent[x]];
+			x = parent[x];
+		}
+		return x;
+	}
+
+	// b goes after a, each reversed if that brings the routines of their
+	// heaviest original edge closer
+	private void merge( int a, int b ) {
+		List<Integer> first = members.get( a );
+		List<Integer> second = members.get( b );
+
+		int x = -1, y = -1;
+		long max = -1;
+		for ( int i = 0; i < first.size(); i++ )
+			for ( Map.Entry<Integer, long[]> e: calls.get( first.get( i ) ).entrySet() ) {
+				int j = second.indexOf( e.getKey() );
+				if ( j >= 0 && e.getValue()[0] > max ) {
+					max = e.getValue()[0];
+					x = i;
+					y = j;
+				}
+			}
+
+		if ( x < first.size() - 1 - x )
+			Collections.reverse( first );
+		if ( y > second.size() - 1 - y )
+			Collections.reverse( second );
+		first.addAll( second );
+		members.set( b, null );
+
+		parent[b] = a;
+		heat[a] += heat[b];
+		for ( Map.Entry<Integer, long[]> e: affinity.get( b ).entrySet() ) {
+			int c = e.getKey();
+			if ( c == a )
+				continue;
+			addWeight( affinity.get( a ), c, e.getValue()[0] );
+			Map<Integer, long[]> other = affinity.get( c );
+			other.remove( b );
+			addWeight( other, a, e.getValue()[0] );
+		}
+		affinity.get( a ).remove( b );
+		affinity.set( b, null );
+	}
+
+	public void optimize() {
+		genCallGraph();
+
+		// edges as { weight, a, b }, heaviest first; an edge is stale once
+		// one of its groups is merged away or its weight has grown
+		PriorityQueue<long[]> queue = new PriorityQueue<long[]>( 16, new Comparator<long[]>() {
+
+			@Override
+			public int compare( long[] o1, long[] o2 ) {
+				if ( o1[0] != o2[0] )
+					return ( o1[0] > o2[0] ) ? -1 : 1;
+				if ( o1[1] != o2[1] )
+					return ( o1[1] < o2[1] ) ? -1 : 1;
+				return ( o1[2] < o2[2] ) ? -1 : ( o1[2] > o2[2] ) ? 1 : 0;
+			}
+
+		} );
+
+		for ( int a = 0; a < routines.size(); a++ )
+			for ( Map.Entry<Integer, long[]> e: affinity.get( a ).entrySet() )
+				if ( a < e.getKey() )
+					queue.add( new long[] { e.getValue()[0], a, e.getKey() } );
+
+		while ( !queue.isEmpty() ) {
+			long[] edge = queue.poll();
+			int a = (int) edge[1];
+			int b = (int) edge[2];
+			if ( find( parent, a ) != a || find( parent, b ) != b || getWeight( affinity.get( a ), b ) != edge[0] )
+				continue;
+
+			merge( a, b );
+			for ( Map.Entry<Integer, long[]> e: affinity.get( a ).entrySet() ) {
+				int c = e.getKey();
+				queue.add( new long[] { e.getValue()[0], Math.min( a, c ), Math.max( a, c ) } );
+			}
+		}
+
+		List<Integer> groups = new ArrayList<Integer>();
+		for ( int i = 0; i < routines.size(); i++ )
+			if ( parent[i] == i )
+				groups.add( i );
+		Collections.sort( groups, new Comparator<Integer>() {
+
+			@Override
+			public int compare( Integer o1, Integer o2 ) {
+				if ( heat[o1] != heat[o2] )
+					return ( heat[o1] > heat[o2] ) ? -1 : 1;
+				return o1 - o2;
+			}
+
+		} );
+
+		List<Routine> order = program.getRoutines();
+		order.clear();
+		for ( int g: groups )
+			for ( int i: members.get( g ) )
+				order.add( routines.get( i ) );
+	}
+}
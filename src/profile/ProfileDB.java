@@ -0,0 +1,238 @@
+package profile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import stmt.CallStmt;
+import stmt.Stmt;
+
+import compiler.Block;
+import compiler.Routine;
+
+// Counts of earlier profiling runs, so a build with an unchanged CFG does not
+// run the program again. A record holds the counts of one routine for one
+// kind of profile ("inline", "order": its call sites before inlining and
+// before procedure ordering, "pos": its edges, in the order InlineProfile and
+// PositionProfile number them; "path": (id, count) pairs of the paths run,
+// see PathProfile.getCounts), with a structural hash of the routine the
+// counts were taken on. The file is
+//   int magic, int version, int records, then for every record
+//   utf kind, utf routine name, long hash, varint n, n varint counts
+// Files of several training runs merge into one with
+//   java -cp classes profile.ProfileDB <out> <in>[:<weight>] ...
+public class ProfileDB {
+
+	private static final int MAGIC = 0x50524f46;	// "PROF"
+	private static final int VERSION = 1;
+
+	private static class Record {
+		public String kind;
+		public String name;
+		public long hash;
+		public long[] counts;
+	}
+
+	private Map<String, Record> records = new LinkedHashMap<String, Record>();
+
+	// empty if the file does not exist yet
+	public static ProfileDB load( String fileName ) throws IOException {
+		ProfileDB db = new ProfileDB();
+		File file = new File( fileName );
+		if ( !file.exists() )
+			return db;
+
+		DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+		try {
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+				throw new IOException( fileName + " is not a profile database" );
+			int n = in.readInt();
+			for ( int i = 0; i < n; i++ ) {
+				Record r = new Record();
+				r.kind = in.readUTF();
+				r.name = in.readUTF();
+				r.hash = in.readLong();
+				r.counts = new long[(int) readVarint( in )];
+				for ( int j = 0; j < r.counts.length; j++ )
+					r.counts[j] = readVarint( in );
+				db.records.put( r.kind + " " + r.name, r );
+			}
+		} catch ( EOFException e ) {
+			throw new IOException( fileName + " is truncated" );
+		} finally {
+			in.close();
+		}
+		return db;
+	}
+
+	public void save( String fileName ) throws IOException {
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( fileName ) ) );
+		try {
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( records.size() );
+			for ( Record r: records.values() ) {
+				out.writeUTF( r.kind );
+				out.writeUTF( r.name );
+				out.writeLong( r.hash );
+				writeVarint( out, r.counts.length );
+				for ( long c: r.counts )
+					writeVarint( out, c );
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// 7 bits a byte, low bits first; counts are never negative
+	private static void writeVarint( DataOutputStream out, long value ) throws IOException {
+		while ( ( value & ~0x7fL ) != 0 ) {
+			out.writeByte( (int) ( value & 0x7f ) | 0x80 );
+			value >>>= 7;
+		}
+		out.writeByte( (int) value );
+	}
+
+	private static long readVarint( DataInputStream in ) throws IOException {
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 ) {
+			int b = in.readUnsignedByte();
+			value |= (long) ( b & 0x7f ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				return value;
+		}
+		throw new IOException( "bad varint" );
+	}
+
+	// FNV-1a over the blocks (stmt operators, callees, successor positions)
+	// of r, in block list order
+	public static long hash( Routine r ) {
+		long h = 0xcbf29ce484222325L;
+		h = mix( h, r.getBlocks().size() );
+		for ( Block b: r.getBlocks() ) {
+			h = mix( h, b.body.size() );
+			for ( Stmt s: b.body ) {
+				h = mix( h, s.getOperator().getIndex() );
+				if ( s instanceof CallStmt && ((CallStmt) s).getRoutine() != null )
+					h = mix( h, ((CallStmt) s).getRoutine().getName().hashCode() );
+			}
+			h = mix( h, b.getSuccs().size() );
+			for ( Block succ: b.getSuccs() )
+				h = mix( h, r.getBlocks().indexOf( succ ) );
+		}
+		return h;
+	}
+
+	private static long mix( long h, int value ) {
+		for ( int i = 0; i < 4; i++ ) {
+			h ^= ( value >>> ( 8 * i ) ) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	// counts of kind for routine name, null unless taken on the same hash
+	public long[] get( String kind, String name, long hash ) {
+		Record r = records.get( kind + " " + name );
+		return ( r != null && r.hash == hash ) ? r.counts : null;
+	}
+
+	public void put( String kind, String name, long hash, long[] counts ) {
+		Record r = new Record();
+		r.kind = kind;
+		r.name = name;
+		r.hash = hash;
+		r.counts = counts;
+		records.put( kind + " " + name, r );
+	}
+
+	// adds the counts of other times weight; a record taken on another hash
+	// than the one here is left out
+	public void merge( ProfileDB other, double weight ) {
+		for ( Record o: other.records.values() ) {
+			String key = o.kind + " " + o.name;
+			Record r = records.get( key );
+			if ( r == null ) {
+				r = new Record();
+				r.kind = o.kind;
+				r.name = o.name;
+				r.hash = o.hash;
+				r.counts = new long[o.counts.length];
+				records.put( key, r );
+			} else if ( r.hash != o.hash || ( !isSparse( r.kind ) && r.counts.length != o.counts.length ) ) {
+				System.out.println( "ProfileDB.merge error: " + key + " was taken on another CFG, skipped" );
+				continue;
+			}
+			if ( isSparse( r.kind ) ) {
+				r.counts = mergePairs( r.counts, o.counts, weight );
+				continue;
+			}
+			for ( int i = 0; i < o.counts.length; i++ )
+				r.counts[i] += Math.round( o.counts[i] * weight );
+		}
+	}
+
+	// counts of kind are (id, count) pairs
+	private static boolean isSparse( String kind ) {
+		return kind.equals( "path" );
+	}
+
+	private static long[] mergePairs( long[] a, long[] b, double weight ) {
+		Map<Long, Long> sum = new TreeMap<Long, Long>();
+		for ( int i = 0; i + 1 < a.length; i += 2 )
+			sum.put( a[i], a[i + 1] );
+		for ( int i = 0; i + 1 < b.length; i += 2 ) {
+			Long c = sum.get( b[i] );
+			sum.put( b[i], ( c == null ? 0 : c ) + Math.round( b[i + 1] * weight ) );
+		}
+		
+		long[] pairs = new long[2 * sum.size()];
+		int i = 0;
+		for ( Map.Entry<Long, Long> entry: sum.entrySet() ) {
+			pairs[i++] = entry.getKey();
+			pairs[i++] = entry.getValue();
+		}
+		return pairs;
+	}
+
+	public static void main( String[] args ) {
+		if ( args.length < 2 ) {
+			System.out.println( "java -cp classes profile.ProfileDB <out> <in>[:<weight>] ..." );
+			return;
+		}
+
+		ProfileDB merged = new ProfileDB();
+		try {
+			for ( int i = 1; i < args.length; i++ ) {
+				String fileName = args[i];
+				double weight = 1;
+				int sep = fileName.lastIndexOf( ':' );
+				if ( sep > 0 ) {
+					try {
+						weight = Double.parseDouble( fileName.substring( sep + 1 ) );
+						fileName = fileName.substring( 0, sep );
+					} catch ( NumberFormatException e ) {
+						// a ':' of the file name
+					}
+				}
+				if ( !new File( fileName ).exists() ) {
+					System.out.println( fileName + " doesn't exist" );
+					return;
+				}
+				merged.merge( load( fileName ), weight );
+			}
+			merged.save( args[0] );
+		} catch ( IOException e ) {
+			System.out.println( "ProfileDB.main error: " + e.getMessage() );
+		}
+	}
+}
@@ -1,11 +1,8 @@
 package profile;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 
 import attr.RoutinePosProfAttr;
 
@@ -16,6 +13,10 @@ import compiler.Routine;
 public class ProfileMain {
 	
 	private Program program;
+	private List<Edge> profEdgeList = new ArrayList<Edge>();
+	private ProfileDB db = null;
+	private boolean dbChanged = false;
+	private boolean runFailed = false;	// partial counts are not kept
 	
 	public ProfileMain( Program program ) {
 		this.program = program;
@@ -26,71 +27,207 @@ public class ProfileMain {
 //		System.out.print( program.dumpCFG() );
 //		System.out.println("*************************************");
 		
-		for (Routine r: program.getRoutines()) {
-			
-			RoutinePosProfAttr attr = new RoutinePosProfAttr();
-			attr.addProfile( new PositionProfile( r ) );
-			attr.instrument();
-			
-			r.attr = attr;
+		if ( option.profileDB != null ) {
+			try {
+				db = ProfileDB.load( option.profileDB );
+			} catch ( IOException e ) {
+				System.err.println( e.getMessage() + ", profiling again" );
+				db = new ProfileDB();
+			}
 		}
 		
-		program.renumberStmt();
+		// inline first, so the blocks are positioned with the inlined code
+		if ( option.profileList.contains( Option.ProfileOption.INLINE ) ) {
+			inline();
+			program.renumberStmt();
+		}
 		
-		String fileName = option.fileName.substring( 0, option.fileName.lastIndexOf( '.' ) ); 
-		String outFileName = fileName + "-prof.start";
-		File f = new File( outFileName );
+		if ( option.profileList.contains( Option.ProfileOption.POS ) ||
+				option.profileList.contains( Option.ProfileOption.PATH ) ||
+				option.profileList.contains( Option.ProfileOption.SPLIT ) ||
+				option.profileList.contains( Option.ProfileOption.STATIC ) ) {
+			position( option );
+			program.renumberStmt();
+		}
 		
-		try {
-			BufferedWriter writer = new BufferedWriter( new FileWriter( f ) );
-			writer.write( program.dump() );
-			writer.close();
-		} catch ( IOException e ) {
-			e.printStackTrace();
+		if ( option.profileList.contains( Option.ProfileOption.ORDER ) ) {
+			order();
+			program.renumberStmt();
 		}
 		
-		Runtime run = Runtime.getRuntime();
-		String cmd = Option.DART_SDK + " " + Option.START + " -r --stats " + outFileName;
-		try {
-			Process p = run.exec( cmd );
-			BufferedReader reader = new BufferedReader( new InputStreamReader( p.getInputStream() ) );
-			String lineStr;
-			boolean profStart = false;
+		if ( dbChanged ) {
+			try {
+				db.save( option.profileDB );
+			} catch ( IOException e ) {
+				System.err.println( "Cannot write " + option.profileDB + ": " + e.getMessage() );
+			}
+		}
+		
+//		System.out.println("*************************************");
+//		System.out.print( program.dump() );
+	}
+	
+	// run the instrumented program in memory, so the counters can be read back
+	private Interpreter profilingRun( BlockListener listener ) {
+		Interpreter vm = new Interpreter( program );
+		vm.setListener( listener );
+		if ( !vm.run( null ) ) {
+			System.err.println( "Profiling run failed, using the partial counts" );
+			runFailed = true;
+		}
+		return vm;
+	}
+	
+	// the counts of kind for every routine from the db, null if one is missing
+	private List<long[]> loadCounts( String kind ) {
+		if ( db == null )
+			return null;
+		List<long[]> counts = new ArrayList<long[]>();
+		for ( Routine r: program.getRoutines() ) {
+			long[] c = db.get( kind, r.getName(), ProfileDB.hash( r ) );
+			if ( c == null )
+				return null;
+			counts.add( c );
+		}
+		return counts;
+	}
+	
+	// the counter of every call site of calls, from the db records of kind
+	// or a profiling run
+	private void countCalls( InlineProfile calls, String kind ) {
+		
+		List<long[]> counts = loadCounts( kind );
+		List<Long> hashes = new ArrayList<Long>();
+		
+		if ( counts != null ) {
+			for ( int i = 0; i < counts.size(); i++ ) {
+				List<CallSite> sites = calls.getCallSites( program.getRoutines().get( i ) );
+				for ( int j = 0; j < sites.size(); j++ )
+					sites.get( j ).counter = (int) Math.min( counts.get( i )[j], Integer.MAX_VALUE );
+			}
+		} else {
+			// the hash of the routines as they are now, without the counters
+			for ( Routine r: program.getRoutines() )
+				hashes.add( ProfileDB.hash( r ) );
 			
-			while ( (lineStr = reader.readLine()) != null ) {
-				
-				if ( lineStr.contains( "Counts" ) ) {
-					profStart = true;
-					continue;
-				}
-				
-				if ( profStart ) {
-					int id = Integer.parseInt( lineStr.substring( 0, lineStr.indexOf( ':' ) ).trim() );
-					int cnt = Integer.parseInt( lineStr.substring( lineStr.indexOf( ':' ) + 1 ).trim() );
-					PositionProfile.ProfEdgeList.get( id - 1 ).counter = cnt;
-				}
-				
+			calls.instrument();
+			
+			Interpreter vm = profilingRun( null );
+			for ( CallSite site: calls.getCallSites() )
+				site.counter = vm.getCount( site.index );
+			
+			calls.clean();
+		}
+		
+//		for ( CallSite site: calls.getCallSites() )
+//			System.out.println( site.toString() + ": " + site.counter );
+		
+		if ( counts == null && db != null && !runFailed ) {
+			for ( int i = 0; i < hashes.size(); i++ ) {
+				Routine r = program.getRoutines().get( i );
+				List<CallSite> sites = calls.getCallSites( r );
+				long[] c = new long[sites.size()];
+				for ( int j = 0; j < c.length; j++ )
+					c[j] = sites.get( j ).counter;
+				db.put( kind, r.getName(), hashes.get( i ), c );
 			}
+			dbChanged = true;
+		}
+	}
+	
+	private void inline() {
+		InlineProfile inliner = new InlineProfile( program );
+		countCalls( inliner, "inline" );
+		inliner.optimize();
+	}
+	
+	// the call sites are counted again, as inlining and positioning leave
+	// other ones
+	private void order() {
+		InlineProfile calls = new InlineProfile( program );
+		countCalls( calls, "order" );
+		new ProcedureOrder( program, calls.getCallSites() ).optimize();
+	}
+	
+	// with -profile=path the edge counts come from the paths run, and the
+	// chains of blocks are built along the hot paths; with -profile=static
+	// they are estimated, and neither the db nor a profiling run is used
+	private void position( Option option ) {
+		
+		boolean byStatic = option.profileList.contains( Option.ProfileOption.STATIC );
+		boolean byPath = !byStatic && option.profileList.contains( Option.ProfileOption.PATH );
+		String kind = byPath ? "path" : "pos";
+		List<long[]> counts = byStatic ? null : loadCounts( kind );
+		List<Long> hashes = new ArrayList<Long>();
+		List<PositionProfile> profiles = new ArrayList<PositionProfile>();
+		List<PathProfile> paths = new ArrayList<PathProfile>();
+		
+		for (Routine r: program.getRoutines()) {
+			
+			hashes.add( ProfileDB.hash( r ) );
+			if ( byPath )
+				paths.add( new PathProfile( r ) );
+			PositionProfile profile = new PositionProfile( r, profEdgeList,
+					!byPath && !byStatic && option.edgeProfile == Option.EdgeProfileOption.Tree );
+			profile.setSplit( option.profileList.contains( Option.ProfileOption.SPLIT ) );
+			RoutinePosProfAttr attr = new RoutinePosProfAttr();
+			attr.addProfile( profile );
+			if ( byStatic )
+				profile.setCounts( new StaticProfile( r ).getEdgeCounts() );
+			else if ( counts == null && !byPath )
+				attr.instrument();
 			
-			if ( p.waitFor() != 0 ) {  
-                if ( p.exitValue() == 1 )  
-                    System.err.println( "Command error" );
-            }
-			reader.close();
+			profiles.add( profile );
+			r.attr = attr;
+		}
+		
+		if ( byPath ) {
+			if ( counts != null ) {
+				for ( int i = 0; i < paths.size(); i++ )
+					paths.get( i ).setCounts( counts.get( i ) );
+			} else {
+				profilingRun( new PathTracer( paths ) );
+			}
+			for ( int i = 0; i < paths.size(); i++ ) {
+				profiles.get( i ).setCounts( paths.get( i ).getEdgeCounts() );
+				profiles.get( i ).setHotPaths( paths.get( i ).getHotPaths() );
+			}
+		} else if ( counts != null ) {
+			for ( int i = 0; i < profiles.size(); i++ )
+				profiles.get( i ).setCounts( counts.get( i ) );
+		} else if ( !byStatic ) {
+			Interpreter vm = profilingRun( null );
+			for ( Edge e: profEdgeList )
+				e.counter = vm.getCount( e.index );
 			
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			for ( Routine r: program.getRoutines() ) {
+				((RoutinePosProfAttr) r.attr).clean();
+			}
 		}
 		
-		f.delete();
+//		for ( PathProfile p: paths )
+//			for ( Path path: p.getHotPaths() )
+//				System.out.println( path.toString() + ": " + path.count );
 		
-//		for ( Edge e: CFGProfile.ProfEdgeList )
+//		for ( Edge e: profEdgeList )
 //			System.out.println( e.toString() + ": " + e.counter );
 		
-		for ( Routine r: program.getRoutines() ) {
-			((RoutinePosProfAttr) r.attr).clean();
+		if ( counts == null && db != null && !runFailed && !byStatic ) {
+			for ( int i = 0; i < profiles.size(); i++ ) {
+				long[] c;
+				if ( byPath ) {
+					c = paths.get( i ).getCounts();
+				} else {
+					PositionProfile profile = profiles.get( i );
+					profile.genCounts();
+					List<Edge> edges = profile.getEdges();
+					c = new long[edges.size()];
+					for ( int j = 0; j < c.length; j++ )
+						c[j] = edges.get( j ).counter;
+				}
+				db.put( kind, program.getRoutines().get( i ).getName(), hashes.get( i ), c );
+			}
+			dbChanged = true;
 		}
 		
 //		program.renumberStmt();
@@ -98,10 +235,5 @@ public class ProfileMain {
 		for ( Routine r: program.getRoutines() ) {
 			((RoutinePosProfAttr) r.attr).optimize();
 		}
-		
-		program.renumberStmt();
-		
-//		System.out.println("*************************************");
-//		System.out.print( program.dump() );
 	}
 }
@@ -0,0 +1,274 @@
+package profile;
+
+import java.util.List;
+
+import stmt.BranchStmt;
+import stmt.Stmt;
+import stmt.Stmt.Operator;
+import token.Constant;
+import token.Register;
+import token.Token;
+
+import compiler.Block;
+import compiler.BlockOrder;
+import compiler.Loop;
+import compiler.LoopForest;
+import compiler.Routine;
+
+// Estimated edge counts of a routine, for positioning its blocks without a
+// profiling run. Ball and Larus branch heuristics give the probability of
+// each successor of a conditional branch; those that apply are combined as
+// Wu and Larus do (Dempster-Shafer). Block frequencies then follow Wu and
+// Larus too: inner loops first, the frequency of a loop header relative to
+// its entering is 1 / (1 - the probability of getting back to it), and the
+// frequencies of the blocks of a loop, or at last of the routine, are
+// propagated in reverse postorder from its header.
+public class StaticProfile {
+
+	public static final int SCALE = 10000;	// count of a routine's entry, run once
+	private static final double MAX_CYCLIC = 0.999;	// a loop ends sometime
+
+	// probabilities the heuristics give the successor they predict
+	private static final double LOOP_BRANCH = 0.88;	// back to the loop header
+	private static final double LOOP_EXIT = 0.80;		// staying in the loop
+	private static final double LOOP_HEADER = 0.75;	// into a loop
+	private static final double OPCODE = 0.84;		// x < 0, x <= 0, x == c fail
+	private static final double POINTER = 0.60;		// pointers are not null or equal
+	private static final double CALL = 0.78;		// around a block with a call
+	private static final double RETURN = 0.72;		// around a block with a ret
+	private static final double STORE = 0.55;		// around a block with a store
+
+	private Routine routine;
+	private List<Block> blocks;
+	private BlockOrder order;
+	private LoopForest loops;
+
+	private double[][] prob;	// by block number and successor position
+	private double[] freq;		// by block number, relative to the region propagated
+	private double[] cyclic;	// by block number of a loop header
+	private boolean[] visited;
+
+	public StaticProfile( Routine routine ) {
+		this.routine = routine;
+		this.blocks = routine.getBlocks();
+		this.order = routine.getOrder();
+		this.loops = routine.getLoopForest();
+
+		int n = order.blocks.length;
+		prob = new double[n][];
+		freq = new double[n];
+		cyclic = new double[n];
+		visited = new boolean[n];
+
+		for ( int b = 0; b < n; b++ )
+			prob[b] = genProbabilities( order.blocks[b] );
+		for ( Loop loop: loops.getLoopsInnerFirst() )
+			propagate( loop );
+		propagate( null );
+	}
+
+	// the successor positions of b, taken and fallthrough, as the branch
+	// condition being true goes; null if b does not end in blbc / blbs
+	private static int[] getTrueFalse( Block b ) {
+		if ( b.getSuccs().size() != 2 )
+			return null;
+		Stmt last = b.body.get( b.body.size() - 1 );
+		if ( !( last instanceof BranchStmt ) || last.getOperator() == Operator.br )
+			return null;
+		int target = b.getSuccs().indexOf( ((BranchStmt) last).getBranchBlock() );
+		if ( target < 0 )
+			return null;
+		return ( last.getOperator() == Operator.blbs ) ?
+				new int[] { target, 1 - target } : new int[] { 1 - target, target };
+	}
+
+	// the statement of b defining the branch condition, null if it is not there
+	private static Stmt getCondition( Block b ) {
+		Stmt last = b.body.get( b.body.size() - 1 );
+		if ( last.getRHS().isEmpty() || !( last.getRHS().get( 0 ) instanceof Register ) )
+			return null;
+		int index = ((Register) last.getRHS().get( 0 )).index;
+		for ( Stmt s: b.body )
+			if ( s.index == index )
+				return s;
+		return null;
+	}
+
+	private static boolean isZero( Token t ) {
+		return t instanceof Constant && ((Constant) t).getValue() == 0;
+	}
+
+	private static boolean isPointer( Token t ) {
+		return t instanceof Register && ((Register) t).pointer;
+	}
+
+	private static boolean contains( Block b, Operator op ) {
+		for ( Stmt s: b.body )
+			if ( s.getOperator() == op )
+				return true;
+		return false;
+	}
+
+	// Dempster-Shafer: p and q the beliefs of two heuristics in the same event
+	private static double combine( double p, double q ) {
+		return p * q / ( p * q + ( 1 - p ) * ( 1 - q ) );
+	}
+
+	private double[] genProbabilities( Block b ) {
+		List<Block> succs = b.getSuccs();
+		double[] p = new double[succs.size()];
+		if ( succs.size() != 2 ) {
+			for ( int k = 0; k < p.length; k++ )
+				p[k] = 1.0 / p.length;
+			return p;
+		}
+
+		// belief in successor 0
+		double belief = 0.5;
+		Loop loop = loops.getLoop( b );
+		Block s0 = succs.get( 0 ), s1 = succs.get( 1 );
+
+		// loop branch: back edges are taken; loop exit: the loop is not left
+		boolean back0 = isBackEdge( b, s0 ), back1 = isBackEdge( b, s1 );
+		if ( back0 != back1 )
+			belief = combine( belief, back0 ? LOOP_BRANCH : 1 - LOOP_BRANCH );
+		else if ( loop != null && loop.contains( s0 ) != loop.contains( s1 ) )
+			belief = combine( belief, loop.contains( s0 ) ? LOOP_EXIT : 1 - LOOP_EXIT );
+
+		// loop header: a loop is entered
+		boolean head0 = isEntering( b, s0 ), head1 = isEntering( b, s1 );
+		if ( head0 != head1 )
+			belief = combine( belief, head0 ? LOOP_HEADER : 1 - LOOP_HEADER );
+
+		// opcode and pointer: comparisons for < 0, <= 0, == and null fail
+		int[] tf = getTrueFalse( b );
+		Stmt cond = getCondition( b );
+		if ( tf != null && cond != null ) {
+			List<Token> rhs = cond.getRHS();
+			double fail = 0;
+			if ( cond.getOperator() == Operator.isnull )
+				fail = POINTER;
+			else if ( cond.getOperator() == Operator.cmpeq )
+				fail = ( isPointer( rhs.get( 0 ) ) || isPointer( rhs.get( 1 ) ) ) ? POINTER : OPCODE;
+			else if ( ( cond.getOperator() == Operator.cmplt || cond.getOperator() == Operator.cmple ) && isZero( rhs.get( 1 ) ) )
+				fail = OPCODE;
+			if ( fail > 0 )
+				belief = combine( belief, tf[1] == 0 ? fail : 1 - fail );
+		}
+
+		// call, return and store: a successor doing one is avoided, if the
+		// other one does not and it does not postdominate b, which holds
+		// when b is its only predecessor
+		belief = avoid( belief, b, Operator.call, CALL );
+		belief = avoid( belief, b, Operator.ret, RETURN );
+		belief = avoid( belief, b, Operator.store, STORE );
+
+		p[0] = belief;
+		p[1] = 1 - belief;
+		return p;
+	}
+
+	private double avoid( double belief, Block b, Operator op, double prob ) {
+		Block s0 = b.getSuccs().get( 0 ), s1 = b.getSuccs().get( 1 );
+		boolean in0 = contains( s0, op ) && s0.getPreds().size() == 1;
+		boolean in1 = contains( s1, op ) && s1.getPreds().size() == 1;
+		if ( in0 == in1 || isBackEdge( b, s0 ) || isBackEdge( b, s1 ) )
+			return belief;
+		return combine( belief, in0 ? 1 - prob : prob );
+	}
+
+	// src -> dst goes back to the header of a loop around src
+	private boolean isBackEdge( Block src, Block dst ) {
+		Loop loop = loops.getLoop( dst );
+		return loop != null && loop.header == dst && loop.contains( src );
+	}
+
+	// src -> dst enters the loop of header dst from outside
+	private boolean isEntering( Block src, Block dst ) {
+		Loop loop = loops.getLoop( dst );
+		return loop != null && loop.header == dst && !loop.contains( src );
+	}
+
+	private boolean inRegion( Loop loop, int b ) {
+		return order.postNumber[b] >= 0 && ( loop == null || loop.contains( order.blocks[b] ) );
+	}
+
+	// frequencies of the blocks of loop (the routine if null), its header run
+	// once; then the probability of getting back to the header
+	private void propagate( Loop loop ) {
+		int head = order.indexOf( ( loop == null ) ? routine.getEntryBlock() : loop.header );
+		for ( int b: order.rpo )
+			visited[b] = false;
+
+		for ( int b: order.rpo ) {
+			if ( !inRegion( loop, b ) )
+				continue;
+			Block block = order.blocks[b];
+			Loop own = loops.getLoop( block );
+			boolean isHeader = ( own != null && own.header == block );
+
+			double f = ( b == head ) ? 1 : 0;
+			if ( b != head || loop == null )
+				for ( Block pred: block.getPreds() ) {
+					int p = order.indexOf( pred );
+					// back edges of block, and edges from outside the region
+					// or not propagated yet (irreducible), are left out
+					if ( p < 0 || !visited[p] || !inRegion( loop, p ) || ( isHeader && own.contains( pred ) ) )
+						continue;
+					List<Block> succs = pred.getSuccs();
+					for ( int k = 0; k < succs.size(); k++ )
+						if ( succs.get( k ) == block )
+							f += freq[p] * prob[p][k];
+				}
+			if ( isHeader && own != loop )
+				f /= 1 - cyclic[b];
+
+			freq[b] = f;
+			visited[b] = true;
+		}
+
+		if ( loop == null )
+			return;
+		double back = 0;
+		for ( Block latch: loop.getLatches() ) {
+			int p = order.indexOf( latch );
+			List<Block> succs = latch.getSuccs();
+			for ( int k = 0; k < succs.size(); k++ )
+				if ( succs.get( k ) == loop.header )
+					back += freq[p] * prob[p][k];
+		}
+		cyclic[head] = Math.min( back, MAX_CYCLIC );
+	}
+
+	// estimated runs of b per run of the routine, 0 if it is unreachable
+	public double getFrequency( Block b ) {
+		int v = order.indexOf( b );
+		return ( v >= 0 && order.postNumber[v] >= 0 ) ? freq[v] : 0;
+	}
+	
+	// the same for the edge of b to its successor k
+	public double getFrequency( Block b, int k ) {
+		int v = order.indexOf( b );
+		return ( v >= 0 && order.postNumber[v] >= 0 ) ? freq[v] * prob[v][k] : 0;
+	}
+	
+	// estimated counts of the edges, in block list and successor order as
+	// PositionProfile numbers them, the entry block run SCALE times
+	public long[] getEdgeCounts() {
+		int m = 0;
+		for ( Block b: blocks )
+			m += b.getSuccs().size();
+
+		long[] counts = new long[m];
+		int i = 0;
+		for ( Block b: blocks ) {
+			int v = order.indexOf( b );
+			for ( int k = 0; k < b.getSuccs().size(); k++ ) {
+				if ( v >= 0 && order.postNumber[v] >= 0 )
+					counts[i] = Math.round( freq[v] * prob[v][k] * SCALE );
+				i ++;
+			}
+		}
+		return counts;
+	}
+}
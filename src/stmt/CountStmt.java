@@ -13,8 +13,8 @@ public class CountStmt extends Stmt {
 		lhs = new LinkedList();
 	}
 	
-	public CountStmt(Token t) {
-		super(Operator.count);
+	public CountStmt(int index, Token t) {
+		super(index, Operator.count);
 		rhs = new LinkedList();
 		rhs.add(t);
 		lhs = new LinkedList();
@@ -10,8 +10,8 @@ import token.Variable;
 
 public class EntryStmt extends Stmt {
 	
-	public EntryStmt(List<Variable> varList, Block b) {
-		super(Stmt.Operator.entry);
+	public EntryStmt(int index, List<Variable> varList, Block b) {
+		super(index, Stmt.Operator.entry);
 		
 		block = b;
 		
@@ -15,14 +15,14 @@ public class MoveStmt extends Stmt {
 		lhs = oprands.subList(1, 2);
 	}
 	
-	public MoveStmt(List<Token> rhs, List<Token> lhs) {
-		super(Operator.move);
+	public MoveStmt(int index, List<Token> rhs, List<Token> lhs) {
+		super(index, Operator.move);
 		this.rhs = rhs;
 		this.lhs = lhs;
 	}
 	
-	public MoveStmt(Token rhs, Token lhs) {
-		super(Operator.move);
+	public MoveStmt(int index, Token rhs, Token lhs) {
+		super(index, Operator.move);
 		this.rhs = new LinkedList<Token>(); 
 		this.rhs.add((Token) rhs.clone());
 		this.lhs = new LinkedList<Token>();
@@ -14,8 +14,8 @@ public class OtherStmt extends Stmt {
 		lhs = new LinkedList<Token>();
 	}
 	
-	public OtherStmt(Operator op) {
-		super(op);
+	public OtherStmt(int index, Operator op) {
+		super(index, op);
 		rhs = new LinkedList<Token>();
 		lhs = new LinkedList<Token>();
 	}
@@ -12,8 +12,10 @@ public class PhiNode extends Stmt {
 	private PhiStmt phiStmt;
 	private MoveStmt moveStmt;
 	
+	// the phi node, its phi stmt and its move stmt all draw their
+	// indexes from the routine owning block b
 	public PhiNode(String name, int count, Block b) {
-		super(Stmt.Operator.phinode);
+		super(b.routine.newStmtIndex(), Stmt.Operator.phinode);
 		
 		lhs = new LinkedList<Token>();
 		lhs.add(new Variable(name));
@@ -22,9 +24,9 @@ public class PhiNode extends Stmt {
 			rhs.add(null);
 		
 		block = b;
-		phiStmt = new PhiStmt(b);
+		phiStmt = new PhiStmt(b.routine.newStmtIndex(), b);
 		phiStmt.rhs = rhs;
-		moveStmt = new MoveStmt(phiStmt.getLHS(), lhs);
+		moveStmt = new MoveStmt(b.routine.newStmtIndex(), phiStmt.getLHS(), lhs);
 		moveStmt.setBlock(b);
 	}
 	
@@ -9,8 +9,8 @@ import token.Token;
 import token.Variable;
 
 public class PhiStmt extends Stmt {
-	public PhiStmt(Block b) {
-		super(Operator.phi);
+	public PhiStmt(int index, Block b) {
+		super(index, Operator.phi);
 		block = b;
 		lhs = new LinkedList<Token>();
 		lhs.add(new Register(index));
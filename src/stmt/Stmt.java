@@ -7,7 +7,6 @@ import compiler.Block;
 
 import attr.Attribute;
 
-import token.Register;
 import token.Token;
 
 public abstract class Stmt implements Cloneable {
@@ -62,87 +61,8 @@ public abstract class Stmt implements Cloneable {
 		
 		@Override
 		public String toString() { return str; }
-		
-		public static Operator parseOp(String op) {
-			if (op.equals("add"))
-				return add;
-			if (op.equals("sub"))
-				return sub;
-			if (op.equals("mul"))
-				return mul;
-			if (op.equals("div"))
-				return div;
-			if (op.equals("mod"))
-				return mod;
-			if (op.equals("neg"))
-				return neg;
-			if (op.equals("cmpeq"))
-				return cmpeq;
-			if (op.equals("cmple"))
-				return cmple;
-			if (op.equals("cmplt"))
-				return cmplt;
-			if (op.equals("isnull"))
-				return isnull;
-			if (op.equals("istype"))
-				return istype;
-			if (op.equals("br"))
-				return br;
-			if (op.equals("blbc"))
-				return blbc;
-			if (op.equals("blbs"))
-				return blbs;
-			if (op.equals("call"))
-				return call;
-			if (op.equals("load"))
-				return load;
-			if (op.equals("store"))
-				return store;
-			if (op.equals("move"))
-				return move;
-			if (op.equals("new"))
-				return newtype;
-			if (op.equals("newlist"))
-				return newlist;
-			if (op.equals("checknull"))
-				return checknull;
-			if (op.equals("checktype"))
-				return checktype;
-			if (op.equals("checkbounds"))
-				return checkbounds;
-			if (op.equals("lddynamic"))
-				return lddynamic;
-			if (op.equals("stdynamic"))
-				return stdynamic;
-			if (op.equals("write"))
-				return write;
-			if (op.equals("wrl"))
-				return wrl;
-			if (op.equals("enter"))
-				return enter;
-			if (op.equals("ret"))
-				return ret;
-			if (op.equals("param"))
-				return param;
-			if (op.equals("entrypc"))
-				return entrypc;
-			if (op.equals("nop"))
-				return nop;
-			if (op.equals("entry"))
-				return entry;
-			if (op.equals("phi"))
-				return phi;
-			if (op.equals("phinode"))
-				return phinode;
-			if (op.equals("count"))
-				return count;
-
-			return null;
-		}
 	};
 	
-	public static int GlobalIndex = 0;
-	
 	public int index;
 	protected Operator op;
 	protected List<Token> rhs = null;
@@ -151,16 +71,10 @@ public abstract class Stmt implements Cloneable {
 	protected Block block = null;
 	
 	protected Stmt(int index, Operator op) {
-		++GlobalIndex;
 		this.index = index;
 		this.op = op;
 	}
 	
-	protected Stmt(Operator op) {
-		this.index = ++GlobalIndex;
-		this.op = op;
-	}
-	
 	public Operator getOperator() { return op; }
 	
 	public void setOperator(Operator op) { this.op = op; }
@@ -210,23 +124,8 @@ public abstract class Stmt implements Cloneable {
 		return o;
 	}
 	
-	public static Stmt parse(String line) {
-		
-		int index;
-		Operator op;
-		List<Token> oprands = new LinkedList<Token>();
-		
-		index = Integer.parseInt(line.substring(6, line.indexOf(':')));
-		String[] tokens = line.substring(line.indexOf(':') + 1).trim().split(" ");
-		
-		op = Operator.parseOp(tokens[0]);
-		
-		for (int i = 1; i < tokens.length; i++) {
-			if (tokens[i].startsWith(":"))
-				oprands.add(new Register(index, tokens[i].substring(1)));
-			else if (tokens[i].length() > 0)
-				oprands.add(Token.parse(tokens[i]));
-		}
+	// the Stmt subclass for op, over the parsed operands
+	public static Stmt create(int index, Operator op, List<Token> oprands) {
 		
 		Stmt stmt;
 		switch (op) {
@@ -262,7 +161,6 @@ public abstract class Stmt implements Cloneable {
 			stmt = null;
 		}
 		
-//		System.out.println(stmt);
 		return stmt;
 	}
 }
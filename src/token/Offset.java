@@ -20,6 +20,10 @@ public class Offset extends Token implements Cloneable {
 	
 	public int getValue() { return offset; }
 	
+	public String getName() { return name; }
+	
+	public boolean isDynamic() { return dynamic; }
+	
 	@Override
 	public String toString() {
 		return (name + "#" + (dynamic ? "?" : offset));
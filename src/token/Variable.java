@@ -8,6 +8,7 @@ public class Variable extends Token implements Cloneable {
 	
 	// for ssa
 	public String ssaName;
+	public int ssaId = -1;	// see compiler.SSAValueTable
 	
 	public Variable(String name, int offset) {
 		this.name = name;